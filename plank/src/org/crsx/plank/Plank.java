@@ -4,18 +4,46 @@
  */
 package org.crsx.plank;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.antlr.v4.runtime.ANTLRFileStream;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CharStream;
 import org.crsx.plank.base.PlankException;
+import org.crsx.plank.execute.Checkpoint;
+import org.crsx.plank.execute.CycleDetector;
 import org.crsx.plank.execute.Executable;
+import org.crsx.plank.execute.Monitor;
+import org.crsx.plank.execute.Quota;
+import org.crsx.plank.execute.Normalization;
 import org.crsx.plank.loader.Loader;
 import org.crsx.plank.loader.PlankBuilder;
+import org.crsx.plank.loader.TermReader;
+import org.crsx.plank.term.BinaryReader;
 import org.crsx.plank.term.Term;
 
 /**
@@ -24,13 +52,26 @@ import org.crsx.plank.term.Term;
  */
 public class Plank {
 
+	/** The default number of rewrite steps between checkpoints. */
+	static final long DEFAULT_CHECKPOINT_STEPS = 10_000_000;
+
 	/** Help. */
-	static String USAGE = "Usage: Plank [--show-{script,inputs,sorts,parses}] scriptfile [termfile...]";
+	static String USAGE = "Usage: Plank [--show-{script,inputs,sorts,parses}] [--binary-{input,output}] [--detect-cycles] [--memory-limit BYTES] [--stream] [--jobs N] [--snapshot] [--checkpoint file [--checkpoint-steps N]] scriptfile [termfile...]\n"
+		+ "   or: Plank [--show-sorts] [--snapshot] --server PORT [--warm-up termfile] [--memory-limit BYTES] scriptfile...";
 	
 	/**
 	 * Run script on inputs.
 	 * @param args first argument should be plank script;
-	 * 	rest of the arguments are input files, or if none, the standard input is processed
+	 * 	rest of the arguments are input files, or if none, the standard input is processed;
+	 * 	with --detect-cycles evaluations that cycle are stopped with an error (see {@link CycleDetector});
+	 * 	with --memory-limit BYTES evaluations that grow the term by more than about BYTES are stopped (see {@link Quota}),
+	 * 	printing the term as far as it was evaluated and a warning, or failing the request when serving;
+	 * 	with --stream each input is a sequence of terms separated by ';', which are each evaluated and printed in turn;
+	 * 	with --jobs N the input files are processed by N threads, but the output is still in the order of the files;
+	 * 	with --snapshot the loaded script is saved next to the script, and reused as long as the script is unchanged;
+	 * 	with --checkpoint FILE the evaluation of the single input term is saved to FILE every --checkpoint-steps rewrite steps
+	 * 	and when the program is stopped, and resumed from FILE if it exists (see {@link Checkpoint});
+	 * 	with --server PORT all the arguments are scripts, which are kept loaded to serve requests (see {@link PlankServer})
 	 */
 	public static void main(String[] args) {
 		if (args.length == 0) {
@@ -45,7 +86,19 @@ public class Plank {
 		boolean showInputs = false;
 		boolean showSorts = false;
 		boolean traceParse = false;
-		for (String arg : args) {
+		boolean binaryInput = false;
+		boolean binaryOutput = false;
+		boolean detectCycles = false;
+		long memoryLimit = 0;
+		boolean stream = false;
+		int jobs = 1;
+		boolean snapshot = false;
+		int serverPort = -1;
+		String warmUpFile = null;
+		String checkpointFile = null;
+		long checkpointSteps = DEFAULT_CHECKPOINT_STEPS;
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
 			if (arg.startsWith("-")) {
 				switch (arg) {
 				case "--show-script" :
@@ -60,6 +113,79 @@ public class Plank {
 				case "--show-parses" :
 					traceParse = true;
 					break;
+				case "--binary-input" :
+					binaryInput = true;
+					break;
+				case "--binary-output" :
+					binaryOutput = true;
+					break;
+				case "--detect-cycles" :
+					detectCycles = true;
+					break;
+				case "--memory-limit" :
+					try {
+						memoryLimit = Long.parseLong(args[++i]);
+					} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+						memoryLimit = 0;
+					}
+					if (memoryLimit < 1) {
+						System.err.println("Option --memory-limit needs a positive number of bytes\n" + USAGE);
+						System.exit(1);
+					}
+					break;
+				case "--stream" :
+					stream = true;
+					break;
+				case "--snapshot" :
+					snapshot = true;
+					break;
+				case "--server" :
+					try {
+						serverPort = Integer.parseInt(args[++i]);
+					} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+						serverPort = -1;
+					}
+					if (serverPort < 0 || serverPort > 0xFFFF) {
+						System.err.println("Option --server needs a port number\n" + USAGE);
+						System.exit(1);
+					}
+					break;
+				case "--warm-up" :
+					if (i + 1 == args.length) {
+						System.err.println("Option --warm-up needs a term file\n" + USAGE);
+						System.exit(1);
+					}
+					warmUpFile = args[++i];
+					break;
+				case "--checkpoint" :
+					if (i + 1 == args.length) {
+						System.err.println("Option --checkpoint needs a file\n" + USAGE);
+						System.exit(1);
+					}
+					checkpointFile = args[++i];
+					break;
+				case "--checkpoint-steps" :
+					try {
+						checkpointSteps = Long.parseLong(args[++i]);
+					} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+						checkpointSteps = 0;
+					}
+					if (checkpointSteps < 1) {
+						System.err.println("Option --checkpoint-steps needs a positive number\n" + USAGE);
+						System.exit(1);
+					}
+					break;
+				case "--jobs" :
+					try {
+						jobs = Integer.parseInt(args[++i]);
+					} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+						jobs = 0;
+					}
+					if (jobs < 1) {
+						System.err.println("Option --jobs needs a positive number\n" + USAGE);
+						System.exit(1);
+					}
+					break;
 				default :
 					System.err.println("Unknown option (" + arg + ")\n" + USAGE);
 					System.exit(1);
@@ -70,38 +196,226 @@ public class Plank {
 				termFiles.add(arg);
 			}
 		}
+		if (stream && traceParse) {
+			System.err.println("Cannot trace parsing of streams\n" + USAGE);
+			System.exit(1);
+		}
+		if (checkpointFile != null && (stream || jobs > 1 || binaryInput || traceParse || showInputs || memoryLimit > 0 || termFiles.size() > 1)) {
+			System.err.println("Option --checkpoint needs a single text input term, and no --stream, --jobs, --memory-limit, or --show-{inputs,parses}\n" + USAGE);
+			System.exit(1);
+		}
 
-		try {
-			PlankBuilder builder = new PlankBuilder();
-			
-			// Parse and load script.
-			CharStream scriptStream = new ANTLRFileStream(scriptFile);
-			Loader loader = builder.parseScript(scriptStream, traceParse);
-			if (loader.hasErrors()) {
-				loader.appendErrors(System.err);
+		if (serverPort >= 0) {
+			try {
+				serve(serverPort, scriptFile, termFiles, warmUpFile, showSorts, memoryLimit, snapshot);
+			} catch (Exception e) {
+				System.err.println(e.getMessage());
 				System.exit(1);
 			}
+			return;
+		}
+
+		try {
+			Loader loader = loadScript(scriptFile, traceParse, snapshot);
+			PlankBuilder builder = new PlankBuilder(loader);
 			if (showScript) {
 				System.out.println("/* LOADED SCRIPT: */\n");
 				System.out.print(loader.toString());
 			}
 			
 			// Process each input term.
-			if (termFiles.isEmpty()) {
-				CharStream termStream = new ANTLRInputStream(System.in);
-				parseAndEvaluate(System.out, builder, loader, termStream, showInputs, showSorts, traceParse);
-			} else {
-				for (String termFile : termFiles) {
-					CharStream termStream = new ANTLRFileStream(termFile);
-					parseAndEvaluate(System.out, builder, loader, termStream, showInputs, showSorts, traceParse);
+			if (checkpointFile != null) {
+				evaluateWithCheckpoints(System.out, loader, termFiles.isEmpty() ? null : termFiles.get(0), Paths.get(checkpointFile), checkpointSteps, showSorts, binaryOutput, detectCycles);
+			} else if (traceParse && !binaryInput) {
+				// Tracing needs the full parser.
+				if (termFiles.isEmpty()) {
+					CharStream termStream = new ANTLRInputStream(System.in);
+					parseAndEvaluate(System.out, builder, loader, termStream, showInputs, showSorts, traceParse, binaryOutput, detectCycles, memoryLimit);
+				} else {
+					for (String termFile : termFiles) {
+						CharStream termStream = new ANTLRFileStream(termFile);
+						parseAndEvaluate(System.out, builder, loader, termStream, showInputs, showSorts, traceParse, binaryOutput, detectCycles, memoryLimit);
+					}
+				}
+			} else if (termFiles.isEmpty()) {
+				if (binaryInput) {
+					BinaryReader reader = Term.binaryReader(System.in, "<stdin>", loader::consForm);
+					readAndEvaluate(System.out, loader, reader, showInputs, showSorts, binaryOutput, detectCycles, memoryLimit, stream);
+				} else {
+					TermReader reader = new TermReader(loader, new InputStreamReader(System.in), "<stdin>");
+					if (stream) {
+						readAndEvaluate(System.out, loader, reader, showInputs, showSorts, binaryOutput, detectCycles, memoryLimit);
+					} else {
+						Term term = reader.read();
+						reader.expectEnd();
+						evaluate(System.out, loader, term, showInputs, showSorts, binaryOutput, detectCycles, memoryLimit, false);
+					}
 				}
+			} else if (jobs > 1) {
+				processInParallel(System.out, builder, loader, termFiles, jobs, showInputs, showSorts, binaryInput, binaryOutput, detectCycles, memoryLimit, stream);
+			} else {
+				for (String termFile : termFiles)
+					processFile(System.out, builder, loader, termFile, showInputs, showSorts, binaryInput, binaryOutput, detectCycles, memoryLimit, stream);
 			}
+			System.out.flush();
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 			System.exit(1);
 		}
 	}
 
+	/**
+	 * Load scripts and serve requests to normalize terms with them, until killed.
+	 * @param port to listen on (on the loopback interface), or 0 for any free port
+	 * @param scriptFile the first script
+	 * @param moreScriptFiles any further scripts
+	 * @param warmUpFile file with sample terms to normalize before the server is ready, or null
+	 * @param showSorts whether to include sorts in normal forms
+	 * @param memoryLimit the memory quota of each request in bytes (see {@link Quota}), or 0 for none
+	 * @param snapshot whether to use and save snapshots of the loaded scripts
+	 * @throws IOException
+	 */
+	private static void serve(int port, String scriptFile, List<String> moreScriptFiles, String warmUpFile, boolean showSorts, long memoryLimit, boolean snapshot) throws IOException {
+		Map<String, Loader> scripts = new LinkedHashMap<>();
+		scripts.put(scriptFile, loadScript(scriptFile, false, snapshot));
+		for (String file : moreScriptFiles)
+			scripts.put(file, loadScript(file, false, snapshot));
+		try (PlankServer server = new PlankServer(scripts, port, showSorts, memoryLimit)) {
+			if (warmUpFile != null)
+				System.err.println("Warmed up with " + server.warmUp(warmUpFile) + " normalizations");
+			System.out.println("Plank server ready on port " + server.port());
+			System.out.flush();
+			server.serve();
+		}
+	}
+
+	/**
+	 * Load a script, exiting if it has errors.
+	 * @param scriptFile name of the file with the script
+	 * @param traceParse whether to trace parsing of the script
+	 * @param snapshot whether to use and save a snapshot of the loaded script (not when tracing)
+	 * @return the loader with the script
+	 * @throws IOException if the script cannot be read
+	 */
+	private static Loader loadScript(String scriptFile, boolean traceParse, boolean snapshot) throws IOException {
+		if (!traceParse) {
+			try {
+				return PlankEngine.load(Paths.get(scriptFile), snapshot).loader();
+			} catch (PlankException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+		}
+		// Parse and load script with tracing.
+		CharStream scriptStream = new ANTLRFileStream(scriptFile);
+		Loader loader = new PlankBuilder().parseScript(scriptStream, true);
+		if (loader.hasErrors()) {
+			loader.appendErrors(System.err);
+			System.exit(1);
+		}
+		return loader;
+	}
+
+	/**
+	 * Process the term files on a pool of threads, so the reading, evaluation, and printing of different files overlap.
+	 * The output of each file is collected, and printed in the order of the files;
+	 * at most twice as many files as there are threads are in progress at any time, so fast workers wait for the printing.
+	 * @param out where to send evaluated terms to (errors go to standard error).
+	 * @param builder to use for full parsing
+	 * @param loader with the script, shared by all the threads
+	 * @param termFiles names of the files with the terms
+	 * @param jobs how many threads to use
+	 * @param showInputs
+	 * @param showSorts
+	 * @param binaryInput whether the files are in binary rather than text form
+	 * @param binaryOutput whether to write the evaluated terms in binary rather than text form
+	 * @param detectCycles whether to stop evaluations that cycle (see {@link CycleDetector})
+	 * @param memoryLimit the memory quota of each evaluation in bytes (see {@link Quota}), or 0 for none
+	 * @param stream whether text files contain sequences of terms separated by ';'
+	 * @throws PlankException for the first file (in order) that fails
+	 * @throws IOException 
+	 */
+	private static void processInParallel(PrintStream out, PlankBuilder builder, Loader loader, List<String> termFiles, int jobs, boolean showInputs, boolean showSorts, boolean binaryInput, boolean binaryOutput, boolean detectCycles, long memoryLimit, boolean stream) throws PlankException, IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(jobs);
+		try {
+			Deque<Future<ByteArrayOutputStream>> pending = new ArrayDeque<>();
+			for (String termFile : termFiles) {
+				if (pending.size() >= 2 * jobs)
+					printResult(out, pending.remove());
+				pending.add(pool.submit(() -> {
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					PrintStream bufferOut = new PrintStream(buffer);
+					processFile(bufferOut, builder, loader, termFile, showInputs, showSorts, binaryInput, binaryOutput, detectCycles, memoryLimit, stream);
+					bufferOut.flush();
+					return buffer;
+				}));
+			}
+			while (!pending.isEmpty())
+				printResult(out, pending.remove());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Print the output collected for a file, when it is ready.
+	 * @param out where to print
+	 * @param result the output of the file
+	 * @throws PlankException if processing the file failed
+	 * @throws IOException
+	 */
+	private static void printResult(PrintStream out, Future<ByteArrayOutputStream> result) throws PlankException, IOException {
+		try {
+			result.get().writeTo(out);
+			out.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PlankException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof PlankException)
+				throw (PlankException) cause;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new PlankException(cause);
+		}
+	}
+
+	/**
+	 * Read all the terms in a file, and use the script rules to evaluate them.
+	 * @param out where to send evaluated terms to (errors go to standard error).
+	 * @param builder to use for full parsing
+	 * @param loader with the script
+	 * @param termFile name of the file with the terms
+	 * @param showInputs
+	 * @param showSorts
+	 * @param binaryInput whether the file is in binary rather than text form
+	 * @param binaryOutput whether to write the evaluated terms in binary rather than text form
+	 * @param detectCycles whether to stop evaluations that cycle (see {@link CycleDetector})
+	 * @param memoryLimit the memory quota of each evaluation in bytes (see {@link Quota}), or 0 for none
+	 * @param stream whether a text file contains a sequence of terms separated by ';'
+	 * @throws PlankException
+	 * @throws IOException 
+	 */
+	private static void processFile(PrintStream out, PlankBuilder builder, Loader loader, String termFile, boolean showInputs, boolean showSorts, boolean binaryInput, boolean binaryOutput, boolean detectCycles, long memoryLimit, boolean stream) throws PlankException, IOException {
+		if (binaryInput) {
+			try (FileChannel termChannel = FileChannel.open(Paths.get(termFile), StandardOpenOption.READ)) {
+				BinaryReader reader = Term.binaryReader(termChannel, termFile, loader::consForm); // mapped, not read
+				readAndEvaluate(out, loader, reader, showInputs, showSorts, binaryOutput, detectCycles, memoryLimit, stream);
+			}
+		} else if (stream) {
+			try (Reader in = new InputStreamReader(new FileInputStream(termFile))) {
+				readAndEvaluate(out, loader, new TermReader(loader, in, termFile), showInputs, showSorts, binaryOutput, detectCycles, memoryLimit);
+			}
+		} else {
+			readTextAndEvaluate(out, builder, loader, termFile, showInputs, showSorts, binaryOutput, detectCycles, memoryLimit);
+		}
+	}
+
 	/**
 	 * Parse and use the script rules to evaluate a term.
 	 * @param out where to send evaluated term to (errors go to standard error).
@@ -111,23 +425,194 @@ public class Plank {
 	 * @param showInputs
 	 * @param showSorts
 	 * @param traceParse
+	 * @param binaryOutput whether to write the evaluated term in binary rather than text form
+	 * @param detectCycles whether to stop evaluations that cycle (see {@link CycleDetector})
+	 * @param memoryLimit the memory quota of each evaluation in bytes (see {@link Quota}), or 0 for none
 	 * @throws PlankException
 	 * @throws IOException 
 	 */
-	private static void parseAndEvaluate(Appendable out, PlankBuilder builder, Loader loader, CharStream termStream, boolean showInputs, boolean showSorts, boolean traceParse) throws PlankException, IOException {
-		Term term = builder.parseTerm(termStream, traceParse); // note: side effects on loader! Ugly.
-		if (loader.hasErrors()) {
-			loader.appendErrors(System.err);
-			System.exit(1);
+	private static void parseAndEvaluate(PrintStream out, PlankBuilder builder, Loader loader, CharStream termStream, boolean showInputs, boolean showSorts, boolean traceParse, boolean binaryOutput, boolean detectCycles, long memoryLimit) throws PlankException, IOException {
+		Term term = builder.parseTerm(termStream, traceParse); // no side effects on loader, so can be used concurrently
+		evaluate(out, loader, term, showInputs, showSorts, binaryOutput, detectCycles, memoryLimit, false);
+	}
+
+	/**
+	 * Read a term file with the fast term reader and use the script rules to evaluate the term.
+	 * If the fast reader fails then the file is parsed with the full parser instead, which recovers from and reports errors as for scripts.
+	 * @param out where to send evaluated term to (errors go to standard error).
+	 * @param builder to use for full parsing
+	 * @param loader with the script
+	 * @param termFile name of the file with the term
+	 * @param showInputs
+	 * @param showSorts
+	 * @param binaryOutput whether to write the evaluated term in binary rather than text form
+	 * @param detectCycles whether to stop evaluations that cycle (see {@link CycleDetector})
+	 * @param memoryLimit the memory quota of each evaluation in bytes (see {@link Quota}), or 0 for none
+	 * @throws PlankException
+	 * @throws IOException 
+	 */
+	private static void readTextAndEvaluate(PrintStream out, PlankBuilder builder, Loader loader, String termFile, boolean showInputs, boolean showSorts, boolean binaryOutput, boolean detectCycles, long memoryLimit) throws PlankException, IOException {
+		Term term;
+		try (Reader in = new InputStreamReader(new FileInputStream(termFile))) {
+			TermReader reader = new TermReader(loader, in, termFile);
+			term = reader.read();
+			reader.expectEnd();
+		} catch (PlankException e) {
+			parseAndEvaluate(out, builder, loader, new ANTLRFileStream(termFile), showInputs, showSorts, false, binaryOutput, detectCycles, memoryLimit);
+			return;
 		}
+		evaluate(out, loader, term, showInputs, showSorts, binaryOutput, detectCycles, memoryLimit, false);
+	}
+
+	/**
+	 * Read a sequence of terms separated by ';' and use the script rules to evaluate each in turn.
+	 * Each term is evaluated and printed before the next is read, so only one term is in memory at a time.
+	 * @param out where to send evaluated terms to (errors go to standard error).
+	 * @param loader with the script
+	 * @param reader of the terms
+	 * @param showInputs
+	 * @param showSorts
+	 * @param binaryOutput whether to write the evaluated terms in binary rather than text form
+	 * @param detectCycles whether to stop evaluations that cycle (see {@link CycleDetector})
+	 * @param memoryLimit the memory quota of each evaluation in bytes (see {@link Quota}), or 0 for none
+	 * @throws PlankException
+	 * @throws IOException 
+	 */
+	private static void readAndEvaluate(PrintStream out, Loader loader, TermReader reader, boolean showInputs, boolean showSorts, boolean binaryOutput, boolean detectCycles, long memoryLimit) throws PlankException, IOException {
+		while (!reader.atEnd()) {
+			evaluate(out, loader, reader.read(), showInputs, showSorts, binaryOutput, detectCycles, memoryLimit, true);
+			if (!reader.skipSeparator())
+				break;
+		}
+		reader.expectEnd();
+	}
+
+	/**
+	 * Read binary terms and use the script rules to evaluate each.
+	 * @param out where to send evaluated terms to (errors go to standard error).
+	 * @param loader with the script
+	 * @param reader of the binary terms
+	 * @param showInputs
+	 * @param showSorts
+	 * @param binaryOutput whether to write the evaluated terms in binary rather than text form
+	 * @param detectCycles whether to stop evaluations that cycle (see {@link CycleDetector})
+	 * @param memoryLimit the memory quota of each evaluation in bytes (see {@link Quota}), or 0 for none
+	 * @param stream whether text output should be a stream of terms separated by ';'
+	 * @throws PlankException
+	 * @throws IOException 
+	 */
+	private static void readAndEvaluate(PrintStream out, Loader loader, BinaryReader reader, boolean showInputs, boolean showSorts, boolean binaryOutput, boolean detectCycles, long memoryLimit, boolean stream) throws PlankException, IOException {
+		while (!reader.atEnd())
+			evaluate(out, loader, reader.read(), showInputs, showSorts, binaryOutput, detectCycles, memoryLimit, stream);
+	}
+
+	/**
+	 * Use the script rules to evaluate a term.
+	 * @param out where to send evaluated term to
+	 * @param loader with the script
+	 * @param term to evaluate
+	 * @param showInputs whether to also print the input term (as text)
+	 * @param showSorts whether to include sorts in printed terms
+	 * @param binaryOutput whether to write the evaluated term in binary rather than text form
+	 * @param detectCycles whether to stop evaluations that cycle (see {@link CycleDetector})
+	 * @param memoryLimit the memory quota of each evaluation in bytes (see {@link Quota}), or 0 for none
+	 * @param stream whether the text output is part of a stream of terms, so must be followed by ';'
+	 * @throws PlankException
+	 * @throws IOException 
+	 */
+	private static void evaluate(PrintStream out, Loader loader, Term term, boolean showInputs, boolean showSorts, boolean binaryOutput, boolean detectCycles, long memoryLimit, boolean stream) throws PlankException, IOException {
 		if (showInputs) {
 			out.append("\n/* INPUT */\n");
 			term.appendTerm(out, "\n", new HashMap<>(), showSorts);
 			out.append("\n\n/* OUTPUT */\n");
 		}
 		Executable executor = loader.executable();
-		Term nf = executor.normalize(term);
-		nf.appendTerm(out, "\n  ", new HashMap<>(), showSorts);
-		out.append("\n");
+		Monitor monitor = detectCycles ? new CycleDetector() : null;
+		Quota quota = memoryLimit > 0 ? new Quota(memoryLimit) : null;
+		if (binaryOutput) {
+			executor.normalize(term, Term.binaryWriter(out), monitor, quota); // written when the normal form is complete
+		} else {
+			try {
+				executor.normalize(term, Term.printer(out, "\n  ", showSorts), monitor, quota); // prints as the normal form is computed
+			} catch (PlankException e) {
+				// End the partially printed term, so the error is not mistaken for part of it.
+				out.append("\n/* EVALUATION FAILED */").append(stream ? ";\n" : "\n");
+				out.flush();
+				throw e;
+			}
+			out.append(stream ? ";\n" : "\n");
+		}
+		out.flush(); // so each result is available as soon as it is computed
+		if (quota != null && quota.exceeded() != null)
+			System.err.println("Stopped evaluation: " + quota.exceeded());
+	}
+
+	/**
+	 * Use the script rules to evaluate a term, saving checkpoints so an interrupted evaluation can be resumed.
+	 * If the checkpoint file exists then evaluation continues from it instead of from the input term.
+	 * A checkpoint is written every so many steps and when the program is stopped, and removed when evaluation is done.
+	 * @param out where to send evaluated term to
+	 * @param loader with the script
+	 * @param termFile name of the file with the term, or null for standard input
+	 * @param checkpointFile where to save the evaluation
+	 * @param checkpointSteps how many rewrite steps to do between checkpoints
+	 * @param showSorts whether to include sorts in printed terms
+	 * @param binaryOutput whether to write the evaluated term in binary rather than text form
+	 * @param detectCycles whether to stop evaluations that cycle (see {@link CycleDetector})
+	 * @throws PlankException
+	 * @throws IOException 
+	 */
+	private static void evaluateWithCheckpoints(PrintStream out, Loader loader, String termFile, Path checkpointFile, long checkpointSteps, boolean showSorts, boolean binaryOutput, boolean detectCycles) throws PlankException, IOException {
+		Executable executable = loader.executable();
+		Normalization normalization;
+		if (Files.exists(checkpointFile)) {
+			normalization = Checkpoint.read(executable, checkpointFile);
+			System.err.println("Resuming from checkpoint after " + normalization.steps() + " steps");
+		} else {
+			try (Reader in = new InputStreamReader(termFile == null ? System.in : new FileInputStream(termFile))) {
+				TermReader reader = new TermReader(loader, in, termFile == null ? "<stdin>" : termFile);
+				Term term = reader.read();
+				reader.expectEnd();
+				normalization = executable.start(term);
+			}
+		}
+		
+		// When stopped, suspend evaluation and wait for the checkpoint to be written.
+		final CountDownLatch saved = new CountDownLatch(1);
+		final AtomicBoolean stopping = new AtomicBoolean();
+		final Normalization n = normalization;
+		Thread hook = new Thread(() -> {
+			stopping.set(true);
+			n.suspend();
+			try {
+				saved.await(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				// give up
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(hook);
+		try {
+			Monitor monitor = detectCycles ? new CycleDetector() : null;
+			while (!normalization.run(checkpointSteps, monitor)) {
+				Checkpoint.write(normalization, checkpointFile);
+				if (stopping.get()) {
+					saved.countDown();
+					return;
+				}
+			}
+		} finally {
+			saved.countDown();
+			if (!stopping.get())
+				Runtime.getRuntime().removeShutdownHook(hook);
+		}
+		Term normal = normalization.term();
+		if (binaryOutput) {
+			normal.send(Term.binaryWriter(out));
+		} else {
+			normal.send(Term.printer(out, "\n  ", showSorts));
+			out.append("\n");
+		}
+		out.flush();
+		Files.deleteIfExists(checkpointFile);
 	}
-}
\ No newline at end of file
+}
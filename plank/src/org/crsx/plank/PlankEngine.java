@@ -0,0 +1,231 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.execute.Executable;
+import org.crsx.plank.execute.Monitor;
+import org.crsx.plank.execute.Quota;
+import org.crsx.plank.loader.Loader;
+import org.crsx.plank.loader.PlankBuilder;
+import org.crsx.plank.loader.Snapshot;
+import org.crsx.plank.loader.TermConstructor;
+import org.crsx.plank.loader.TermReader;
+import org.crsx.plank.sort.ConsForm;
+import org.crsx.plank.term.Sink;
+import org.crsx.plank.term.Term;
+
+/**
+ * Plank for use from other programs: a loaded script, which terms can be constructed for and normalized with.
+ * <p>
+ * An engine is created once for a script with one of the {@code load} methods, and can then be used for any number of terms,
+ * also by several threads at the same time.
+ * Input terms are constructed by constructor name with {@link #construct()} or parsed from text with {@link #parse(String)},
+ * and normalized with {@link #normalize(Term)}, giving a {@link Term}, or {@link #normalize(Term, Sink)}, giving {@link Sink} events,
+ * or in the background with {@link #normalizeAsync(Term, Executor, Monitor)}.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class PlankEngine {
+
+	// State.
+
+	/** The loaded script. */
+	private final Loader _loader;
+
+	/** The rules of the script, ready for normalization. */
+	private final Executable _executable;
+
+	// Constructor.
+
+	/**
+	 * Create engine for a loaded script.
+	 * @param loader with the script
+	 * @throws PlankException if the script has errors
+	 */
+	private PlankEngine(Loader loader) throws PlankException {
+		if (loader.hasErrors()) {
+			final StringBuilder errors = new StringBuilder();
+			try {
+				loader.appendErrors(errors);
+			} catch (IOException e) {
+				throw new PlankException(e);
+			}
+			throw new PlankException("%s", errors.toString().trim());
+		}
+		_loader = loader;
+		_executable = loader.executable();
+	}
+
+	/**
+	 * Load script.
+	 * @param scriptFile name of the file with the script
+	 * @throws PlankException if the script has errors
+	 * @throws IOException if the script cannot be read
+	 */
+	public static PlankEngine load(String scriptFile) throws PlankException, IOException {
+		return load(Paths.get(scriptFile), false);
+	}
+
+	/**
+	 * Load script, optionally using a {@link Snapshot}.
+	 * When the snapshot is missing, stale, or rejected by {@link Snapshot#read(Path, byte[])}, the script is loaded and the snapshot saved;
+	 * failure to save it is not an error.
+	 * @param scriptFile the file with the script
+	 * @param snapshot whether to use and save a snapshot of the loaded script
+	 * @throws PlankException if the script has errors
+	 * @throws IOException if the script cannot be read
+	 */
+	public static PlankEngine load(Path scriptFile, boolean snapshot) throws PlankException, IOException {
+		final byte[] script = Files.readAllBytes(scriptFile);
+		final byte[] hash = snapshot ? Snapshot.hash(script) : null;
+		if (snapshot) {
+			try {
+				final Loader loader = Snapshot.read(scriptFile, hash);
+				if (loader != null)
+					return new PlankEngine(loader);
+			} catch (PlankException e) {
+				// from another version or damaged, so replace it
+			}
+		}
+		final ANTLRInputStream scriptStream = new ANTLRInputStream(new String(script, Charset.defaultCharset()));
+		scriptStream.name = scriptFile.toString();
+		final PlankEngine engine = new PlankEngine(new PlankBuilder().parseScript(scriptStream, false));
+		if (snapshot) {
+			try {
+				Snapshot.write(scriptFile, hash, engine._loader);
+			} catch (IOException e) {
+				// just a missed opportunity
+			}
+		}
+		return engine;
+	}
+
+	/**
+	 * Load script from a reader.
+	 * @param script the text of the script
+	 * @param name of the script, for error messages
+	 * @throws PlankException if the script has errors
+	 * @throws IOException if the script cannot be read
+	 */
+	public static PlankEngine load(Reader script, String name) throws PlankException, IOException {
+		final ANTLRInputStream scriptStream = new ANTLRInputStream(script);
+		scriptStream.name = name;
+		return new PlankEngine(new PlankBuilder().parseScript(scriptStream, false));
+	}
+
+	// Methods.
+
+	/** The loaded script. */
+	public Loader loader() {
+		return _loader;
+	}
+
+	/** The rules of the script, ready for normalization. */
+	public Executable executable() {
+		return _executable;
+	}
+
+	/**
+	 * The declaration of a constructor.
+	 * @param constructor name of the constructor
+	 * @return the form of the constructor, or null if the script does not declare it
+	 */
+	public ConsForm form(String constructor) {
+		return _loader.consForm(constructor);
+	}
+
+	/**
+	 * Start constructing terms for the script, to get as {@link TermConstructor#term()}.
+	 * A constructor should only be used by one thread at a time.
+	 */
+	public TermConstructor construct() {
+		return new TermConstructor(_loader, "<api>");
+	}
+
+	/**
+	 * Start constructing terms for the script, sending them to a sink.
+	 * A constructor should only be used by one thread at a time.
+	 * @param sink to send the events of the terms to
+	 */
+	public TermConstructor construct(Sink sink) {
+		return new TermConstructor(_loader, sink, "<api>");
+	}
+
+	/**
+	 * Parse the text of a term for the script.
+	 * @param text of the term, in the plank term syntax
+	 * @return the term
+	 * @throws PlankException if the text is not a valid term for the script
+	 */
+	public Term parse(String text) throws PlankException {
+		final TermReader reader = new TermReader(_loader, new StringReader(text), "<api>");
+		final Term term = reader.read();
+		reader.expectEnd();
+		return term;
+	}
+
+	/**
+	 * Normalize term with the rules of the script.
+	 * @param input to normalize - will be destroyed
+	 * @return the normal form
+	 * @throws PlankException if evaluation fails
+	 */
+	public Term normalize(Term input) throws PlankException {
+		return _executable.normalize(input);
+	}
+
+	/**
+	 * Normalize term with the rules of the script within a memory quota.
+	 * @param input to normalize - will be destroyed
+	 * @param quota for the normalization, which also reports the memory used
+	 * @return the normal form, or the term as far as it was normalized if {@link Quota#exceeded()}
+	 * @throws PlankException if evaluation fails
+	 */
+	public Term normalize(Term input, Quota quota) throws PlankException {
+		return _executable.normalize(input, Integer.MAX_VALUE, null, quota);
+	}
+
+	/**
+	 * Normalize term with the rules of the script, sending the normal form to a sink as it is found.
+	 * @param input to normalize - will be destroyed
+	 * @param sink to send the normal form to
+	 * @return the sink to use for subsequent events
+	 * @throws PlankException if evaluation or the sink fails
+	 */
+	public Sink normalize(Term input, Sink sink) throws PlankException {
+		return _executable.normalize(input, sink);
+	}
+
+	/**
+	 * Normalize term with the rules of the script asynchronously, as a single task on an executor.
+	 * Cancelling the returned future stops the normalization at its next rewrite step.
+	 * @param input to normalize - will be destroyed
+	 * @param executor to run the normalization on
+	 * @param monitor to call after each rewrite step, for example to report progress, or null
+	 * @return the future normal form
+	 * @see Executable#normalizeAsync(Term, Executor, Monitor)
+	 */
+	public CompletableFuture<Term> normalizeAsync(Term input, Executor executor, Monitor monitor) {
+		return _executable.normalizeAsync(input, executor, monitor);
+	}
+
+	// Object...
+
+	@Override
+	public String toString() {
+		return _loader.toString();
+	}
+}
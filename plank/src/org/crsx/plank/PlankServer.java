@@ -0,0 +1,234 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.execute.Quota;
+import org.crsx.plank.execute.Scheduler;
+import org.crsx.plank.loader.Loader;
+import org.crsx.plank.loader.TermReader;
+import org.crsx.plank.term.Term;
+
+/**
+ * Server that keeps scripts loaded, and normalizes terms sent to it over local TCP connections.
+ * <p>
+ * Each connection carries any number of requests, which are answered in turn, and connections are served concurrently.
+ * A request is the name of the script, as given when the server was started, in the form written by {@link DataOutputStream#writeUTF(String)}
+ * (the name may be empty when there is just one script),
+ * followed by the text of the term, as a four byte big-endian byte count and that many bytes of UTF-8.
+ * A response is a status byte, {@link #OK} or {@link #ERROR},
+ * followed by the text of the normal form (on one line) or of the error message, in the same way as the term of the request.
+ * A connection is closed by the client after the last response has been received.
+ * The normalizations of all connections share a {@link Scheduler} with a worker per processor,
+ * and each can be given a memory {@link Quota} so one runaway request does not take the memory of the others.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class PlankServer implements Closeable {
+
+	/** Response status when the text is the normal form. */
+	public static final byte OK = 0;
+
+	/** Response status when the text is an error message. */
+	public static final byte ERROR = 1;
+
+	/** Largest text accepted in a request. */
+	static final int MAX_TEXT = 1 << 28;
+
+	// State.
+
+	/** The loaded scripts, by name. */
+	private final Map<String, Loader> _scripts;
+
+	/** Whether to include sorts in normal forms. */
+	private final boolean _showSorts;
+
+	/** The memory quota of each request in bytes, or 0 for none. */
+	private final long _memoryLimit;
+
+	/** Where connections are accepted. */
+	private final ServerSocket _socket;
+
+	/** Runs the normalizations, time-sliced so large ones do not hold up small ones. */
+	private final Scheduler _scheduler = new Scheduler(Runtime.getRuntime().availableProcessors(), Scheduler.DEFAULT_QUANTUM);
+
+	/** The threads serving connections. */
+	private final ExecutorService _connections = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "plank-connection");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Constructor.
+
+	/**
+	 * Create server, listening on the loopback interface.
+	 * @param scripts the loaded scripts by name
+	 * @param port to listen on, or 0 for any free port
+	 * @param showSorts whether to include sorts in normal forms
+	 * @param memoryLimit the memory quota of each request in bytes (see {@link Quota}), or 0 for none
+	 * @throws IOException if the port cannot be used
+	 */
+	PlankServer(Map<String, Loader> scripts, int port, boolean showSorts, long memoryLimit) throws IOException {
+		_scripts = scripts;
+		_showSorts = showSorts;
+		_memoryLimit = memoryLimit;
+		_socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	// Methods.
+
+	/** The port that the server listens on. */
+	public int port() {
+		return _socket.getLocalPort();
+	}
+
+	/**
+	 * Normalize sample terms with the scripts, so the code used is compiled before the first request.
+	 * The samples are separated by ';' (which must not otherwise occur in the file),
+	 * and each is normalized with every script that it is a valid term for.
+	 * @param termFile name of the file with the samples
+	 * @return how many normalizations were done
+	 * @throws IOException if the file cannot be read
+	 */
+	int warmUp(String termFile) throws IOException {
+		final String text = new String(Files.readAllBytes(Paths.get(termFile)), StandardCharsets.UTF_8);
+		int count = 0;
+		for (String sample : text.split(";")) {
+			if (sample.trim().isEmpty())
+				continue;
+			for (String script : _scripts.keySet()) {
+				try {
+					normalize(script, sample);
+					++count;
+				} catch (PlankException | RuntimeException e) {
+					// not a sample for this script
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Accept and serve connections, until the server is closed.
+	 * @throws IOException if accepting connections fails
+	 */
+	public void serve() throws IOException {
+		try {
+			while (true) {
+				final Socket connection = _socket.accept();
+				_connections.execute(() -> serve(connection));
+			}
+		} catch (SocketException e) {
+			if (!_socket.isClosed())
+				throw e;
+		}
+	}
+
+	/** Answer the requests of a connection until the client closes it. */
+	private void serve(Socket connection) {
+		try (Socket c = connection) {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(c.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(c.getOutputStream()));
+			while (true) {
+				final String script;
+				try {
+					script = in.readUTF();
+				} catch (EOFException e) {
+					return; // client is done
+				}
+				final String term = readText(in);
+				try {
+					final String normal = normalize(script, term);
+					out.writeByte(OK);
+					writeText(out, normal);
+				} catch (PlankException | RuntimeException e) {
+					out.writeByte(ERROR);
+					writeText(out, e.getMessage() != null ? e.getMessage() : e.toString());
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			// connection lost or protocol violated: nothing to answer
+		}
+	}
+
+	/**
+	 * Normalize a term with a script.
+	 * @param script name of the script, or empty for the only script
+	 * @param text of the term
+	 * @return the text of the normal form, on one line
+	 * @throws PlankException if there is no such script, the term is not valid for it, or its normalization fails
+	 */
+	String normalize(String script, String text) throws PlankException {
+		final Loader loader = script.isEmpty() && _scripts.size() == 1 ? _scripts.values().iterator().next() : _scripts.get(script);
+		if (loader == null)
+			throw new PlankException("unknown script (%s)", script);
+		final TermReader reader = new TermReader(loader, new StringReader(text), "<request>");
+		final Term term = reader.read();
+		reader.expectEnd();
+		final Term normal;
+		try {
+			final Quota quota = _memoryLimit > 0 ? new Quota(_memoryLimit) : null;
+			normal = _scheduler.submit(loader.executable(), term, 0, 0, TimeUnit.NANOSECONDS, quota).get();
+		} catch (InterruptedException e) {
+			throw new PlankException(e, "interrupted");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof PlankException)
+				throw (PlankException) cause;
+			throw new PlankException(cause, "%s", cause);
+		}
+		final StringBuilder printed = new StringBuilder();
+		normal.send(Term.printer(printed, "", _showSorts));
+		return printed.toString();
+	}
+
+	/** Read length and UTF-8 bytes of text. */
+	private static String readText(DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0 || length > MAX_TEXT)
+			throw new IOException("bad text length " + length);
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Write length and UTF-8 bytes of text. */
+	private static void writeText(DataOutputStream out, String text) throws IOException {
+		final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	// Closeable...
+
+	@Override
+	public void close() throws IOException {
+		_socket.close();
+		_connections.shutdownNow();
+		_scheduler.close();
+	}
+}
@@ -4,11 +4,17 @@
  */
 package org.crsx.plank.base;
 
+import java.io.Serializable;
+
 /**
  * Any artifact with an origin string.
+ * Artifacts are serializable so loaded scripts can be saved (see {@link org.crsx.plank.loader.Snapshot}).
  * @author Kristoffer H. Rose <krisrose@crsx.org>
  */
-public class Origined {
+public class Origined implements Serializable {
+
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
 	
 	private final String _origin;
 
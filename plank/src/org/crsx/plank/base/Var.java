@@ -4,13 +4,19 @@
  */
 package org.crsx.plank.base;
 
+import java.io.Serializable;
+
 /**
  * A variable instance in a term.
  * Variables are only equal when they are the same instance.
  * Variables hash and compare using {@link System#identityHashCode(Object)}.
+ * Serialization preserves which variables are the same instance (within each stream).
  * @author Kristoffer H. Rose <krisrose@crsx.org>
  */
-final public class Var implements Comparable<Var> {
+final public class Var implements Comparable<Var>, Serializable {
+
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
 
 	/** Base name of variable. */
 	public final String name;
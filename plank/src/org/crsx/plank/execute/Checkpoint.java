@@ -0,0 +1,274 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.execute;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.execute.Executable.Candidate;
+import org.crsx.plank.execute.Executable.State;
+import org.crsx.plank.loader.Rule;
+import org.crsx.plank.loader.Snapshot;
+import org.crsx.plank.term.Cons;
+import org.crsx.plank.term.Step;
+import org.crsx.plank.term.Term;
+
+/**
+ * Checkpoints of suspended normalizations, so long normalizations can be continued in another run with the same script.
+ * <p>
+ * A checkpoint consists of the {@link #MAGIC} bytes and the {@link #VERSION},
+ * followed by the serialized state of the evaluator: the fingerprint of the rules, the flags, the current term,
+ * and the stack of suspended states with their terms and paths, all in one object stream so shared subterms stay shared.
+ * Rules that may still match a suspended function are saved by their origin and matched from scratch when resumed.
+ * A checkpoint can only be resumed with an executable with exactly the same rules, as checked with the fingerprint,
+ * and by the same {@link #VERSION}, since the serialized classes have fixed {@code serialVersionUID}s.
+ * A checkpoint does not include the memory quota of the normalization, so a resumed normalization has none.
+ * Checkpoints are read with Java deserialization so they should be as trusted as the script.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class Checkpoint {
+
+	/** The first bytes of every checkpoint. */
+	static final byte[] MAGIC = {'P', 'l', 'n', 'C'};
+
+	/** The format version, to change whenever the evaluator state or the fields of the serialized term classes change. */
+	static final int VERSION = 2;
+
+	/** Stack size for serialization, which recurses through the terms (the memory is only used as far as the terms are deep). */
+	static final long STACK_SIZE = 1L << 30;
+
+	// Constructor.
+
+	/** No instances. */
+	private Checkpoint() {}
+
+	// Methods.
+
+	/**
+	 * Write checkpoint of a suspended normalization.
+	 * The checkpoint is written to a temporary file that then replaces any previous checkpoint,
+	 * so a crash while writing leaves the previous checkpoint intact.
+	 * @param normalization that is not running
+	 * @param file to write
+	 * @throws IOException if the checkpoint cannot be written
+	 * @throws PlankException if the normalization cannot be saved
+	 */
+	public static void write(Normalization normalization, Path file) throws IOException, PlankException {
+		final Path directory = file.toAbsolutePath().getParent();
+		final Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try {
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+				withStack(() -> {
+					write(normalization, out);
+					return null;
+				});
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Write checkpoint of a suspended normalization to a stream.
+	 * This needs a stack as deep as the terms (see {@link #STACK_SIZE}).
+	 * @param n normalization that is not running
+	 * @param out to write to
+	 * @throws IOException if the checkpoint cannot be written
+	 * @throws PlankException if the normalization cannot be saved
+	 */
+	public static void write(Normalization n, OutputStream out) throws IOException, PlankException {
+		if (n.done)
+			throw new PlankException("normalization is done");
+		final DataOutputStream header = new DataOutputStream(out);
+		header.write(MAGIC);
+		header.writeInt(VERSION);
+		header.flush();
+		final ObjectOutputStream objects = new ObjectOutputStream(out);
+		objects.writeObject(fingerprint(n.executable));
+		objects.writeInt(n.depth);
+		objects.writeLong(n.steps);
+		objects.writeInt(n.frontierDepth);
+		objects.writeBoolean(n.changed);
+		objects.writeBoolean(n.reducible);
+		objects.writeBoolean(n.blocked);
+		objects.writeBoolean(n.stable);
+		objects.writeObject(n.term);
+		objects.writeObject(n.schemeFailure);
+		objects.writeObject(n.lastFocus);
+		objects.writeObject(origins(n.candidates));
+		objects.writeObject(new ArrayList<>(n.sharedBlocked));
+		objects.writeInt(n.stack.size());
+		for (State state : n.stack) { // from the top
+			objects.writeObject(state.term);
+			objects.writeObject(state.path);
+			objects.writeBoolean(state.stable);
+			objects.writeObject(state.lastFocus);
+			objects.writeBoolean(state.changed);
+			objects.writeBoolean(state.blocked);
+			objects.writeObject(origins(state.candidates));
+		}
+		objects.flush();
+	}
+
+	/**
+	 * Read checkpoint to continue normalization.
+	 * @param executable with the same rules as the one that was normalizing
+	 * @param file to read
+	 * @return the normalization, suspended as it was when the checkpoint was written
+	 * @throws IOException if the checkpoint cannot be read
+	 * @throws PlankException if the checkpoint is not for the rules of the executable
+	 */
+	public static Normalization read(Executable executable, Path file) throws IOException, PlankException {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+			return withStack(() -> read(executable, in));
+		}
+	}
+
+	/**
+	 * Read checkpoint from a stream to continue normalization.
+	 * This needs a stack as deep as the terms (see {@link #STACK_SIZE}).
+	 * @param executable with the same rules as the one that was normalizing
+	 * @param in to read from
+	 * @return the normalization, suspended as it was when the checkpoint was written
+	 * @throws IOException if the checkpoint cannot be read
+	 * @throws PlankException if the checkpoint is not for the rules of the executable, from another version, or corrupt
+	 */
+	@SuppressWarnings("unchecked")
+	public static Normalization read(Executable executable, InputStream in) throws IOException, PlankException {
+		final DataInputStream header = new DataInputStream(in);
+		final byte[] magic = new byte[MAGIC.length];
+		header.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new PlankException("not a checkpoint");
+		final int version = header.readInt();
+		if (version != VERSION)
+			throw new PlankException("checkpoint has version %d rather than %d", version, VERSION);
+		try {
+			final ObjectInputStream objects = new ObjectInputStream(in);
+			if (!Arrays.equals((byte[]) objects.readObject(), fingerprint(executable)))
+				throw new PlankException("checkpoint is for different rules");
+			final Map<String, Rule> rules = executable.rules();
+			final int depth = objects.readInt();
+			final long steps = objects.readLong();
+			final int frontierDepth = objects.readInt();
+			final boolean changed = objects.readBoolean();
+			final boolean reducible = objects.readBoolean();
+			final boolean blocked = objects.readBoolean();
+			final boolean stable = objects.readBoolean();
+			final Normalization n = new Normalization(executable, (Term) objects.readObject(), depth, null);
+			n.steps = steps;
+			n.frontierDepth = frontierDepth;
+			n.changed = changed;
+			n.reducible = reducible;
+			n.blocked = blocked;
+			n.stable = stable;
+			n.schemeFailure = (org.crsx.plank.term.Path) objects.readObject();
+			n.lastFocus = (Step) objects.readObject();
+			n.candidates = candidates(rules, (String[]) objects.readObject());
+			n.sharedBlocked.addAll((List<Cons>) objects.readObject());
+			for (int i = objects.readInt(); i > 0; --i) {
+				final Term term = (Term) objects.readObject();
+				final org.crsx.plank.term.Path path = (org.crsx.plank.term.Path) objects.readObject();
+				final boolean stateStable = objects.readBoolean();
+				final Step lastFocus = (Step) objects.readObject();
+				final boolean stateChanged = objects.readBoolean();
+				final boolean stateBlocked = objects.readBoolean();
+				final List<Candidate> candidates = candidates(rules, (String[]) objects.readObject());
+				n.stack.addLast(new State(term, path, stateStable, lastFocus, stateChanged, stateBlocked, candidates));
+			}
+			return n;
+		} catch (ClassNotFoundException | ClassCastException | ObjectStreamException e) {
+			throw new PlankException(e, "corrupt checkpoint (%s)", e.getMessage());
+		}
+	}
+
+	/** Something to do with checkpoints. */
+	private interface Task<T> {
+		T run() throws IOException, PlankException;
+	}
+
+	/** Do task on a thread with a {@link #STACK_SIZE} stack, and wait for it. */
+	private static <T> T withStack(Task<T> task) throws IOException, PlankException {
+		final Object[] result = new Object[1];
+		final Throwable[] failure = new Throwable[1];
+		final Thread thread = new Thread(null, () -> {
+			try {
+				result[0] = task.run();
+			} catch (Throwable e) {
+				failure[0] = e;
+			}
+		}, "plank-checkpoint", STACK_SIZE);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new PlankException(e, "interrupted");
+		}
+		if (failure[0] instanceof IOException)
+			throw (IOException) failure[0];
+		if (failure[0] instanceof PlankException)
+			throw (PlankException) failure[0];
+		if (failure[0] instanceof RuntimeException)
+			throw (RuntimeException) failure[0];
+		if (failure[0] instanceof Error)
+			throw (Error) failure[0];
+		@SuppressWarnings("unchecked")
+		final T t = (T) result[0];
+		return t;
+	}
+
+	/** The fingerprint of the rules of an executable: the hash of their text in order of origin. */
+	private static byte[] fingerprint(Executable executable) throws PlankException {
+		final StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Rule> e : new TreeMap<>(executable.rules()).entrySet()) {
+			text.append(e.getKey()).append('\n');
+			e.getValue().appendRule(text, true);
+		}
+		return Snapshot.hash(text.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** The origins of the rules of candidates, or null for all rules. */
+	private static String[] origins(List<Candidate> candidates) {
+		if (candidates == null)
+			return null;
+		final String[] origins = new String[candidates.size()];
+		for (int i = 0; i < origins.length; ++i)
+			origins[i] = candidates.get(i).rule.origin();
+		return origins;
+	}
+
+	/** Candidates for the rules with the origins, to match from scratch, or null for all rules. */
+	private static List<Candidate> candidates(Map<String, Rule> rules, String[] origins) throws PlankException {
+		if (origins == null)
+			return null;
+		final List<Candidate> candidates = new ArrayList<>(origins.length);
+		for (String origin : origins) {
+			final Rule rule = rules.get(origin);
+			if (rule == null)
+				throw new PlankException("checkpoint refers to missing rule (%s)", origin);
+			candidates.add(new Candidate(rule, null));
+		}
+		return candidates;
+	}
+}
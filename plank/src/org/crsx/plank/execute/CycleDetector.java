@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.execute;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.loader.Rule;
+import org.crsx.plank.term.Cons;
+import org.crsx.plank.term.Term;
+
+/**
+ * Monitor that stops normalizations that cycle, i.e., where rewriting a redex leads back to the same redex.
+ * <p>
+ * The detector keeps a ring of the most recent rewrite steps, each with the rule, the {@link Position} of the redex
+ * (its path from the top of the term), and the structural hash of the redex ({@link Term#hashCode(int)})
+ * when the redex is small enough for the hash to cover all of it.
+ * When the steps of the last period repeat the steps of the two periods before it, with the same rules at the same positions
+ * on redexes with the same hashes, the normalization is considered to cycle and is stopped with a {@link PlankException}
+ * that reports the rules of the cycle.
+ * Equal redexes side by side are at different positions, so rewriting them one after the other is not a cycle.
+ * Cycles longer than a third of the ring or ending with a redex that the hash does not cover are not detected,
+ * so the detector only ever stops normalizations that are very likely to cycle, not all normalizations that diverge.
+ * A detector has state, so each normalization needs its own.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class CycleDetector implements Monitor {
+
+	/** The default number of recent steps to remember. */
+	public static final int DEFAULT_WINDOW = 64;
+
+	/** The default number of levels below the top of redexes to hash. */
+	public static final int DEFAULT_DEPTH = 16;
+
+	// State.
+
+	/** The number of levels below the top of redexes to hash. */
+	private final int _depth;
+
+	/** The rules of the recent steps, by step modulo the window. */
+	private final Rule[] _rule;
+
+	/** The positions of the redexes of the recent steps. */
+	private final Position[] _position;
+
+	/** Whether the hash of the recent steps covers the whole redex. */
+	private final boolean[] _covered;
+
+	/** The hashes of the redexes of the recent steps (when covered). */
+	private final int[] _hash;
+
+	/** The number of steps seen. */
+	private long _count;
+
+	// Constructors.
+
+	/** Create detector with the default window and depth. */
+	public CycleDetector() {
+		this(DEFAULT_WINDOW, DEFAULT_DEPTH);
+	}
+
+	/**
+	 * Create detector.
+	 * @param window the number of recent steps to remember, which should be three times the longest cycle to detect
+	 * @param depth the number of levels below the top of redexes to hash, which bounds the size of redexes in cycles to detect
+	 */
+	public CycleDetector(int window, int depth) {
+		_depth = depth;
+		_rule = new Rule[window];
+		_position = new Position[window];
+		_covered = new boolean[window];
+		_hash = new int[window];
+	}
+
+	// Monitor...
+
+	@Override
+	public void step(long steps) {}
+
+	@Override
+	public void step(long steps, Rule rule, Cons redex, Position position) throws PlankException {
+		final long now = _count++;
+		final int i = index(now);
+		final boolean covered = redex.isCoveredBy(_depth);
+		_rule[i] = rule;
+		_position[i] = position;
+		_covered[i] = covered;
+		_hash[i] = covered ? redex.hashCode(_depth) : 0;
+		if (!covered)
+			return;
+
+		// Look for a period such that the last two periods repeat the ones before them step by step.
+		Periods: for (int period = 1; 3 * period <= _rule.length && 3 * period <= now + 1; ++period) {
+			for (int j = 0; j < 2 * period; ++j) {
+				if (!same(index(now - j), index(now - j - period)))
+					continue Periods;
+			}
+			final List<String> rules = new ArrayList<>(period);
+			for (int j = period - 1; j >= 0; --j)
+				rules.add(_rule[index(now - j)].origin());
+			throw new PlankException("normalization cycles after %d steps: the rules %s lead back to the same redex", steps, String.join(", ", rules));
+		}
+	}
+
+	/** The ring index of a step. */
+	private int index(long step) {
+		return (int) (step % _rule.length);
+	}
+
+	/** Whether two recent steps are the same. */
+	private boolean same(int a, int b) {
+		return _rule[a] == _rule[b] && _covered[a] == _covered[b] && _hash[a] == _hash[b] && _position[a].equals(_position[b]);
+	}
+}
@@ -6,21 +6,30 @@ package org.crsx.plank.execute;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.crsx.plank.base.PlankException;
+import org.crsx.plank.base.Var;
 import org.crsx.plank.loader.Rule;
 import org.crsx.plank.term.Cons;
 import org.crsx.plank.term.Match;
+import org.crsx.plank.term.Meta;
 import org.crsx.plank.term.Path;
+import org.crsx.plank.term.Sink;
 import org.crsx.plank.term.Step;
 import org.crsx.plank.term.Term;
-import org.crsx.plank.term.Term.Kind;
 import org.crsx.plank.term.TermBuilder;
 
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 
 /**
  * Normalize input terms with the rewrite system.
@@ -30,17 +39,28 @@ public class Executable {
 	
 	// State.
 
-	/** The rules, by pattern constructor. */
-	private final ImmutableListMultimap<String, Rule> _constructorRules;
+	/** No subterms. */
+	private static final Term[] NO_TERMS = {};
+
+	/** The rules, by pattern constructor, as the initial candidates for functions with that constructor. */
+	private final ImmutableListMultimap<String, Candidate> _constructorRules;
+	
+	/** The arguments of schemes to evaluate before any rule is attempted, by constructor. */
+	private final ImmutableMap<String, int[]> _eager;
 	
 	// Constructor.
 	
-	/** Setup execution with the provided rules. */
-	public Executable(Map<String, Rule> rules) {
-		ImmutableListMultimap.Builder<String, Rule> b = ImmutableListMultimap.builder();
+	/**
+	 * Setup execution with the provided rules.
+	 * @param rules of the script
+	 * @param eager the scope indices of schemes to evaluate eagerly, by constructor (see {@link org.crsx.plank.loader.Loader#eagerArguments()})
+	 */
+	public Executable(Map<String, Rule> rules, Map<String, int[]> eager) {
+		ImmutableListMultimap.Builder<String, Candidate> b = ImmutableListMultimap.builder();
 		for (Rule rule : rules.values())
-			b.put(rule.pattern.form.name, rule);
+			b.put(rule.pattern.form.name, new Candidate(rule, null));
 		_constructorRules = b.build();
+		_eager = ImmutableMap.copyOf(eager);
 	}
 
 	// Helper classes.
@@ -49,7 +69,7 @@ public class Executable {
 	 * The state of evaluation at a certain level of the evaluator.
 	 * @author Kristoffer H. Rose <krisrose@crsx.org>
 	 */
-	final class State {
+	static final class State {
 		/** The term that we are considering for evaluation. */
 		final Term term;
 		/** The path we followed in the term in this state to the next (pushed after, or for top, the current state). */
@@ -62,157 +82,826 @@ public class Executable {
 		final boolean changed;
 		/** Whether we have tried all rules with only data failures for this one. */
 		final boolean blocked;
+		/** For a suspended function, the rules that may still match it, or null for all. */
+		final List<Candidate> candidates;
+		/** The position of the term that path leads to, or null until a monitor needs it. */
+		Position position;
 		/** Create a state (null only allowed for nfs to initialize as empty). */
-		private State(Term term, Path path, boolean stable, Step lastFocus, boolean changed, boolean blocked) {
+		State(Term term, Path path, boolean stable, Step lastFocus, boolean changed, boolean blocked, List<Candidate> candidates) {
 			this.term = term;
 			this.path = path;
 			this.stable = stable;
 			this.lastFocus = lastFocus;
 			this.changed = changed;
 			this.blocked = blocked;
+			this.candidates = candidates;
 		}
 		// TODO: toString?
 	}
 
+	/**
+	 * A rule that may match a function, with the failed match to resume if the function was suspended because of it.
+	 * @author Kristoffer H. Rose <krisrose@crsx.org>
+	 */
+	static final class Candidate {
+		/** The rule. */
+		final Rule rule;
+		/** Failed match of the rule against the function to {@link Match#resume()}, or null to match from scratch. */
+		final Match match;
+		/** Create candidate. */
+		Candidate(Rule rule, Match match) {
+			this.rule = rule;
+			this.match = match;
+		}
+	}
+
+	/**
+	 * A subterm being rebuilt by {@link Executable#renormalizeEdited(Term, Term, Term, List, Map)}.
+	 */
+	private static final class Rebuild {
+		/** The rebuild of the parent, or null at the top. */
+		final Rebuild parent;
+		/** Which subterm of the parent this is. */
+		final int index;
+		/** The subterm of the previous input. */
+		final Term old;
+		/** The normal form of old. */
+		final Term oldNormal;
+		/** The edited subterm (at the same path as old). */
+		final Term term;
+		/** Paths with an edit in term, all sharing the first depth steps (that lead to term). */
+		final List<List<Step>> edits;
+		/** The number of steps to get to term. */
+		final int depth;
+		/** When term is rebuilt as a data construction: its binders and subterms, so far. */
+		Var[][] binder;
+		Term[] sub;
+		/** The edits below each subterm, or null where there are none. */
+		List<List<List<Step>>> below;
+		/** The next subterm to consider. */
+		int next;
+		/** Create rebuild. */
+		Rebuild(Rebuild parent, int index, Term old, Term oldNormal, Term term, List<List<Step>> edits, int depth) {
+			this.parent = parent;
+			this.index = index;
+			this.old = old;
+			this.oldNormal = oldNormal;
+			this.term = term;
+			this.edits = edits;
+			this.depth = depth;
+		}
+		/**
+		 * Start rebuilding term as a data construction, with the old normal subterms where there are no edits,
+		 * if it is one on all the edit paths (that do not end here or step into an association).
+		 * @return whether term is rebuilt
+		 */
+		boolean start() {
+			boolean rebuild = term.tag == Term.CONS_TAG && !term.isFun() && aligned(old, oldNormal)
+					&& ((Cons) term).form.sameConstructor(((Cons) old).form);
+			for (List<Step> edit : edits) {
+				if (edit.size() == depth || !edit.get(depth).isScopeStep())
+					rebuild = false; // edited here or in an association
+			}
+			if (!rebuild)
+				return false;
+			final Cons cons = (Cons) term;
+			final Cons normal = (Cons) oldNormal;
+			final int scopeCount = cons.sub.length;
+			binder = new Var[scopeCount][];
+			sub = new Term[scopeCount];
+			below = new ArrayList<>(Collections.nCopies(scopeCount, (List<List<Step>>) null));
+			for (List<Step> edit : edits) {
+				final int i = edit.get(depth).index();
+				if (below.get(i) == null)
+					below.set(i, new ArrayList<>());
+				below.get(i).add(edit);
+			}
+			for (int i = 0; i < scopeCount; ++i) {
+				if (below.get(i) == null) {
+					binder[i] = normal.binder[i];
+					sub[i] = normal.sub[i].resolve();
+				} else {
+					binder[i] = cons.binder[i];
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A term with its full structural hash (see {@link Executable#shapeHashes(Term)}), as key of the reusable normal forms of
+	 * {@link Executable#renormalize(Term, Term, Term, Collection)}: unlike {@link Term#hashCode()} it includes every level,
+	 * so the many subterms of long repetitive terms do not all collide.
+	 */
+	private static final class Shape {
+		/** The term. */
+		final Term term;
+		/** Its full structural hash. */
+		final int hash;
+		/** Create key. */
+		Shape(Term term, int hash) {
+			this.term = term;
+			this.hash = hash;
+		}
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Shape && hash == ((Shape) obj).hash && term.equals(((Shape) obj).term);
+		}
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
 	// Methods.
 	
 	/**
 	 * Normalize term with the rules of the script.
 	 * The overall normalization strategy is to advance the "stable" above which all terms are data.
 	 * When a rule fails because of an unevaluated fragment, we suspend the normal evaluation to evaluate that fragment.
+	 * Constructions are marked {@link Cons#NORMAL} once they are known to be in normal form
+	 * and {@link Cons#BLOCKED} when no rule matches, so revisiting them is cheap.
+	 * Subterms duplicated by rules are shared rather than copied (see {@link Term#rewrite(org.crsx.plank.term.Sink, Match)}),
+	 * so they are normalized at most once: a rewritten {@link Cons#SHARED} function is forwarded to its result for all parents.
 	 * @param input to normalize - will be destroyed
 	 * @throws PlankException
 	 */
 	public Term normalize(Term input) throws PlankException {
+		return normalize(input, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Normalize the top of a term with the rules of the script.
+	 * Evaluation is as for {@link #normalize(Term)} except that it does not enter subterms below the given number of data constructions.
+	 * With depth 0 the result is in weak head normal form: a data construction, a variable, or a function no rule can rewrite.
+	 * Use {@link #lazy(Term)} to normalize further parts on demand.
+	 * @param input to normalize - will be destroyed
+	 * @param depth the number of levels of data constructions (and blocked functions) to normalize the subterms of
+	 * @throws PlankException
+	 */
+	public Term normalize(Term input, int depth) throws PlankException {
+		return normalize(input, depth, null);
+	}
+
+	/**
+	 * Normalize the top of a term with the rules of the script, informing a monitor of each rewrite step.
+	 * Evaluation is as for {@link #normalize(Term, int)}, and stops with the exception if the monitor throws one.
+	 * @param input to normalize - will be destroyed
+	 * @param depth the number of levels of data constructions (and blocked functions) to normalize the subterms of
+	 * @param monitor to call after each rewrite step, or null
+	 * @throws PlankException if evaluation fails or the monitor aborts it
+	 */
+	public Term normalize(Term input, int depth, Monitor monitor) throws PlankException {
+		return normalize(input, depth, monitor, null);
+	}
+
+	/**
+	 * Normalize the top of a term with the rules of the script within a memory quota.
+	 * Evaluation is as for {@link #normalize(Term, int, Monitor)}, except that when the term grows beyond the limit of the quota,
+	 * evaluation stops and returns the term as far as it has been normalized, with the reason in {@link Quota#exceeded()}.
+	 * If the quota has already been exceeded then the input is returned as it is.
+	 * @param input to normalize - will be destroyed
+	 * @param depth the number of levels of data constructions (and blocked functions) to normalize the subterms of
+	 * @param monitor to call after each rewrite step, or null
+	 * @param quota to account the nodes created and released by the rewrite steps with, or null for no limit
+	 * @return the normal form, or the partial term if the quota was exceeded
+	 * @throws PlankException if evaluation fails or the monitor aborts it
+	 */
+	public Term normalize(Term input, int depth, Monitor monitor, Quota quota) throws PlankException {
 		
  		//// Make copy?
  		//TermBuilder tb = Term.builder();
  		//input.send(tb);
  		//input = tb.build();
 
-		// Start evaluation with empty stack.
-		Deque<State> stack = new ArrayDeque<>();
+		return normalizePart(input, depth, monitor, quota, Position.TOP, new long[1]);
+	}
+
+	/**
+	 * Normalize the top of a term as part of a bigger normalization, continuing its count of rewrite steps.
+	 * @param input to normalize - will be destroyed
+	 * @param depth the number of levels of data constructions (and blocked functions) to normalize the subterms of
+	 * @param monitor to call after each rewrite step, or null
+	 * @param quota to account the nodes created and released by the rewrite steps with, or null for no limit
+	 * @param position of the term in the bigger term
+	 * @param steps the number of rewrite steps so far, as the only element, which is updated with the steps of this part
+	 * @return the normal form, or the partial term if the quota was exceeded
+	 * @throws PlankException if evaluation fails or the monitor aborts it
+	 */
+	private Term normalizePart(Term input, int depth, Monitor monitor, Quota quota, Position position, long[] steps) throws PlankException {
+		if (quota != null && quota.exceeded() != null)
+			return input;
+		final Normalization normalization = new Normalization(this, input, depth, quota);
+		normalization.top = position;
+		normalization.steps = steps[0];
+		run(normalization, Long.MAX_VALUE, monitor);
+		steps[0] = normalization.steps;
+		return normalization.term;
+	}
+
+	/**
+	 * Start normalization of a term, to run a slice of rewrite steps at a time with {@link Normalization#run(long, Monitor)}.
+	 * @param input to normalize - will be destroyed
+	 */
+	public Normalization start(Term input) {
+		return start(input, null);
+	}
+
+	/**
+	 * Start normalization of a term within a memory quota, to run a slice of rewrite steps at a time.
+	 * When the quota is exceeded the normalization is done, with the partial term (see {@link #normalize(Term, int, Monitor, Quota)}).
+	 * @param input to normalize - will be destroyed
+	 * @param quota to account the nodes created and released by the rewrite steps with, or null for no limit
+	 */
+	public Normalization start(Term input, Quota quota) {
+		return new Normalization(this, input, Integer.MAX_VALUE, quota);
+	}
+
+	/**
+	 * Continue normalization for a number of rewrite steps: the evaluator of {@link #normalize(Term, int, Monitor)}.
+	 * The work state is loaded from the normalization, and saved back if the steps run out before the term is normal.
+	 * @param n the normalization
+	 * @param quantum the largest number of rewrite steps to do before suspending
+	 * @param monitor to call after each rewrite step, or null
+	 * @return whether the normalization is done
+	 * @throws PlankException if evaluation fails or the monitor aborts it
+	 */
+	boolean run(Normalization n, long quantum, Monitor monitor) throws PlankException {
+
+		// Resume evaluation with the stack.
+		final Deque<State> stack = n.stack;
+		final int depth = n.depth;
+		final Quota quota = n.quota;
 		
 		// The work state.
-		Term term = input; // current work term
-		boolean changed = false; // did we modify the term?
-		boolean reducible = true; // whether we think the top term may be reducible
-		boolean blocked = false; // whether we know that this term is permanently irreducible
-		boolean variableFail = false; // we have failed with variables (so blocked but only until the context catches up)
-		Path schemeFailure = null; // we have failed with a scheme at the path if non-null
-		boolean stable = false; // true when all terms on stack as well as this term are in the stable top of the term 
-		Step lastFocus = null; // for walking the frontier - should be Path!
+		Term term = n.term; // current work term
+		boolean changed = n.changed; // did we modify the term?
+		boolean reducible = n.reducible; // whether we think the top term may be reducible
+		boolean blocked = n.blocked; // whether we know that this term is irreducible (as long as its subterms are unchanged)
+		Path schemeFailure = n.schemeFailure; // we have failed with a scheme at the path if non-null
+		boolean stable = n.stable; // true when all terms on stack as well as this term are in the stable top of the term 
+		Step lastFocus = n.lastFocus; // for walking the frontier - should be Path!
+		List<Candidate> candidates = n.candidates; // rules that may still match a resumed function, null for all
+		final List<Cons> sharedBlocked = n.sharedBlocked; // functions blocked by shared subterms that may change through another parent
+		int frontierDepth = n.frontierDepth; // number of frontier states on the stack, i.e., stable constructions above the term
+		long steps = n.steps; // number of rewrite steps so far
+		final long limit = quantum < Long.MAX_VALUE - steps ? steps + quantum : Long.MAX_VALUE; // suspend after this many steps
 		
 		// Main loop.
 		Evaluate: while (true) {
 
 			// Function.
 			if (term.isFun()) {
+				Cons fun = (Cons) term;
 				
 				// Evaluation: We have an unblocked function!
-				if (reducible) {
-					Cons fun = term.cons();
+				if (reducible && !fun.hasMark(Cons.BLOCKED)) {
+
+					// Needed and strict arguments are evaluated first, so the rules do not have to discover them one failure at a time.
+					if (candidates == null && _eager.containsKey(fun.form.name)) {
+						for (int i : _eager.get(fun.form.name)) {
+							final Term arg = fun.sub[i].resolve();
+							if (arg.isFun() && !isStuck(arg)) {
+								schemeFailure = Term.path().pushScopeStep(i);
+								reducible = false;
+								continue Evaluate;
+							}
+						}
+					}
 
 					// Assume the worst until proven otherwise...
-					blocked = true;
-					variableFail = true;
 					schemeFailure = null;
+					Match schemeMatch = null;
 
-					// Try the rules for the function to see if we get a match.
-					List<Rule> rules = _constructorRules.get(fun.form.name);
-					for (Rule rule : rules) {
+					// Try the candidate rules for the function to see if we get a match.
+					List<Candidate> tries = candidates != null ? candidates : _constructorRules.get(fun.form.name);
+					candidates = null;
+					final int tryCount = tries.size();
+					final Match[] failed = new Match[tryCount];
+					final boolean[] open = new boolean[tryCount];
+					boolean shared = false; // whether some failure may be lifted by evaluation through another parent
+					for (int i = 0; i < tryCount; ++i) {
+						Candidate candidate = tries.get(i);
 
-						// Try to match a rule.
-						Match match = rule.pattern.match(fun);
+						// Try to match a rule, continuing where a previous attempt stopped if possible.
+						Match match = candidate.match;
+						if (match == null || !match.resume())
+							match = candidate.rule.pattern.match(fun);
 						if (match.success) {
 
 							// We have a successful match...destructive rewrite and retry!
+							if (quota != null)
+								release(quota, candidate.rule.pattern, fun);
 							TermBuilder b = Term.builder();
-							rule.contractum.rewrite(b, match);
+							candidate.rule.contractum.rewrite(b, match);
 							term = b.build();
+							if (monitor != null)
+								monitor.step(++steps, candidate.rule, fun, position(n));
+							else
+								++steps;
+							if (fun.hasMark(Cons.SHARED))
+								fun.forward(term); // other parents must see the result too
 							changed = true;
 							// Reset state and restart loop.
 							blocked = false;
-							variableFail = false;
 							schemeFailure = null;
+							lastFocus = null;
+							if (quota != null && !quota.charge(b.nodes(), b.bytes(), steps)) {
+								// Out of memory: stop with the evaluated subterms put in place in the suspended terms.
+								while (!stack.isEmpty()) {
+									final State parent = stack.pop();
+									parent.term.update(parent.path, term);
+									term = parent.term;
+								}
+								n.term = term;
+								n.steps = steps;
+								n.done = true;
+								return true;
+							}
+							if (steps >= limit || n.suspending) {
+								// Suspend, with the state as it is when the loop restarts.
+								n.suspending = false;
+								n.term = term;
+								n.changed = changed;
+								n.reducible = reducible;
+								n.blocked = blocked;
+								n.schemeFailure = schemeFailure;
+								n.stable = stable;
+								n.lastFocus = lastFocus;
+								n.candidates = candidates;
+								n.frontierDepth = frontierDepth;
+								n.steps = steps;
+								return false;
+							}
 							continue Evaluate;
 
 						}
-						// The match failed. Update the state and try next rule...
-						variableFail = variableFail || match.variableFail;
-						blocked = blocked && match.alwaysFail;
-						if (schemeFailure == null && !match.alwaysFail && !match.variableFail)
-							schemeFailure = match.failurePath; // record first path to a reducible needed term
+						// The match failed. Record first path to a reducible needed term, if any, and try next rule...
+						failed[i] = match;
+						shared |= match.shared;
+						open[i] = !match.alwaysFail && !match.variableFail && !isStuck(match.failurePath.apply(fun));
+						if (schemeFailure == null && open[i]) {
+							schemeFailure = match.failurePath;
+							schemeMatch = match;
+						}
 						
 					} // rule loop
 
 					// All rules tried and failed. Restart evaluator with the state updated.
 					reducible = false;
+					if (schemeFailure == null) {
+						fun.addMarks(Cons.BLOCKED); // only changes to subterms can help
+						if (shared)
+							sharedBlocked.add(fun);
+					} else {
+						// Evaluating at schemeFailure can only help rules that are still open or failed inside it.
+						candidates = new ArrayList<>(tryCount);
+						for (int i = 0; i < tryCount; ++i) {
+							if (failed[i] == schemeMatch)
+								candidates.add(new Candidate(tries.get(i).rule, schemeMatch));
+							else if (open[i] || failed[i].failurePath.startsWith(schemeFailure))
+								candidates.add(new Candidate(tries.get(i).rule, null));
+						}
+					}
 					continue Evaluate;
 				}
 
 				// This function cannot reduce but we have a place to evaluate! Suspend this, switch to there, reset state, and restart.
 				if (schemeFailure != null) {
-					assert term.isFun() : "Suspending non-function for schemeFailure?";
-					stack.push(new State(term, schemeFailure, stable, lastFocus, changed, false));
+					stack.push(new State(term, schemeFailure, false, lastFocus, changed, false, candidates));
+					candidates = null;
 					term = schemeFailure.apply(term);
 					changed = false;
 					reducible = true;
 					stable = false;
 					blocked = false;
-					variableFail = false;
 					schemeFailure = null;
 					lastFocus = null;
 					continue Evaluate;
 				}
 				
 				// Function cannot make progress...fall through to refocusing.
+				blocked = true;
+			} else {
+				// Data and variables are irreducible at the top.
+				blocked = true;
 			}
 			
 			// All cases where the term cannot reduce come here. We have to move the focus elsewhere!
 			
 			stable = blocked && (stack.isEmpty() || stack.peek().stable); // update whether we're part of the stable top now
 			
-			if (stable) {
-				if (term.kind() == Kind.CONS) {
-					Cons cons = term.cons();
-
-					// 	If we are on the frontier with a usual construction then go brute force to first or next child...
-					Step child = lastFocus == null ? Step.first(cons) : lastFocus.next(term); // TODO: last/first/next function!
-					if (child != null) {
-						stack.push(new State(cons, Term.path().pushStep(child), stable, lastFocus, changed, blocked)); 
-						term = child.apply(term);
-						changed = false;
-						reducible = true;
-						stable = false;
-						lastFocus = null;
-						blocked = false;
-						variableFail = false;
-						schemeFailure = null;
-						continue Evaluate;
-					}
+			if (stable && term.tag == Term.CONS_TAG && frontierDepth < depth) {
+				Cons cons = (Cons) term;
+
+				// 	If we are on the frontier with a usual construction then go brute force to first or next child not already normal...
+				Step child = lastFocus == null ? Step.first(cons) : lastFocus.next(cons);
+				while (child != null && child.apply(cons).isNormal())
+					child = child.next(cons);
+				if (child != null) {
+					stack.push(new State(cons, Term.path().pushStep(child), stable, child, changed, blocked, null)); 
+					++frontierDepth;
+					term = child.apply(cons);
+					changed = false;
+					reducible = true;
+					stable = false;
+					lastFocus = null;
+					blocked = false;
+					schemeFailure = null;
+					continue Evaluate;
 				}
+				
+				// All children are normal so this is too.
+				cons.addMarks(Cons.NORMAL);
 			}
 			
 			// Stable and top term has no more children.
 			
 			// If this is the top term, we're done.
-			if (stack.isEmpty())
-				return term;
+			if (stack.isEmpty()) {
+				n.term = term;
+				n.steps = steps;
+				n.done = true;
+				return true;
+			}
 		
 			// Otherwise pop stack and repeat.
 			State parent = stack.pop();
-			if (changed)
+			if (parent.stable)
+				--frontierDepth;
+			if (changed && term.tag == Term.CONS_TAG && ((Cons) term).hasMark(Cons.SHARED)) {
+				// The change is visible from other parents, which may have been blocked by the old version.
+				for (Cons b : sharedBlocked)
+					b.clearMarks();
+				sharedBlocked.clear();
+			}
+			if (changed) {
 				parent.term.update(parent.path, term);
+				((Cons) parent.term).clearMarks(); // changed subterm may enable a rule
+			}
 			term = parent.term;
-			reducible = parent.stable || parent.blocked;
+			reducible = changed || !parent.stable; // suspended function must retry, stable one only when a subterm changed
 			stable = parent.stable;
 			lastFocus = parent.lastFocus;
-			changed = parent.changed;
-			blocked = parent.blocked;
-			variableFail = false;
+			changed = changed || parent.changed; // so ancestors learn that their subterm changed
+			blocked = parent.blocked && !changed;
 			schemeFailure = null;
+			candidates = parent.candidates;
 			continue Evaluate;
 		}
 	}
+	
+	/**
+	 * Normalize term, sending the normal form to the sink as it is computed.
+	 * Every data construction is final as soon as it is in head normal form, so it is sent right away,
+	 * and then its subterms are normalized and sent one by one, from left to right.
+	 * The last subterm is processed after the construction has been released, so when the result is a long list
+	 * (or other right-nested data) only the element being computed is kept, giving bounded memory.
+	 * Other terms, such as functions that no rule can rewrite and constructions with associations, are normalized as a whole
+	 * and then sent with {@link Sink#share(Term)}.
+	 * @param input to normalize - will be destroyed
+	 * @param sink to send the normal form to
+	 * @return the sink to use for subsequent events
+	 * @throws PlankException if evaluation or the sink fails
+	 */
+	public Sink normalize(Term input, Sink sink) throws PlankException {
+		return normalize(input, sink, null);
+	}
+
+	/**
+	 * Normalize term, sending the normal form to the sink as it is computed, informing a monitor of each rewrite step.
+	 * Evaluation is as for {@link #normalize(Term, Sink)}, in several parts, with the rewrite steps counted across all of them.
+	 * @param input to normalize - will be destroyed
+	 * @param sink to send the normal form to
+	 * @param monitor to call after each rewrite step, or null
+	 * @return the sink to use for subsequent events
+	 * @throws PlankException if evaluation or the sink fails, or the monitor aborts evaluation
+	 */
+	public Sink normalize(Term input, Sink sink, Monitor monitor) throws PlankException {
+		return normalize(input, sink, monitor, null);
+	}
+
+	/**
+	 * Normalize term within a memory quota, sending the normal form to the sink as it is computed.
+	 * Evaluation is as for {@link #normalize(Term, Sink, Monitor)}, with all the parts accounted with the one quota.
+	 * When the quota is exceeded evaluation stops, and the rest of the term is sent as far as it has been normalized,
+	 * with the reason in {@link Quota#exceeded()}.
+	 * @param input to normalize - will be destroyed
+	 * @param sink to send the normal form to
+	 * @param monitor to call after each rewrite step, or null
+	 * @param quota to account the nodes created and released by the rewrite steps with, or null for no limit
+	 * @return the sink to use for subsequent events
+	 * @throws PlankException if evaluation or the sink fails, or the monitor aborts evaluation
+	 */
+	public Sink normalize(Term input, Sink sink, Monitor monitor, Quota quota) throws PlankException {
+		return normalizeParts(input, sink, monitor, quota, Position.TOP, new long[1]);
+	}
+
+	/**
+	 * Normalize term in parts for {@link #normalize(Term, Sink, Monitor, Quota)}, sending each part to the sink as it is done.
+	 * @param position of the term in the whole term, for the monitor
+	 * @param steps the number of rewrite steps so far, as the only element, which is updated with the steps of the parts
+	 */
+	private Sink normalizeParts(Term input, Sink sink, Monitor monitor, Quota quota, Position position, long[] steps) throws PlankException {
+		Term term = input;
+		int closes = 0; // constructions that have been sent and released, with only the last scope remaining
+		while (true) {
+			term = normalizePart(term, 0, monitor, quota, position, steps);
+			if (term.tag == Term.CONS_TAG && !term.isFun() && !term.isNormal()) {
+				final Cons cons = (Cons) term;
+				final int last = cons.sub.length - 1;
+				if (last >= 0 && cons.assoc.length == 0) {
+					// Data construction in head normal form: send it and its subterms.
+					sink = sink.open(cons.origin(), cons.sort(), cons.form);
+					for (int i = 0; i < last; ++i) {
+						sink = sink.scope(cons.binder[i]);
+						sink = normalizeParts(cons.sub[i].resolve(), sink, monitor, quota, new Position(position, Term.path().pushScopeStep(i)), steps);
+					}
+					sink = sink.scope(cons.binder[last]);
+					term = cons.sub[last].resolve(); // and forget cons
+					position = new Position(position, Term.path().pushScopeStep(last));
+					++closes;
+					continue;
+				}
+			}
+			sink = sink.share(normalizePart(term, Integer.MAX_VALUE, monitor, quota, position, steps));
+			break;
+		}
+		while (closes-- > 0)
+			sink = sink.close();
+		return sink;
+	}
+
+	/**
+	 * Normalize term asynchronously, as a single task on an executor.
+	 * Cancelling the returned future stops the normalization at its next rewrite step.
+	 * Normalization does not block, so each task only occupies a thread of the executor while it computes.
+	 * @param input to normalize - will be destroyed
+	 * @param executor to run the normalization on
+	 * @param monitor to call after each rewrite step (on the thread of the normalization), for example to report progress, or null
+	 * @return the future normal form, which fails with the {@link PlankException} if evaluation fails
+	 */
+	public CompletableFuture<Term> normalizeAsync(Term input, Executor executor, Monitor monitor) {
+		final CompletableFuture<Term> result = new CompletableFuture<>();
+		executor.execute(() -> {
+			if (result.isDone())
+				return; // cancelled while queued
+			try {
+				result.complete(normalize(input, Integer.MAX_VALUE, steps -> {
+					if (result.isCancelled())
+						throw new PlankException("normalization cancelled after %d steps", steps);
+					if (monitor != null)
+						monitor.step(steps);
+				}));
+			} catch (Throwable e) {
+				result.completeExceptionally(e); // including stack overflow, so the future always completes
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Normalize term asynchronously, as a single task on an executor.
+	 * @param input to normalize - will be destroyed
+	 * @param executor to run the normalization on
+	 * @return the future normal form
+	 * @see #normalizeAsync(Term, Executor, Monitor)
+	 */
+	public CompletableFuture<Term> normalizeAsync(Term input, Executor executor) {
+		return normalizeAsync(input, executor, null);
+	}
+
+	/** The rules, by origin (which identifies them within the script). */
+	Map<String, Rule> rules() {
+		final Map<String, Rule> rules = new HashMap<>();
+		for (Candidate candidate : _constructorRules.values())
+			rules.put(candidate.rule.origin(), candidate.rule);
+		return rules;
+	}
+
+	/**
+	 * Create handle to evaluate a term on demand.
+	 * @param input to evaluate - will be destroyed as parts are forced
+	 */
+	public Lazy lazy(Term input) {
+		return new Lazy(this, input);
+	}
+
+	/**
+	 * Normalize an edited term, reusing what is known from normalizing it before the edits.
+	 * Data constructions are never rewritten, so the old normal form contains the old normal form of every subterm
+	 * that is only below data constructions: along the path to each edit such data constructions are rebuilt,
+	 * their unedited subterms are taken from the old normal form as is, and only the edited fragments are normalized.
+	 * Before that, each part of the edited fragments that is structurally equal to a (data-reachable) part of the fragment it replaced,
+	 * found by a full structural hash, is replaced by the old normal form of that.
+	 * Thus the work is proportional to the size of the edits rather than the size of the term.
+	 * Note that this assumes that the rules are confluent, since subterms are normalized in a different order than from scratch.
+	 * @param previousInput the input before the edits (must not have been normalized, and is not changed)
+	 * @param previousNormal the normal form of previousInput (not changed, but shared with the result)
+	 * @param input the edited input, which is previousInput with the subterms at the edit paths replaced - will be destroyed
+	 * @param edits the paths to the replaced subterms of input
+	 * @throws PlankException if an edit path is not valid for both inputs
+	 */
+	public Term renormalize(Term previousInput, Term previousNormal, Term input, Collection<Path> edits) throws PlankException {
+		if (edits.isEmpty())
+			return previousNormal;
+		
+		// Old normal forms of the replaced fragments and their parts, by structure.
+		Map<Shape, Term> reusable = new HashMap<>();
+		List<List<Step>> steps = new ArrayList<>(edits.size());
+		for (Path edit : edits) {
+			List<Step> s = new ArrayList<>(edit.size());
+			Term old = previousInput;
+			Term oldNormal = previousNormal;
+			for (Step step : edit) {
+				s.add(step);
+				if (oldNormal != null && aligned(old, oldNormal) && step.isScopeStep())
+					oldNormal = step.apply(oldNormal);
+				else
+					oldNormal = null; // we have passed a function so do not know the normal form
+				old = step.apply(old);
+			}
+			steps.add(s);
+			if (oldNormal != null)
+				addReusable(reusable, old, oldNormal);
+		}
+		
+		return renormalizeEdited(previousInput, previousNormal, input, steps, reusable);
+	}
+	
+	/**
+	 * Rebuild an edited term for {@link #renormalize(Term, Term, Term, Collection)},
+	 * using an explicit stack of the data constructions being rebuilt so long edit paths do not overflow the thread stack.
+	 * @param old the previous input
+	 * @param oldNormal the normal form of old
+	 * @param term the edited input
+	 * @param edits paths with an edit in term
+	 * @param reusable old normal forms by structure
+	 */
+	private Term renormalizeEdited(Term old, Term oldNormal, Term term, List<List<Step>> edits, Map<Shape, Term> reusable)
+			throws PlankException {
+		final ArrayDeque<Rebuild> pending = new ArrayDeque<>();
+		pending.push(new Rebuild(null, -1, old, oldNormal, term, edits, 0));
+		Term result = null;
+		while (!pending.isEmpty()) {
+			final Rebuild r = pending.peek();
+			if (r.sub == null && !r.start()) {
+				// Edited here (or not a data construction): normalize, reusing old normal forms of equal parts.
+				result = normalize(reuseNormal(r.term, reusable));
+			} else {
+				final Cons cons = (Cons) r.term;
+				final Cons normal = (Cons) r.oldNormal;
+				while (r.next < cons.sub.length && r.below.get(r.next) == null)
+					++r.next;
+				if (r.next < cons.sub.length) {
+					final int i = r.next++;
+					pending.push(new Rebuild(r, i, ((Cons) r.old).sub[i].resolve(), normal.sub[i].resolve(), cons.sub[i].resolve(), r.below.get(i), r.depth + 1));
+					continue;
+				}
+				// All edited subterms done: rebuild with the old normal subterms except where edited.
+				boolean allNormal = true;
+				for (Term s : r.sub)
+					allNormal &= s.isNormal();
+				Cons rebuilt = Term.mkCons(cons.origin(), cons.sort(), cons.form, r.binder, r.sub, normal.assoc);
+				if (allNormal)
+					rebuilt.addMarks(Cons.NORMAL);
+				result = rebuilt;
+			}
+			pending.pop();
+			if (r.parent != null)
+				r.parent.sub[r.index] = result;
+		}
+		return result;
+	}
+	
+	/** Whether a subterm of an input is a data construction, so its normal form has the same construction with the normal forms of its subterms. */
+	private static boolean aligned(Term old, Term oldNormal) {
+		return old.tag == Term.CONS_TAG && !old.isFun() && oldNormal.tag == Term.CONS_TAG
+				&& ((Cons) old).form.sameConstructor(((Cons) oldNormal).form);
+	}
+	
+	/** Record the normal form of an old subterm and of its subterms below data constructions (iteratively, in preorder). */
+	private static void addReusable(Map<Shape, Term> reusable, Term old, Term oldNormal) {
+		final Map<Term, Integer> hashes = shapeHashes(old);
+		final ArrayDeque<Term> pending = new ArrayDeque<>(); // pairs of old subterm on top of its normal form
+		pending.push(oldNormal);
+		pending.push(old);
+		while (!pending.isEmpty()) {
+			final Term term = pending.pop();
+			final Term normal = pending.pop();
+			reusable.put(new Shape(term, hashes.get(term)), normal);
+			if (aligned(term, normal)) {
+				final Cons cons = (Cons) term;
+				final Cons normalCons = (Cons) normal;
+				for (int i = cons.sub.length - 1; i >= 0; --i) {
+					pending.push(normalCons.sub[i].resolve());
+					pending.push(cons.sub[i].resolve());
+				}
+			}
+		}
+	}
+	
+	/** Replace (in place) every maximal scope subterm that has a reusable normal form with that normal form (iteratively). */
+	private static Term reuseNormal(Term term, Map<Shape, Term> reusable) {
+		if (reusable.isEmpty())
+			return term;
+		final Map<Term, Integer> hashes = shapeHashes(term);
+		final Term normal = reusable.get(new Shape(term, hashes.get(term)));
+		if (normal != null)
+			return normal;
+		final ArrayDeque<Term> pending = new ArrayDeque<>();
+		pending.push(term);
+		while (!pending.isEmpty()) {
+			final Term t = pending.pop();
+			if (t.tag != Term.CONS_TAG || t.isNormal())
+				continue;
+			final Cons cons = (Cons) t;
+			for (int i = 0; i < cons.sub.length; ++i) {
+				final Term sub = cons.sub[i].resolve();
+				final Term reused = reusable.get(new Shape(sub, hashes.get(sub)));
+				if (reused == null) {
+					pending.push(sub);
+				} else if (reused != sub) {
+					cons.sub[i] = reused;
+					cons.clearMarks();
+				}
+			}
+		}
+		return term;
+	}
+	
+	/**
+	 * Compute the full structural hash of a term and all its subterms, bottom-up with an explicit stack.
+	 * Variables all hash the same, so the hash is consistent with {@link Term#equals(Object)}, which renames bound variables.
+	 * @return the hashes by subterm identity
+	 */
+	private static Map<Term, Integer> shapeHashes(Term term) {
+		final Map<Term, Integer> hashes = new IdentityHashMap<>();
+		final ArrayDeque<Term> pending = new ArrayDeque<>();
+		pending.push(term.resolve());
+		while (!pending.isEmpty()) {
+			final Term t = pending.peek();
+			if (hashes.containsKey(t)) {
+				pending.pop();
+				continue;
+			}
+			final Term[] sub = t.tag == Term.CONS_TAG ? ((Cons) t).sub : t.tag == Term.META_TAG ? ((Meta) t).sub : NO_TERMS;
+			boolean ready = true;
+			for (Term s : sub) {
+				if (!hashes.containsKey(s.resolve())) {
+					pending.push(s.resolve());
+					ready = false;
+				}
+			}
+			if (ready) {
+				pending.pop();
+				int h = t.tag == Term.CONS_TAG ? ((Cons) t).form.name.hashCode() : t.tag == Term.META_TAG ? ((Meta) t).name.hashCode() : 1;
+				for (Term s : sub)
+					h = 31 * h + hashes.get(s.resolve());
+				hashes.put(t, h);
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * The position of the current term of a normalization, which is below the suspended terms on its stack.
+	 * Only the positions of the states pushed since the last call are computed, so this costs little when called for every step.
+	 */
+	private static Position position(Normalization n) {
+		final ArrayDeque<State> missing = new ArrayDeque<>();
+		Position position = n.top;
+		for (State state : n.stack) { // from the top
+			if (state.position != null) {
+				position = state.position;
+				break;
+			}
+			missing.push(state);
+		}
+		while (!missing.isEmpty()) {
+			final State state = missing.pop();
+			position = state.position = new Position(position, state.path);
+		}
+		return position;
+	}
+
+	/** Whether evaluating the term is pointless because it is normal or a blocked function. */
+	private static boolean isStuck(Term term) {
+		return term.isNormal() || (term.isFun() && ((Cons) term).hasMark(Cons.BLOCKED));
+	}
+
+	/**
+	 * Credit the quota with the nodes of a redex that a rewrite releases:
+	 * those matched by the constructions of the pattern, except shared ones (and their subterms) that other parents may still use.
+	 */
+	private static void release(Quota quota, Cons pattern, Term term) {
+		if (term.tag != Term.CONS_TAG || ((Cons) term).hasMark(Cons.SHARED))
+			return;
+		final Cons cons = (Cons) term;
+		quota.charge(-1, -cons.footprint(), 0);
+		for (int i = 0; i < pattern.sub.length; ++i) {
+			if (pattern.sub[i].tag == Term.CONS_TAG)
+				release(quota, (Cons) pattern.sub[i], cons.sub[i]);
+		}
+	}
 }
\ No newline at end of file
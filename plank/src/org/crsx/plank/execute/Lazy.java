@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.execute;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.term.Path;
+import org.crsx.plank.term.Step;
+import org.crsx.plank.term.Term;
+
+/**
+ * Handle to a term that is only evaluated as far as it is inspected.
+ * The head of the term is computed on the first call to {@link #head()}, and each subterm is only evaluated when its handle is.
+ * Subterms are evaluated in place, so the term seen through the root handle improves as handles below it are forced.
+ * @see Executable#lazy(Term)
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class Lazy {
+
+	// State.
+
+	/** The executable to evaluate with. */
+	private final Executable _executable;
+
+	/** The handle of the parent, or null for the root. */
+	private final Lazy _parent;
+
+	/** The step from the parent's head to this, or null for the root. */
+	private final Step _step;
+
+	/** The term, in weak head normal form once {@link #_forced}. */
+	private Term _term;
+
+	/** Whether the term has been evaluated to weak head normal form. */
+	private boolean _forced;
+
+	// Constructor.
+
+	/** Create handle. */
+	Lazy(Executable executable, Term term) {
+		this(executable, null, null, term);
+	}
+
+	/** Create handle for subterm. */
+	private Lazy(Executable executable, Lazy parent, Step step, Term term) {
+		_executable = executable;
+		_parent = parent;
+		_step = step;
+		_term = term;
+	}
+
+	// Methods.
+
+	/**
+	 * The term in weak head normal form: a data construction, a variable, or a function that no rule can rewrite.
+	 * The subterms are only evaluated as far as handles for them have been forced.
+	 * @throws PlankException if evaluation fails
+	 */
+	public Term head() throws PlankException {
+		if (!_forced) {
+			replace(_executable.normalize(_term, 0));
+			_forced = true;
+		}
+		return _term;
+	}
+
+	/**
+	 * Handle for a subterm of the head, which is not evaluated until it is inspected.
+	 * Use {@link Step#first(Term)} and {@link Step#next(Term)} on {@link #head()} to find the steps.
+	 * @param step to follow from the head
+	 * @throws PlankException if the step is not valid for the head
+	 */
+	public Lazy sub(Step step) throws PlankException {
+		return new Lazy(_executable, this, step, step.apply(head()));
+	}
+
+	/**
+	 * Handle for the subterm at the end of a path, forcing the heads on the way.
+	 * @param path to follow from the head
+	 * @throws PlankException if the path is not valid
+	 */
+	public Lazy sub(Path path) throws PlankException {
+		Lazy lazy = this;
+		for (Step step : path)
+			lazy = lazy.sub(step);
+		return lazy;
+	}
+
+	/**
+	 * The normal form of the term, forcing everything that is left.
+	 * @throws PlankException if evaluation fails
+	 */
+	public Term normal() throws PlankException {
+		replace(_executable.normalize(head()));
+		return _term;
+	}
+
+	/** Use evaluated term, also in the parent term, which is no longer known to be blocked. */
+	private void replace(Term term) throws PlankException {
+		if (term != _term && _parent != null) {
+			final Term parent = _parent.head();
+			parent.update(Term.path().pushStep(_step), term);
+			parent.cons().clearMarks();
+		}
+		_term = term;
+	}
+}
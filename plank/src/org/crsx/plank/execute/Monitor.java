@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.execute;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.loader.Rule;
+import org.crsx.plank.term.Cons;
+
+/**
+ * Observer of the rewrite steps of a normalization, which can also stop it.
+ * @see Executable#normalize(org.crsx.plank.term.Term, int, Monitor)
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+@FunctionalInterface
+public interface Monitor {
+
+	/**
+	 * Called after each rewrite step.
+	 * @param steps the number of rewrite steps of the normalization so far
+	 * @throws PlankException to abort the normalization
+	 */
+	void step(long steps) throws PlankException;
+
+	/**
+	 * Called after each rewrite step with what was rewritten, before the redex is replaced by the contractum.
+	 * By default this just calls {@link #step(long)}.
+	 * @param steps the number of rewrite steps of the normalization so far
+	 * @param rule that was applied
+	 * @param redex the function that was rewritten, which must not be changed
+	 * @param position the position of the redex in the term being normalized
+	 * @throws PlankException to abort the normalization
+	 */
+	default void step(long steps, Rule rule, Cons redex, Position position) throws PlankException {
+		step(steps);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.execute;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.execute.Executable.Candidate;
+import org.crsx.plank.execute.Executable.State;
+import org.crsx.plank.term.Cons;
+import org.crsx.plank.term.Path;
+import org.crsx.plank.term.Step;
+import org.crsx.plank.term.Term;
+
+/**
+ * A normalization in progress, which can be run a slice of rewrite steps at a time.
+ * The fields are the complete state of the evaluator of {@link Executable#normalize(Term, int, Monitor)} between two rewrite steps:
+ * they are loaded when it is run and saved when it is suspended.
+ * @see Executable#start(Term)
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class Normalization {
+
+	// State.
+
+	/** The executable to normalize with. */
+	final Executable executable;
+
+	/** The number of levels of data constructions to normalize the subterms of. */
+	final int depth;
+
+	/** The memory quota to account the rewrite steps with, or null. */
+	final Quota quota;
+
+	/** Whether the term is normal. */
+	boolean done;
+
+	/** The suspended evaluation states above the current term. */
+	final Deque<State> stack = new ArrayDeque<>();
+
+	/** The current work term, or the result when done. */
+	Term term;
+	/** Whether the term has been modified. */
+	boolean changed;
+	/** Whether the term may be reducible at the top. */
+	boolean reducible = true;
+	/** Whether the term is known to be irreducible (as long as its subterms are unchanged). */
+	boolean blocked;
+	/** Path where a scheme failed, or null. */
+	Path schemeFailure;
+	/** Whether all terms on the stack as well as the term are in the stable top. */
+	boolean stable;
+	/** For walking the frontier. */
+	Step lastFocus;
+	/** Rules that may still match a resumed function, or null for all. */
+	List<Candidate> candidates;
+	/** Functions blocked by shared subterms that may change through another parent. */
+	final List<Cons> sharedBlocked = new ArrayList<>();
+	/** Number of frontier states on the stack. */
+	int frontierDepth;
+	/** Number of rewrite steps so far. */
+	long steps;
+	/** The position of the term in the term of a bigger normalization that it is part of, or the top. */
+	Position top = Position.TOP;
+
+	/** Whether the normalization should suspend at the next rewrite step, as requested by {@link #suspend()}. */
+	volatile boolean suspending;
+
+	// Constructor.
+
+	/**
+	 * Prepare normalization.
+	 * @param executable to normalize with
+	 * @param input to normalize - will be destroyed
+	 * @param depth the number of levels of data constructions to normalize the subterms of
+	 * @param quota the memory quota to account the rewrite steps with, or null
+	 */
+	Normalization(Executable executable, Term input, int depth, Quota quota) {
+		this.executable = executable;
+		this.depth = depth;
+		this.quota = quota;
+		this.term = input;
+	}
+
+	// Methods.
+
+	/**
+	 * Continue normalization for a number of rewrite steps.
+	 * @param quantum the largest number of rewrite steps to do before suspending
+	 * @param monitor to call after each rewrite step, or null
+	 * @return whether the normalization is done
+	 * @throws PlankException if evaluation fails or the monitor aborts it, after which the normalization cannot continue
+	 */
+	public boolean run(long quantum, Monitor monitor) throws PlankException {
+		return done || executable.run(this, quantum, monitor);
+	}
+
+	/**
+	 * Ask the normalization to suspend at its next rewrite step, from any thread.
+	 * The current (or next) {@link #run(long, Monitor)} then returns, for example so a {@link Checkpoint} can be written.
+	 */
+	public void suspend() {
+		suspending = true;
+	}
+
+	/** Whether the normalization is done. */
+	public boolean isDone() {
+		return done;
+	}
+
+	/** The number of rewrite steps so far. */
+	public long steps() {
+		return steps;
+	}
+
+	/**
+	 * The normal form, or the term as far as it was normalized when the memory quota was exceeded (see {@link Quota#exceeded()}).
+	 * @throws PlankException if the normalization is not done
+	 */
+	public Term term() throws PlankException {
+		if (!done)
+			throw new PlankException("normalization is not done after %d steps", steps);
+		return term;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.execute;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.crsx.plank.term.Path;
+import org.crsx.plank.term.Step;
+import org.crsx.plank.term.Term;
+
+/**
+ * The position of a redex in the term being normalized: the path to it from the top of the term.
+ * The position is kept as the position of the suspended term above the redex followed by the steps from there,
+ * so the positions of the redexes below the same suspended term share it, and the evaluator can give the position of every
+ * rewrite step to a {@link Monitor} without copying paths.
+ * Positions are equal when their paths are.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class Position {
+
+	/** The top of the term. */
+	static final Position TOP = new Position(null, Term.path());
+
+	// State.
+
+	/** The position of the suspended term that the steps start from, or null for the top. */
+	private final Position _parent;
+
+	/** The steps from the parent position. */
+	private final Step[] _steps;
+
+	/** The total number of steps from the top. */
+	private final int _size;
+
+	/** Hash of all the steps from the top. */
+	private final int _hash;
+
+	// Constructor.
+
+	/**
+	 * Create position.
+	 * @param parent the position to start from, or null for the top
+	 * @param path the steps from parent (copied)
+	 */
+	Position(Position parent, Path path) {
+		final List<Step> steps = new ArrayList<>(path.size());
+		for (Step step : path)
+			steps.add(step);
+		_parent = parent;
+		_steps = steps.toArray(new Step[steps.size()]);
+		int size = parent == null ? 0 : parent._size;
+		int hash = parent == null ? 0 : parent._hash;
+		for (Step step : _steps) {
+			++size;
+			hash = 31 * hash + step.hashCode();
+		}
+		_size = size;
+		_hash = hash;
+	}
+
+	// Methods.
+
+	/** The number of steps from the top. */
+	public int size() {
+		return _size;
+	}
+
+	/** The path from the top of the term to the position. */
+	public Path path() {
+		final Path path = Term.path();
+		for (Position p = this; p != null; p = p._parent) {
+			for (int i = p._steps.length - 1; i >= 0; --i)
+				path.pushStep(p._steps[i]);
+		}
+		return path;
+	}
+
+	/** All the steps from the top, in order. */
+	private Step[] steps() {
+		final Step[] steps = new Step[_size];
+		int end = _size;
+		for (Position p = this; p != null; p = p._parent) {
+			end -= p._steps.length;
+			System.arraycopy(p._steps, 0, steps, end, p._steps.length);
+		}
+		return steps;
+	}
+
+	// Object...
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Position))
+			return false;
+		Position a = this;
+		Position b = (Position) obj;
+		if (a._size != b._size || a._hash != b._hash)
+			return false;
+		// Compare the steps back to a shared parent, unless the positions are split into different parts.
+		while (a != b) {
+			if (a == null || b == null || a._steps.length != b._steps.length)
+				return Arrays.equals(steps(), ((Position) obj).steps());
+			if (!Arrays.equals(a._steps, b._steps))
+				return false;
+			a = a._parent;
+			b = b._parent;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return _hash;
+	}
+
+	@Override
+	public String toString() {
+		return path().toString();
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.execute;
+
+/**
+ * Memory quota of a normalization call, with the accounting of the nodes the normalization creates and releases.
+ * <p>
+ * Every rewrite step is charged the nodes built for the contractum (see {@link org.crsx.plank.term.TermBuilder#nodes()}),
+ * and credited the nodes of the redex that the rule consumes, which are those matched by the constructions of the pattern
+ * unless they are shared with other parents. The accounts thus track the growth of the live term over the input,
+ * in nodes and in approximate bytes (see {@link org.crsx.plank.term.Term#footprint()}),
+ * along with the high-water marks of both.
+ * Subterms matched by meta-variables that the contractum drops are not credited, since finding their size would take a walk
+ * through them, so the accounts can overestimate the growth (but never miss growth by the rules).
+ * When the bytes exceed the limit the normalization stops with the term as far as it has come,
+ * and {@link #exceeded()} explains why.
+ * A quota can be used for several normalizations, which are then accounted together, as for the parts of
+ * {@link Executable#normalize(org.crsx.plank.term.Term, org.crsx.plank.term.Sink, Monitor, Quota)}.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class Quota {
+
+	// State.
+
+	/** The largest approximate number of bytes that normalization may add to the term. */
+	private final long _limit;
+
+	/** The number of nodes added to the term. */
+	private long _nodes;
+
+	/** The approximate number of bytes added to the term. */
+	private long _bytes;
+
+	/** The largest number of nodes added to the term at any one time. */
+	private long _peakNodes;
+
+	/** The largest approximate number of bytes added to the term at any one time. */
+	private long _peakBytes;
+
+	/** Why normalization was stopped, or null. */
+	private String _exceeded;
+
+	// Constructor.
+
+	/**
+	 * Create quota.
+	 * @param limit the largest approximate number of bytes that normalization may add to the term
+	 */
+	public Quota(long limit) {
+		if (limit < 1)
+			throw new IllegalArgumentException("quota needs a positive limit");
+		_limit = limit;
+	}
+
+	// Methods.
+
+	/** The largest approximate number of bytes that normalization may add to the term. */
+	public long limit() {
+		return _limit;
+	}
+
+	/** The number of nodes that normalization has added to the term so far (negative when it has released more than it created). */
+	public long nodes() {
+		return _nodes;
+	}
+
+	/** The approximate number of bytes that normalization has added to the term so far. */
+	public long bytes() {
+		return _bytes;
+	}
+
+	/** The high-water mark of {@link #nodes()}. */
+	public long peakNodes() {
+		return _peakNodes;
+	}
+
+	/** The high-water mark of {@link #bytes()}. */
+	public long peakBytes() {
+		return _peakBytes;
+	}
+
+	/** Why normalization was stopped before the term was normal, or null if the limit was never exceeded. */
+	public String exceeded() {
+		return _exceeded;
+	}
+
+	/**
+	 * Account for a rewrite step.
+	 * @param nodes the number of nodes created less the number released
+	 * @param bytes the approximate number of bytes created less the number released
+	 * @param steps the number of rewrite steps of the normalization so far, for the explanation
+	 * @return whether the normalization is still within the limit
+	 */
+	boolean charge(long nodes, long bytes, long steps) {
+		_nodes += nodes;
+		_bytes += bytes;
+		if (_nodes > _peakNodes)
+			_peakNodes = _nodes;
+		if (_bytes > _peakBytes)
+			_peakBytes = _bytes;
+		if (_bytes <= _limit)
+			return true;
+		_exceeded = String.format("normalization exceeded the memory limit of %d bytes with %d nodes (about %d bytes) after %d steps", _limit, _nodes, _bytes, steps);
+		return false;
+	}
+
+	// Object...
+
+	@Override
+	public String toString() {
+		return String.format("%d nodes (about %d bytes), at most %d nodes (about %d bytes) of %d", _nodes, _bytes, _peakNodes, _peakBytes, _limit);
+	}
+}
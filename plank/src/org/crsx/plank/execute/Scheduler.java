@@ -0,0 +1,198 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.execute;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.term.Term;
+
+/**
+ * Runs many normalizations on a fixed number of worker threads, time-sliced so large normalizations do not hold up small ones.
+ * <p>
+ * Each job runs for a quantum of rewrite steps at a time (see {@link Normalization#run(long, Monitor)}) and is then queued again
+ * behind the jobs that are waiting, so a job that needs few steps is done after waiting for at most one quantum of each job ahead of it.
+ * Jobs with higher priority always go first; among jobs of the same priority those with a deadline go first, earliest deadline first.
+ * A job that has not finished by its deadline fails with a {@link PlankException}, and a job whose future is cancelled is dropped;
+ * both take effect when the job's current quantum ends.
+ * A job with a memory {@link Quota} fails as soon as the quota is exceeded, so a runaway job cannot take the memory of the others.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class Scheduler implements Closeable {
+
+	/** The default number of rewrite steps that a job runs before other jobs get their turn. */
+	public static final long DEFAULT_QUANTUM = 10_000;
+
+	// State.
+
+	/** The number of rewrite steps that a job runs before other jobs get their turn. */
+	private final long _quantum;
+
+	/** The jobs waiting for their turn, in the order they should run. */
+	private final PriorityBlockingQueue<Job> _queue = new PriorityBlockingQueue<>();
+
+	/** The worker threads. */
+	private final List<Thread> _workers = new ArrayList<>();
+
+	/** For the order of jobs queued with the same priority and deadline. */
+	private final AtomicLong _sequence = new AtomicLong();
+
+	/** Whether the scheduler has been closed. */
+	private volatile boolean _closed;
+
+	/**
+	 * A normalization with its place in the queue.
+	 */
+	private static final class Job implements Comparable<Job> {
+		/** The normalization in progress. */
+		final Normalization normalization;
+		/** Jobs with higher priority go first. */
+		final int priority;
+		/** Whether the job has a deadline. */
+		final boolean hasDeadline;
+		/** When the job must be done, in {@link System#nanoTime()}. */
+		final long deadline;
+		/** The future normal form. */
+		final CompletableFuture<Term> result = new CompletableFuture<>();
+		/** When the job was last queued, among jobs with the same priority and deadline. */
+		long sequence;
+		Job(Normalization normalization, int priority, boolean hasDeadline, long deadline) {
+			this.normalization = normalization;
+			this.priority = priority;
+			this.hasDeadline = hasDeadline;
+			this.deadline = deadline;
+		}
+		@Override
+		public int compareTo(Job that) {
+			if (priority != that.priority)
+				return priority > that.priority ? -1 : 1;
+			if (hasDeadline != that.hasDeadline)
+				return hasDeadline ? -1 : 1;
+			if (hasDeadline && deadline != that.deadline)
+				return deadline - that.deadline < 0 ? -1 : 1;
+			return Long.compare(sequence, that.sequence);
+		}
+	}
+
+	// Constructor.
+
+	/**
+	 * Create scheduler and start its workers.
+	 * @param workers the number of worker threads
+	 * @param quantum the number of rewrite steps that a job runs before other jobs get their turn
+	 */
+	public Scheduler(int workers, long quantum) {
+		if (workers < 1 || quantum < 1)
+			throw new IllegalArgumentException("scheduler needs at least one worker and a positive quantum");
+		_quantum = quantum;
+		for (int i = 0; i < workers; ++i) {
+			final Thread worker = new Thread(this::work, "plank-scheduler-" + i);
+			worker.setDaemon(true);
+			_workers.add(worker);
+			worker.start();
+		}
+	}
+
+	// Methods.
+
+	/**
+	 * Submit normalization of a term.
+	 * @param executable to normalize with
+	 * @param input to normalize - will be destroyed
+	 * @param priority jobs with higher priority go first
+	 * @param timeout how long the job may take (from now), or 0 for no deadline
+	 * @param unit of the timeout
+	 * @return the future normal form, which can be cancelled
+	 */
+	public CompletableFuture<Term> submit(Executable executable, Term input, int priority, long timeout, TimeUnit unit) {
+		return submit(executable, input, priority, timeout, unit, null);
+	}
+
+	/**
+	 * Submit normalization of a term within a memory quota.
+	 * @param executable to normalize with
+	 * @param input to normalize - will be destroyed
+	 * @param priority jobs with higher priority go first
+	 * @param timeout how long the job may take (from now), or 0 for no deadline
+	 * @param unit of the timeout
+	 * @param quota for the job alone, or null for no limit
+	 * @return the future normal form, which can be cancelled, and fails with {@link Quota#exceeded()} if the quota is exceeded
+	 */
+	public CompletableFuture<Term> submit(Executable executable, Term input, int priority, long timeout, TimeUnit unit, Quota quota) {
+		final Job job = new Job(executable.start(input, quota), priority, timeout > 0, System.nanoTime() + unit.toNanos(timeout));
+		queue(job);
+		return job.result;
+	}
+
+	/**
+	 * Submit normalization of a term, with priority 0 and no deadline.
+	 * @param executable to normalize with
+	 * @param input to normalize - will be destroyed
+	 * @return the future normal form, which can be cancelled
+	 */
+	public CompletableFuture<Term> submit(Executable executable, Term input) {
+		return submit(executable, input, 0, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/** The number of jobs waiting for their turn. */
+	public int waiting() {
+		return _queue.size();
+	}
+
+	/** Queue job behind the jobs already waiting with the same priority and deadline, or fail it if closed. */
+	private void queue(Job job) {
+		job.sequence = _sequence.getAndIncrement();
+		_queue.add(job);
+		if (_closed && _queue.remove(job))
+			job.result.completeExceptionally(new PlankException("scheduler is closed")); // missed by close
+	}
+
+	/** Run jobs a quantum at a time, until closed. */
+	private void work() {
+		while (!_closed) {
+			final Job job;
+			try {
+				job = _queue.take();
+			} catch (InterruptedException e) {
+				return; // closed
+			}
+			if (job.result.isDone())
+				continue; // cancelled
+			final Normalization normalization = job.normalization;
+			try {
+				if (job.hasDeadline && System.nanoTime() - job.deadline > 0)
+					throw new PlankException("deadline passed after %d steps", normalization.steps());
+				if (normalization.run(_quantum, null)) {
+					if (normalization.quota != null && normalization.quota.exceeded() != null)
+						throw new PlankException("%s", normalization.quota.exceeded());
+					job.result.complete(normalization.term());
+				} else
+					queue(job);
+			} catch (Throwable e) {
+				job.result.completeExceptionally(e); // including stack overflow, so the future always completes
+			}
+		}
+	}
+
+	// Closeable...
+
+	/** Stop the workers, and fail the jobs that are not done. */
+	@Override
+	public void close() {
+		_closed = true;
+		for (Thread worker : _workers)
+			worker.interrupt();
+		final List<Job> jobs = new ArrayList<>();
+		_queue.drainTo(jobs);
+		for (Job job : jobs)
+			job.result.completeExceptionally(new PlankException("scheduler is closed"));
+	}
+}
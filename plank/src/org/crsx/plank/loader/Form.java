@@ -7,8 +7,11 @@ package org.crsx.plank.loader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
+import org.crsx.plank.base.PlankException;
 import org.crsx.plank.sort.ConsForm;
+import org.crsx.plank.sort.ConsForm.Evaluation;
 import org.crsx.plank.sort.Sort;
 
 /**
@@ -48,8 +51,12 @@ final class Form {
 	 * @param cons name of constructor
 	 * @param forms the list of forms of individual arguments, in original argument order
 	 * @param scheme whether the declaration should be a scheme (otherwise it is data)
+	 * @param options of the declaration, where evaluation hints map to comma-separated 1-based argument positions (empty for all)
+	 * @throws PlankException if the evaluation hints are inconsistent with the forms
 	 */
-	static ConsForm mkConsForm(String origin, Sort sort, String cons, List<Form> forms, boolean scheme) {
+	static ConsForm mkConsForm(String origin, Sort sort, String cons, List<Form> forms, boolean scheme, Map<String, String> options)
+		throws PlankException
+	{
 		final Form[] subForm = forms.stream().filter(f -> !f.isAssoc()).toArray(n -> new Form[n]);
 		final Sort[] subSort = Arrays.stream(subForm).map(f -> f.sort).toArray(n -> new Sort[n]);
 		final Sort[][] binderSort = Arrays.stream(subForm).map(f -> f.args).toArray(n -> new Sort[n][]);
@@ -66,7 +73,41 @@ final class Form {
 			}
 			++realIndex;
 		}
-		return ConsForm.mk(origin, sort, cons, subSort, binderSort, keySort, valueSort, assocRealIndex, scheme);
+		// Evaluation hints: first the ones for all arguments, then the ones for specific arguments.
+		final Evaluation[] subEvaluation = new Evaluation[subForm.length];
+		Arrays.fill(subEvaluation, Evaluation.DEFAULT);
+		for (Evaluation evaluation : Evaluation.values()) {
+			if ("".equals(options.get(evaluation.optionName())))
+				Arrays.fill(subEvaluation, evaluation);
+		}
+		final Evaluation[] specific = new Evaluation[subForm.length];
+		for (Evaluation evaluation : Evaluation.values()) {
+			String positions = options.get(evaluation.optionName());
+			if (positions == null || positions.isEmpty())
+				continue;
+			for (String position : positions.split(",")) {
+				final int real;
+				try {
+					real = Integer.parseInt(position) - 1;
+				} catch (NumberFormatException e) {
+					throw new PlankException("%s hint for %s names argument %s which is not a valid position", evaluation.optionName(), cons, position);
+				}
+				int scopeIndex = -1;
+				for (int i = 0, r = 0; r < forms.size(); ++r) {
+					if (!forms.get(r).isAssoc()) {
+						if (r == real)
+							scopeIndex = i;
+						++i;
+					}
+				}
+				if (scopeIndex < 0)
+					throw new PlankException("%s hint for %s names argument %s which is not a scope argument", evaluation.optionName(), cons, position);
+				if (specific[scopeIndex] != null && specific[scopeIndex] != evaluation)
+					throw new PlankException("conflicting %s and %s hints for argument %s of %s", specific[scopeIndex].optionName(), evaluation.optionName(), position, cons);
+				specific[scopeIndex] = subEvaluation[scopeIndex] = evaluation;
+			}
+		}
+		return ConsForm.mk(origin, sort, cons, subSort, binderSort, keySort, valueSort, assocRealIndex, scheme, subEvaluation);
 	}
 
 	// State.
@@ -5,6 +5,7 @@
 package org.crsx.plank.loader;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -13,17 +14,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.IntStream;
 
-import org.crsx.plank.base.Origined;
 import org.crsx.plank.base.PlankException;
 import org.crsx.plank.base.Var;
 import org.crsx.plank.execute.Executable;
 import org.crsx.plank.sort.ConsForm;
 import org.crsx.plank.sort.Sort;
-import org.crsx.plank.term.Assoc;
 import org.crsx.plank.term.Cons;
-import org.crsx.plank.term.Meta;
-import org.crsx.plank.term.Occur;
 import org.crsx.plank.term.Term;
 
 import com.google.common.collect.ImmutableListMultimap;
@@ -34,25 +32,22 @@ import com.google.common.collect.ListMultimap;
 
 /**
  * Loading and holding a plank script with rich information.
+ * A loaded script can be saved and restored with {@link Snapshot}.
  * @author Kristoffer H. Rose <krisrose@crsx.org>
  */
-public final class Loader {
+public final class Loader implements Serializable {
+
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
 
 	// State.
 	
 	/** The sort names with their (sort parameter) rank. Updated by {@link #addSort(Sort)}. */
 	private final Map<String, Integer> _sortRank = new HashMap<>();
 
-	/** All substitutions: variables that are equivalent all map to their representative. Updated by {@link #unify(Sort, Sort)}. */
-	private final Map<Var, Var> _unifyEquiv = new HashMap<>();
+	/** The sort unification state of the script. Updated by {@link #unify(Sort, Sort)}. */
+	private final Unifier _unifier = new Unifier();
 
-	/**
-	 * Mapping of all sort variables to their instantiation, if any.
-	 * All <em>keys</em> are always "representatives" in the sense of {@link #_unifyEquiv}.
-	 *  Updated by {@link #unify(Sort, Sort)}.
-	 */
-	private final Map<Var, Sort> _unifySortConstraint = new HashMap<>();
-	
 	/** The forms in the system, indexed by constructor name. Updated by {@link #addConsDeclaration(ConsForm)}. */
 	private final Map<String, ConsForm> _consForms = new HashMap<>();
 	
@@ -65,6 +60,12 @@ public final class Loader {
 	/** Any errors added to the context. Updated by {@link #addError(String, String, Object...)}. */
 	private final List<String> _errors = new ArrayList<>();
 
+	/** The {@link #eagerArguments()}, once computed; cleared when constructors or rules are added. */
+	private Map<String, int[]> _eager;
+
+	/** The {@link #executable()}, once created (not saved in snapshots, since it is quick to create from the rules). */
+	private transient Executable _executable;
+
 	// Constructor.
 	
 	/**
@@ -102,195 +103,35 @@ public final class Loader {
 	 * @throws PlankException if unification fails with a conflict
 	 */
 	public Sort unify(Sort sort1, Sort sort2) throws PlankException {
-		
-		// Advance incoming sort variables to their representative.
-		if (sort1.isVar() && _unifyEquiv.containsKey(sort1.var))
-			sort1 = Sort.mkSortVar(sort1.origin(), unifyRepresentative(sort1.var));
-		if (sort2.isVar() && _unifyEquiv.containsKey(sort2.var))
-			sort2 = Sort.mkSortVar(sort2.origin(), unifyRepresentative(sort2.var));
-		
-		if (sort1.isVar() && sort2.isVar()) {
-
-			// CASE 0: We have the same variable twice, escape!
-			if (sort1.var == sort2.var)
-				return sort1;
-			
-			// CASE 1: If we have two (now representative) variables. Make them equivalent, return the representative.
-			Var var1 = sort1.var;
-			Var var2 = sort2.var;
-			if (var1.compareTo(var2) > 0) {
-				Var v = var1; var1 = var2; var2 = v; // swap so var1 is smallest
-				Sort s = sort1; sort1 = sort2; sort2 = s; // swap sorts correspondingly
-			}
-			// Now replace var2 with var1.
-			_unifyEquiv.put(var2,  var1); // so future unifications get it
-			// Update constraints.
-			if (_unifySortConstraint.containsKey(var2)) {
-				if (_unifySortConstraint.containsKey(var1)) {
-					// Have constraints for both. The replacement constraints are obtained by unification.
-					Sort sort = unify(_unifySortConstraint.get(var1), _unifySortConstraint.get(var2));
-					_unifySortConstraint.put(var1, sort);
-				} else {
-					// Only have constraints for var2. Just move constraint for var2 to var1.
-					Sort sort = _unifySortConstraint.get(var2);
-					_unifySortConstraint.put(var1,  sort);
-				}
-				_unifySortConstraint.remove(var2);
-			}
-			return sort1;  // result is the representative variable (that now has the unified constraint)
-		}
-		assert !sort1.isVar() || !sort2.isVar() : "Panic: variable sort pair slipped through..."; 
-		
-		// Expand the at most one already known representative variable to its sort constraints. 
-		Var originalVar1 = null;
-		Var originalVar2 = null;
-		if (sort1.isVar() && _unifySortConstraint.containsKey(sort1.var)) 
-			sort1 = _unifySortConstraint.get(originalVar1 = sort1.var);
-		if (sort2.isVar() && _unifySortConstraint.containsKey(sort2.var)) 
-			sort2 = _unifySortConstraint.get(originalVar2 = sort2.var);
-		
-		// CASE 2: We have two instances. Unify as terms.
-		if (!sort1.isVar() && !sort2.isVar()) {
-			if (!sort1.name.equals(sort2.name))
-				throw new PlankException("cannot unify sorts %s and %s", sort1.name, sort2.name);
-			// Got identical sorts! Compute unified sort by recursing over the sort parameters.
-			final int rank = sort1.param.length;
-			final Sort[] param = new Sort[rank];
-			for (int i = 0; i < rank; ++i)
-				param[i] = unify(sort1.param[i], sort2.param[i]);
-			Sort sort = Sort.mkSortInstance(Origined.combine("Unified between %s and %s", sort1.origin(), sort2.origin()), sort1.name, param);
-			sort = unifySubstituteRepresentative(sort);
-			// If one of the constraints were expanded from a variable, update the constraint.
-			if (originalVar1 != null) {
-				_unifySortConstraint.put(originalVar1, sort);
-				return sort1; // result is expanded variable sort
-			}
-			if (originalVar2 != null) {
-				_unifySortConstraint.put(originalVar2, sort);
-				return sort2; // result is expanded variable sort
-			}
-			return sort; // no variables were expanded so result is the unified constraint
-		}
-		assert originalVar1 == null && originalVar2 == null : "Panic: With one variable and an instance, the instance cannot be expanded....";
-
-		// CASE 3: We have one unconstrained sort variable and one instance.
-		// The instance was not expanded from a variable because then this would be the first case.
-		// Map the unconstrained variable to the instance, and return the variable!
-		if (sort2.isVar()) { // flip to make sort1 the variable sort
-			Sort s = sort1; sort1 = sort2; sort2 = s;
-		}
-		assert !sort2.isVar() && originalVar1 == null && originalVar2 == null : "Panic: variable escaped through to mixed case.";
-		_unifySortConstraint.put(sort1.var, sort2); // constrain the variable
-		return sort1; // result is variable sort to catch more equivalences
+		return _unifier.unify(sort1, sort2);
 	}
-	
-	/** Find representative variable (by repeated application of {@link #_unifyEquiv}). */
-	private Var unifyRepresentative(Var var) {
-		while (_unifyEquiv.containsKey(var))
-			var = _unifyEquiv.get(var);
-		return var;
-	}
-	
-	/**
-	 * Replace all variables with the equivalence class representative in sort.
-	 * Used on created unification sorts to amortize equivalence class computation. 
-	 */
-	private Sort unifySubstituteRepresentative(Sort sort) {
-		// TODO: optimize this to reuse var and primary sorts when no change...?
-		if (sort.isVar()) {
-			return Sort.mkSortVar(sort.origin(), unifyRepresentative(sort.var));
-		} else { // !sort.isVar()
-			final int size = sort.param.length;
-			Sort[] param = new Sort[size];
-			for (int i = 0; i < size; ++i) {
-				param[i] = unifySubstituteRepresentative(sort.param[i]);
-			}
-			return Sort.mkSortInstance(sort.origin(), sort.name, param);
-		}
-	}
-	
+
 	/** Expand all sort constraints, leaving only unconstrained sort variables. */
 	private Sort expandSort(Sort sort) {
-		if (sort == null) {
-			return null; // so it can be used on partial records
-		} else if (sort.isVar()) {
-			Var rep = unifyRepresentative(sort.var);
-			if (_unifySortConstraint.containsKey(rep)) {
-				sort = _unifySortConstraint.get(rep);
-				return expandSort(sort); // tail recursive!
-			}
-			return Sort.mkSortVar(sort.origin(), rep);
-		} else {
-			final int rank = sort.param.length;
-			Sort[] param = new Sort[rank]; 
-			for (int i = 0; i < rank; ++i) {
-				param[i] = expandSort(sort.param[i]);
-			}
-			return Sort.mkSortInstance(sort.origin(), sort.name, param);
-		}
+		return _unifier.expandSort(sort);
 	}
 
 	/** Expand all sorts in a constructor form. */
 	private ConsForm expandConsForm(ConsForm form) {
-		final int subCount = form.subSort.length;
-		Sort[] newSubSort = new Sort[subCount];
-		Sort[][] newBinderSort = new Sort[subCount][];
-		for (int i = 0; i < subCount; ++i) {
-			newSubSort[i] = expandSort(form.subSort[i]);
-			final int rank = form.binderSort[i].length;
-			Sort[] subBinderSort = new Sort[rank];
-			for (int j = 0; j < rank; ++j)
-				subBinderSort[j] = expandSort(form.binderSort[i][j]);
-			newBinderSort[i] = subBinderSort;
-		}
-		final int assocCount = form.keySort.length;
-		Sort[] newKeySort = new Sort[assocCount];
-		Sort[] newValueSort = new Sort[assocCount];
-		for (int i = 0; i < assocCount; ++i) {
-			newKeySort[i] = expandSort(form.keySort[i]);
-			newValueSort[i] = expandSort(form.valueSort[i]);
-		}
-		return ConsForm.mk(form.origin(), expandSort(form.sort), form.name, newSubSort, newBinderSort, newKeySort, newValueSort, form.assocRealIndex, form.scheme);
+		return _unifier.expandConsForm(form);
 	}
-	
+
 	/** Expand all sorts in a term to incorporate all constraints. */
 	public Term expandTerm(Term term) {
-		switch (term.kind()) {
-		case CONS : {
-			Cons cons = term.cons();
-			final int subCount = cons.sub.length;
-			Term[] newSub = new Term[subCount];
-			for (int i = 0; i < subCount; ++i)
-				newSub[i] = expandTerm(cons.sub[i]);
-			final int assocCount = cons.assoc.length;
-			Assoc[] newAssoc = new Assoc[assocCount];
-			for (int i = 0; i <assocCount; ++i)
-				newAssoc[i] = expandAssoc(cons.assoc[i]);
-			return Term.mkCons(cons.origin(), expandSort(cons.sort()), expandConsForm(cons.form), cons.binder, newSub, newAssoc);
-		}
-		case META : {
-			Meta meta = term.meta();
-			List<Term> subs = new ArrayList<Term>();
-			for (Term t : meta.sub)
-				subs.add(expandTerm(t));
-			return Term.mkMeta(meta.origin(), expandSort(meta.sort()), meta.name, subs);
-		}
-		case OCCUR : {
-			Occur occur = term.occur();
-			return Term.mkOccur(occur.origin(), expandSort(occur.sort()), occur.var);
-		}
-		}
-		return null; // unreachable
+		return _unifier.expandTerm(term);
 	}
 
-	/** Create a new association where all sorts have been expanded. */
-	private Assoc expandAssoc(Assoc assoc) {
-		Sort newKeySort = expandSort(assoc.keySort);
-		Sort newValueSort = expandSort(assoc.valueSort);
-		Map<Var, Term> newMap = new HashMap<>();
-		for (Var key : assoc.map.keySet())
-			newMap.put(key, expandTerm(assoc.map.get(key)));
-		return Assoc.mk(assoc.origin(), assoc.realIndex, newKeySort, newValueSort, newMap, assoc.omit, Arrays.asList(assoc.all));
+	/** The sort unification state of the script, for use while it is loaded. */
+	Unifier unifier() {
+		return _unifier;
+	}
+
+	/**
+	 * Create unifier for inferring the sorts of an input term.
+	 * It sees the sort constraints of the script but records its own separately, so the loader is not modified.
+	 */
+	Unifier termUnifier() {
+		return new Unifier(_unifier);
 	}
 
 	/** Add constructor declaration of given form. */
@@ -300,6 +141,8 @@ public final class Loader {
 		if (_consForms.containsKey(form.name))
 			throw new PlankException("duplicate declaration of constructor %s", form.name);
 		_consForms.put(form.name, expandConsForm(form));
+		_eager = null;
+		_executable = null;
 	}
 
 	/** Set the given sort to have syntactic variables. */
@@ -324,6 +167,8 @@ public final class Loader {
 			throw new PlankException("duplicate rules registered from same place? (%s)", origin);
 		Rule rule = Rule.mk(origin, expandSort(sort), options, (Cons) expandTerm(pattern), expandTerm(contractum));
 		_rules.put(origin, rule);
+		_eager = null;
+		_executable = null;
 	}
 	
 	/**
@@ -333,7 +178,12 @@ public final class Loader {
 	 * @param args for message string
 	 */
 	public void addError(String origin, String format, Object... args) {
-		_errors.add(String.format("Error {%s} " + format, origin, args));
+		_errors.add(formatError(origin, format, args));
+	}
+
+	/** Format an error message as recorded by {@link #addError(String, String, Object...)}. */
+	static String formatError(String origin, String format, Object... args) {
+		return "Error {" + origin + "} " + (args.length == 0 ? format : String.format(format, args));
 	}
 	
 	// Extraction methods.
@@ -354,9 +204,82 @@ public final class Loader {
 			out.append(err + "\n");
 	}
 	
-	/** Extract an execution context. */
-	public Executable executable() {
-		return new Executable(Collections.unmodifiableMap(_rules));
+	/** Extract an execution context, which is only created once and can be shared. */
+	public synchronized Executable executable() {
+		if (_executable == null) {
+			if (_eager == null)
+				_eager = eagerArguments();
+			_executable = new Executable(Collections.unmodifiableMap(_rules), _eager);
+		}
+		return _executable;
+	}
+	
+	/**
+	 * The arguments of each scheme to evaluate before attempting any rule:
+	 * the {@link #neededArguments()} and the ones with a strict or parallel hint, but never ones with a lazy hint.
+	 * @return map from scheme constructor name to the scope indices, in order, for schemes with any
+	 */
+	public Map<String, int[]> eagerArguments() {
+		Map<String, int[]> needed = neededArguments();
+		Map<String, int[]> eager = new HashMap<>();
+		for (ConsForm form : _consForms.values()) {
+			if (!form.scheme)
+				continue;
+			final boolean[] eagerSub = new boolean[form.subSort.length];
+			if (needed.containsKey(form.name)) {
+				for (int i : needed.get(form.name))
+					eagerSub[i] = true;
+			}
+			for (int i = 0; i < eagerSub.length; ++i) {
+				switch (form.subEvaluation[i]) {
+				case STRICT :
+				case PARALLEL :
+					eagerSub[i] = true;
+					break;
+				case LAZY :
+					eagerSub[i] = false;
+					break;
+				case DEFAULT :
+					break;
+				}
+			}
+			final int[] indices = IntStream.range(0, eagerSub.length).filter(i -> eagerSub[i]).toArray();
+			if (indices.length > 0)
+				eager.put(form.name, indices);
+		}
+		return eager;
+	}
+	
+	/**
+	 * Analyze the rules to find the needed arguments of each scheme:
+	 * the scopes that every rule for the scheme matches with a data construction.
+	 * A function can have these arguments evaluated before attempting any rule, since no rule can match before.
+	 * @return map from scheme constructor name to the needed scope indices, in order, for schemes with any
+	 */
+	public Map<String, int[]> neededArguments() {
+		Map<String, boolean[]> data = new HashMap<>();
+		for (Rule rule : _rules.values()) {
+			final Cons pattern = rule.pattern;
+			final int subCount = pattern.sub.length;
+			boolean[] dataSub = data.get(pattern.form.name);
+			if (dataSub == null) {
+				dataSub = new boolean[subCount];
+				Arrays.fill(dataSub, true);
+				data.put(pattern.form.name, dataSub);
+			}
+			for (int i = 0; i < subCount; ++i) {
+				final Term sub = pattern.sub[i];
+				dataSub[i] = dataSub[i] && sub.tag == Term.CONS_TAG && !sub.isFun();
+			}
+		}
+		Map<String, int[]> needed = new HashMap<>();
+		for (Map.Entry<String, boolean[]> e : data.entrySet()) {
+			final boolean[] dataSub = e.getValue();
+			final int[] indices = IntStream.range(0, dataSub.length).filter(i -> dataSub[i]).toArray();
+			if (indices.length > 0)
+				needed.put(e.getKey(), indices);
+		}
+		return needed;
 	}
 	
 	/** Extract textual form. */
@@ -375,7 +298,7 @@ public final class Loader {
 					sortsByName.put(sortName, sortText);
 			}
 			// Print all the groups!
-			
+			Map<String, int[]> needed = neededArguments();
 			for (String name : sortsByName.keySet()) {
 				List<String> sorts = sortsByName.get(name);
 				if (sorts.isEmpty())
@@ -390,6 +313,8 @@ public final class Loader {
 								checkSyntactic = false;
 							}
 							form.appendConsForm(out);
+							if (needed.containsKey(form.name))
+								appendNeeded(out, form, needed.get(form.name));
 						}
 						out.append("\n");
 					}
@@ -409,6 +334,14 @@ public final class Loader {
 		}
 	}
 
+	/** Helper to append comment with the (1-based) positions of the needed arguments of a form. */
+	private void appendNeeded(Appendable out, ConsForm form, int[] needed) throws IOException {
+		out.append("/* needed arguments:");
+		for (int scopeIndex : needed)
+			out.append(" " + (form.realIndex(scopeIndex) + 1));
+		out.append(" */\n");
+	}
+
 	/** Helper to append a pseudo-rule for an otherwise undefined sort, except for variables perhaps. */
 	private void appendNoCaseSort(Appendable out, String name) throws IOException {
 		if (!_syntactic.contains(name))
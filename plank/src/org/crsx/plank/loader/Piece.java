@@ -26,6 +26,9 @@ import org.crsx.plank.term.Term;
  */
 final class Piece extends Origined {
 
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Make a scope piece.
 	 * @param origin of piece
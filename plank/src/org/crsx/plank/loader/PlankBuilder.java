@@ -13,12 +13,20 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
 import org.crsx.plank.base.PlankException;
 import org.crsx.plank.base.Var;
 import org.crsx.plank.parser.PlankBaseVisitor;
@@ -34,6 +42,7 @@ import org.crsx.plank.parser.PlankParser.BindersortsContext;
 import org.crsx.plank.parser.PlankParser.ConsTermContext;
 import org.crsx.plank.parser.PlankParser.DataDeclarationContext;
 import org.crsx.plank.parser.PlankParser.DeclarationContext;
+import org.crsx.plank.parser.PlankParser.EvaluationContext;
 import org.crsx.plank.parser.PlankParser.FormContext;
 import org.crsx.plank.parser.PlankParser.FormsContext;
 import org.crsx.plank.parser.PlankParser.HscriptContext;
@@ -61,6 +70,7 @@ import org.crsx.plank.parser.PlankParser.VarSortContext;
 import org.crsx.plank.parser.PlankParser.VarTermContext;
 import org.crsx.plank.parser.PlankParser.VariableDeclarationContext;
 import org.crsx.plank.sort.ConsForm;
+import org.crsx.plank.sort.ConsForm.Evaluation;
 import org.crsx.plank.sort.Sort;
 import org.crsx.plank.term.Cons;
 import org.crsx.plank.term.Meta;
@@ -77,11 +87,64 @@ import com.google.common.collect.ImmutableMap;
  */
 public class PlankBuilder extends PlankBaseVisitor<Object> {
 
+	/** The lexer and parser of each thread, reused for all inputs it parses. */
+	private static final ThreadLocal<Parsing> PARSING = ThreadLocal.withInitial(Parsing::new);
+
+	/**
+	 * Lexer and parser that are reused for input after input, to avoid the setup cost for small inputs.
+	 * Each input is first parsed in the fast SLL prediction mode, giving up at the first error,
+	 * and only if that fails parsed again in the full LL mode, with error recovery and reporting.
+	 * (The DFA caches that make prediction fast are shared by all parsers of the grammar, so they stay warm.)
+	 */
+	private static final class Parsing {
+		final PlankLexer lexer = new PlankLexer(null);
+		final PlankParser parser = new PlankParser(null);
+		final BailErrorStrategy bail = new BailErrorStrategy();
+		final DefaultErrorStrategy recover = new DefaultErrorStrategy();
+
+		/**
+		 * Parse input.
+		 * @param input to parse
+		 * @param traceParse whether to trace parsing events, in which case the input is only parsed once, in LL mode
+		 * @param rule the grammar rule to parse
+		 * @return the parse tree
+		 */
+		<T extends ParserRuleContext> T parse(CharStream input, boolean traceParse, Function<PlankParser, T> rule) {
+			lexer.setInputStream(input);
+			final CommonTokenStream tokens = new CommonTokenStream(lexer); // (token streams cannot be reset to a new source)
+			parser.setInputStream(tokens);
+			parser.setTrace(traceParse);
+			if (!traceParse) {
+				parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+				parser.setErrorHandler(bail);
+				parser.removeErrorListeners();
+				try {
+					return rule.apply(parser);
+				} catch (ParseCancellationException e) {
+					// Not SLL or not valid: parse again properly.
+					tokens.seek(0);
+					parser.reset();
+				}
+			}
+			parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+			parser.setErrorHandler(recover);
+			parser.removeErrorListeners();
+			parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+			return rule.apply(parser);
+		}
+	}
+
 	// State.
 
 	/** Context to construct. */
 	private Loader _loader;
 
+	/** Sort unification state: the loader's while loading a script, and a separate one for each term parsed. */
+	private Unifier _unifier;
+
+	/** Errors in the term being parsed, or null when loading a script (where errors are recorded in the loader). */
+	private List<String> _termErrors;
+
 	/** False on first pass, true on second pass. */
 	boolean _rulesPass;
 	
@@ -108,6 +171,23 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 	/** Creater builder for plank. */
 	public PlankBuilder() {}
 
+	/**
+	 * Create builder for parsing terms for a script that is already loaded.
+	 * @param loader with the script (for example from a {@link Snapshot})
+	 */
+	public PlankBuilder(Loader loader) {
+		_loader = loader;
+		_unifier = loader.unifier();
+	}
+
+	/** Create builder for parsing a single term for the script in the loader, without modifying the loader. */
+	private static PlankBuilder termSession(Loader loader) {
+		PlankBuilder session = new PlankBuilder(loader);
+		session._unifier = loader.termUnifier();
+		session._termErrors = new ArrayList<>();
+		return session;
+	}
+
 	// Methods.
 
 	/**
@@ -117,16 +197,15 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 	 */
 	public Loader parseScript(CharStream input, boolean traceParse) {
 		_loader = new Loader();
+		_unifier = _loader.unifier();
+		_termErrors = null;
 		try {
 
 			// Parse.
-			PlankLexer lexer = new PlankLexer(input);
-			CommonTokenStream tokens = new CommonTokenStream(lexer);
-			PlankParser parser = new PlankParser(tokens);
-			parser.setTrace(traceParse);
-			ParseTree tree = parser.hscript();
+			Parsing parsing = PARSING.get();
+			ParseTree tree = parsing.parse(input, traceParse, PlankParser::hscript);
 			if (traceParse)
-				System.out.println(tree.toStringTree(parser));
+				System.out.println(tree.toStringTree(parsing.parser));
 			
 			// Build.
 			visit(tree); // this is where the real work is done...
@@ -134,48 +213,45 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		} catch (RecognitionException e) {
 			String message = e.getMessage();
 			Token token = e.getOffendingToken();
-			_loader.addError(input.getSourceName() + ":" + originRange(token, token), "%s", message);
+			addError(input.getSourceName() + ":" + originRange(token, token), "%s", message);
 		}
 		return _loader;
 	}
 	
 	/**
 	 * Parse a term for use by script loaded with the builder.
+	 * Each term is parsed by a separate builder, and the sorts of the term are inferred without modifying the loader,
+	 * so this can be used by several threads at the same time.
 	 * @param input with term
 	 * @param traceParse if parsing itself should be traced
 	 * @return the succesfully parsed term
 	 * @throws PlankException if the term cannot be parsed or has some other problem
 	 */
 	public Term parseTerm(CharStream input, boolean traceParse) throws PlankException {
-		try {
-			if (_loader == null)
-				throw new PlankException("Cannot parse term without having script loaded.");
-			if (_loader.hasErrors())
-				throw new PlankException("Cannot parse term from script with errors.");
+		if (_loader == null)
+			throw new PlankException("Cannot parse term without having script loaded.");
+		if (_loader.hasErrors())
+			throw new PlankException("Cannot parse term from script with errors.");
+		return termSession(_loader).parseTermOnce(input, traceParse);
+	}
 
+	/** Parse a term with this builder, which must be fresh. */
+	private Term parseTermOnce(CharStream input, boolean traceParse) throws PlankException {
+		try {
 			// Parse.
-			PlankLexer lexer = new PlankLexer(input);
-			CommonTokenStream tokens = new CommonTokenStream(lexer);
-			PlankParser parser = new PlankParser(tokens);
-			parser.setTrace(traceParse);
-			ParseTree tree = parser.term();
+			Parsing parsing = PARSING.get();
+			ParseTree tree = parsing.parse(input, traceParse, PlankParser::term);
 			if (traceParse)
-				System.out.println(tree.toStringTree(parser));
-			
-			// Setup the build environment.
-			_varsScope.clear();
-			_freeSort.clear();
-			_metaSubstSorts.clear();
-			_boundSort.clear();
-			_contextFormsStack.clear();
-			_inPattern = false;
+				System.out.println(tree.toStringTree(parsing.parser));
 
 			// Now read the Term; provide a dummy sort (so normal inference kicks in).
+			_inPattern = false;
 			Sort sort = Sort.mkSortVar("", mkVar("dummy", true, false));
 			_contextFormsStack.push(Arrays.asList(Form.mkScopeForm(null, sort)));
 			Term term = (Term) visit(tree);
-			term = _loader.expandTerm(term);
-			return term;
+			if (!_termErrors.isEmpty())
+				throw new PlankException("%s", String.join("\n", _termErrors));
+			return _unifier.expandTerm(term);
 			
 		} catch (RecognitionException re) {
 			String message = re.getMessage();
@@ -215,10 +291,10 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		List<Form> forms = (List<Form>) visit(ctx.forms());
 
 		try {
-			ConsForm consForm = Form.mkConsForm(origin, sort, cons, forms, false);
+			ConsForm consForm = Form.mkConsForm(origin, sort, cons, forms, false, ImmutableMap.of());
 			_loader.addConsDeclaration(consForm);
 		} catch (PlankException e) {
-			_loader.addError(origin, e.getMessage());
+			addError(origin, e.getMessage());
 		}
 		return null;
 	}
@@ -228,6 +304,8 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		if (_rulesPass) return null;
 		_varsScope.clear();
 		String origin = originRange(ctx.start, ctx.stop);
+		@SuppressWarnings("unchecked")
+		Map<String, String> options = (Map<String, String>) visit(ctx.opts());
 		Sort sort = (Sort) visit(ctx.sort());
 		String cons = ctx.CONS().getText();
 
@@ -235,10 +313,10 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		List<Form> forms = (List<Form>) visit(ctx.forms());
 
 		try {
-			ConsForm consForm = Form.mkConsForm(origin, sort, cons, forms, true);
+			ConsForm consForm = Form.mkConsForm(origin, sort, cons, forms, true, options);
 			_loader.addConsDeclaration(consForm);
 		} catch (PlankException e) {
-			_loader.addError(origin, e.getMessage());
+			addError(origin, e.getMessage());
 		}
 		return null;
 	}
@@ -253,7 +331,7 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		try {
 			_loader.addVariableDeclaration(sort);
 		} catch (PlankException e) {
-			_loader.addError(originRange(ctx.start, ctx.stop), e.getMessage());
+			addError(originRange(ctx.start, ctx.stop), e.getMessage());
 		}
 		return null;
 	}
@@ -280,18 +358,18 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		_contextFormsStack.pop();
 
 		if (patternTerm.kind() != Kind.CONS) {
-			_loader.addError(origin, "rule pattern is not a construction (%s)", ctx.term(0).getText());
+			addError(origin, "rule pattern is not a construction (%s)", ctx.term(0).getText());
 			return null;
 		}
 		Cons pattern = patternTerm.cons();
 		if (!pattern.form.scheme) {
-			_loader.addError(origin, "rule pattern is not a scheme construction (%s)", ctx.term(0).getText());
+			addError(origin, "rule pattern is not a scheme construction (%s)", ctx.term(0).getText());
 			return null;
 		}
 		try {
 			_loader.addRule(origin, sort, options, pattern, contractum);
 		} catch (PlankException e) {
-			_loader.addError(origin, "%s", e.getMessage());
+			addError(origin, "%s", e.getMessage());
 		}
 		return null;
 	}
@@ -302,8 +380,11 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 	@Override
 	public Map<String, String> visitOpts(OptsContext ctx) {
 		Map<String, String> opts = new HashMap<>();
-		for (OptContext oc : ctx.opt())
-			opts.putAll((Map<String, String>) visit(oc));
+		for (OptContext oc : ctx.opt()) {
+			// Repeated options with positions accumulate the positions; without positions they cover everything.
+			for (Map.Entry<String, String> e : ((Map<String, String>) visit(oc)).entrySet())
+				opts.merge(e.getKey(), e.getValue(), (a, b) -> a.isEmpty() || b.isEmpty() ? "" : a + "," + b);
+		}
 		return opts;
 	}
 	
@@ -319,6 +400,23 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		return ImmutableMap.of("name", ctx.CONS().getText());
 	}
 
+	@Override
+	public Map<String, String> visitEvaluation(EvaluationContext ctx) {
+		// The hint is parsed as a variable so the hint names are not reserved words.
+		final String hint = ctx.VAR().getText();
+		boolean known = false;
+		for (Evaluation evaluation : Evaluation.values())
+			known |= evaluation != Evaluation.DEFAULT && evaluation.optionName().equals(hint);
+		if (!known) {
+			addError(originRange(ctx.start, ctx.stop), "unknown evaluation hint (%s), expected strict, lazy, or parallel", hint);
+			return ImmutableMap.of();
+		}
+		List<String> positions = new ArrayList<>();
+		for (TerminalNode position : ctx.positions().INT())
+			positions.add(position.getText());
+		return ImmutableMap.of(hint, String.join(",", positions));
+	}
+
 	// forms is List<Form> (declarations stage).
 	
 	@Override
@@ -383,7 +481,7 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		try {
 			_loader.addSort(sort);
 		} catch (PlankException e) {
-			_loader.addError(origin, e.getMessage());
+			addError(origin, e.getMessage());
 		}
 		return sort;
 	}
@@ -396,7 +494,7 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		try {
 			_loader.addSort(sort);
 		} catch (PlankException e) {
-			_loader.addError(origin, e.getMessage());
+			addError(origin, e.getMessage());
 		}
 		return sort;
 	}
@@ -419,10 +517,10 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		List<Term> terms = new ArrayList<Term>(size);
 		if (ctx.term() == null) {
 			if (size != 0)
-				_loader.addError(origin, "argument list expected");
+				addError(origin, "argument list expected");
 		} else {
 			if (size != ctx.term().size())
-				_loader.addError(origin, "argument list has wrong arity (%s)", ctx.getText());
+				addError(origin, "argument list has wrong arity (%s)", ctx.getText());
 
 			for (int i = 0; i < size; ++i) {
 				// Every subterm gets the corresponding subsort.
@@ -453,7 +551,7 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		String cons = ctx.CONS().getText();
 		ConsForm consForm = _loader.consForm(cons);
 		try {
-			contextSort = _loader.unify(consForm.sort, contextSort);
+			contextSort = _unifier.unify(consForm.sort, contextSort);
 			
 			// Now build Form for each piece sort of consForm!
 			List<Form> piecesForms = new ArrayList<>();
@@ -475,7 +573,7 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 			
 			return Piece.mkCons(origin, contextSort, consForm, cons, pieces);
 		} catch (PlankException e) {
-			_loader.addError(origin, e.getMessage());
+			addError(origin, e.getMessage());
 			return Term.mkOccur(origin, consForm.sort, mkVar("badterm", true, false));
 		}
 	}
@@ -490,12 +588,12 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 		Sort sortBound = _boundSort.get(var);
 		Sort sortFree = _freeSort.get(var);
 		if (sortBound == null && sortFree == null)
-			_loader.addError(origin, "variable is not defined (%s)", name);
+			addError(origin, "variable is not defined (%s)", name);
 		Sort sort = _contextFormsStack.peek().get(0).sort;
 		try {
-			sort = _loader.unify(sortBound != null ? sortBound : sortFree, sort);
+			sort = _unifier.unify(sortBound != null ? sortBound : sortFree, sort);
 		} catch (PlankException e) {
-			_loader.addError(origin, e.getMessage());
+			addError(origin, e.getMessage());
 		}
 		return Term.mkOccur(origin, sort, var);
 	}
@@ -529,12 +627,12 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 						Var var = mkVar(name, false, false);
 						varSort = _boundSort.get(var);
 						if (varSort == null)
-							_loader.addError(originRange(tc.start, tc.stop), "parameter to pattern meta-application unbound variable (%s)", tc.getText());
+							addError(originRange(tc.start, tc.stop), "parameter to pattern meta-application unbound variable (%s)", tc.getText());
 						if (seen.contains(var))
-							_loader.addError(originRange(tc.start, tc.stop), "parameter to pattern meta-application is duplicate bound variable (%s)", tc.getText());
+							addError(originRange(tc.start, tc.stop), "parameter to pattern meta-application is duplicate bound variable (%s)", tc.getText());
 						seen.add(var);
 					} else {
-						_loader.addError(originRange(tc.start, tc.stop), "parameter to pattern meta-application not bound variable (%s)", tc.getText());
+						addError(originRange(tc.start, tc.stop), "parameter to pattern meta-application not bound variable (%s)", tc.getText());
 					}
 					argsSorts.add(varSort);
 				}
@@ -545,14 +643,14 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 			// Meta-application in contraction must be previously defined.
 			Form subst = _metaSubstSorts.get(meta);
 			if (subst == null)
-				_loader.addError(origin, " meta-variable in meta-application used only in contraction (%s)", meta);
+				addError(origin, " meta-variable in meta-application used only in contraction (%s)", meta);
 			if (subst.args.length != arity)
-				_loader.addError(origin, " meta-application has inconsistent arity with previous use of meta-variable (%s)", meta);
+				addError(origin, " meta-application has inconsistent arity with previous use of meta-variable (%s)", meta);
 			argsSorts = Arrays.asList(subst.args);
 			try {
-				resultSort = _loader.unify(contextSort, subst.sort);
+				resultSort = _unifier.unify(contextSort, subst.sort);
 			} catch (PlankException e) {
-				_loader.addError(origin, e.getMessage());
+				addError(origin, e.getMessage());
 				resultSort = contextSort; // recover as much as possible by using context sort
 			}
 		}
@@ -587,7 +685,7 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 			final int size = ctx.piece().size();
 			List<Form> forms = _contextFormsStack.peek();
 			if (size != forms.size())
-				_loader.addError(origin, "argument list has wrong arity (%s)", ctx.getText());
+				addError(origin, "argument list has wrong arity (%s)", ctx.getText());
 			for (int i = 0; i < size; ++i) {
 				// Every subpiece gets the corresponding form.
 				Form form = forms.get(i);
@@ -638,13 +736,13 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 			Sort[] sortBinders = _contextFormsStack.peek().get(0).args;
 			final int size = ctx.VAR().size();
 			if (size != sortBinders.length)
-				_loader.addError(origin, "binders have arity different from declaration (%s)", ctx.getText());
+				addError(origin, "binders have arity different from declaration (%s)", ctx.getText());
 
 			Set<String> seen = new HashSet<>(size);
 			for (int i = 0; i < size; ++i) {
 				String name = ctx.VAR(i).getText();
 				if (seen.contains(name))
-					_loader.addError(origin, "duplicate binder in scope (%s)", name);
+					addError(origin, "duplicate binder in scope (%s)", name);
 				seen.add(name);
 				Var var = mkVar(name, false, true);
 				vars.add(var);
@@ -732,6 +830,14 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 			return "line " + startLine + " pos " + startPos + " - line " + stopLine + " pos " + stopPos; 
 	}
 
+	/** Record error, in the loader when loading a script, and for the term otherwise. */
+	private void addError(String origin, String format, Object... args) {
+		if (_termErrors != null)
+			_termErrors.add(Loader.formatError(origin, format, args));
+		else
+			_loader.addError(origin, format, args);
+	}
+
 	/**
 	 * Lookup variable or create fresh, as needed. 
 	 * @param name base of name to use
@@ -761,18 +867,18 @@ public class PlankBuilder extends PlankBaseVisitor<Object> {
 			Sort boundSort = _boundSort.get(var);
 			Sort varSort; // the real sort we'll be using for the variable
 			if (boundSort != null) {
-				varSort = _loader.unify(boundSort, keySort);
+				varSort = _unifier.unify(boundSort, keySort);
 				_boundSort.put(var, varSort); // possibly improve the type
 			} else {
 				if (freeSort != null) {
-					varSort = _loader.unify(freeSort,  keySort);
+					varSort = _unifier.unify(freeSort,  keySort);
 				} else {
 					varSort = keySort;
 				}
 				_freeSort.put(var, varSort); // possibly improve the type
 			}
 		} catch (PlankException e) {
-			_loader.addError(origin, e.getMessage());
+			addError(origin, e.getMessage());
 		}
 	}
 }
\ No newline at end of file
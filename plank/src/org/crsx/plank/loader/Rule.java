@@ -21,6 +21,9 @@ import org.crsx.plank.term.Term;
  */
 public final class Rule extends Origined {
 
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Create a rule.
 	 * @param origin of rule
@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.crsx.plank.base.PlankException;
+
+/**
+ * Snapshots of loaded scripts, so scripts can be used without parsing, unifying sorts, and expanding rules every time.
+ * <p>
+ * The snapshot of a script is stored next to it, with the name of the script followed by {@link #SUFFIX}.
+ * It consists of the {@link #MAGIC} bytes, the {@link #VERSION}, and the SHA-256 hash of the script content,
+ * followed by the serialized {@link Loader}, including the analysis of the rules for {@link Loader#executable()}.
+ * A snapshot is only used when the hash matches the current content of the script.
+ * A snapshot that is not for the current content is ignored, and one that is from a different {@link #VERSION}
+ * or fails to deserialize is rejected with a {@link PlankException}; either way the script must be loaded and the snapshot rewritten.
+ * The serialized classes have fixed {@code serialVersionUID}s, so the version must change whenever their fields do.
+ * Snapshots are read with Java deserialization so they should be as trusted as the scripts next to them.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class Snapshot {
+
+	/** The first bytes of every snapshot. */
+	static final byte[] MAGIC = {'P', 'l', 'n', 'S'};
+
+	/** The format version, to change whenever the fields of the serialized classes change, or loaded scripts change meaning. */
+	static final int VERSION = 2;
+
+	/** Added to the script file name to get the snapshot file name. */
+	public static final String SUFFIX = ".snapshot";
+
+	// Constructor.
+
+	/** No instances. */
+	private Snapshot() {}
+
+	// Methods.
+
+	/**
+	 * The hash of a script, which identifies its snapshot.
+	 * @param script the content of the script
+	 */
+	public static byte[] hash(byte[] script) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(script);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is required of every Java platform", e);
+		}
+	}
+
+	/**
+	 * Read the snapshot next to a script, if there is one for the script content.
+	 * @param scriptFile the script
+	 * @param hash of the current content of the script
+	 * @return the loaded script, or null if there is no snapshot for the script content
+	 * @throws PlankException if the snapshot is from a different version or cannot be read
+	 */
+	public static Loader read(Path scriptFile, byte[] hash) throws PlankException {
+		final Path snapshotFile = snapshotFile(scriptFile);
+		if (!Files.isRegularFile(snapshotFile))
+			return null;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(snapshotFile))) {
+			final DataInputStream header = new DataInputStream(in);
+			final byte[] magic = new byte[MAGIC.length];
+			header.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new PlankException("%s: not a snapshot", snapshotFile);
+			final int version = header.readInt();
+			if (version != VERSION)
+				throw new PlankException("%s: snapshot has version %d rather than %d", snapshotFile, version, VERSION);
+			final byte[] snapshotHash = new byte[header.readUnsignedShort()];
+			header.readFully(snapshotHash);
+			if (!Arrays.equals(snapshotHash, hash))
+				return null;
+			final Object loader = new ObjectInputStream(in).readObject();
+			if (!(loader instanceof Loader))
+				throw new PlankException("%s: snapshot does not contain a loaded script", snapshotFile);
+			return (Loader) loader;
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			throw new PlankException(e, "%s: corrupt snapshot (%s)", snapshotFile, e.getMessage());
+		}
+	}
+
+	/**
+	 * Write the snapshot of a loaded script next to it.
+	 * The snapshot is written to a temporary file that then replaces any previous snapshot,
+	 * so concurrent runs never see a partial snapshot.
+	 * @param scriptFile the script
+	 * @param hash of the content of the script that was loaded
+	 * @param loader with the script, without errors
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public static void write(Path scriptFile, byte[] hash, Loader loader) throws IOException {
+		loader.executable(); // so the analysis of the rules is included
+		final Path snapshotFile = snapshotFile(scriptFile);
+		final Path directory = snapshotFile.toAbsolutePath().getParent();
+		final Path temporary = Files.createTempFile(directory, snapshotFile.getFileName().toString(), ".tmp");
+		try {
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+				final DataOutputStream header = new DataOutputStream(out);
+				header.write(MAGIC);
+				header.writeInt(VERSION);
+				header.writeShort(hash.length);
+				header.write(hash);
+				header.flush();
+				final ObjectOutputStream objects = new ObjectOutputStream(out);
+				objects.writeObject(loader);
+				objects.flush();
+			}
+			Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/** The snapshot file of a script. */
+	private static Path snapshotFile(Path scriptFile) {
+		return scriptFile.resolveSibling(scriptFile.getFileName() + SUFFIX);
+	}
+}
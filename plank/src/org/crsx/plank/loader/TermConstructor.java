@@ -0,0 +1,373 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.loader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.base.Var;
+import org.crsx.plank.sort.ConsForm;
+import org.crsx.plank.sort.Sort;
+import org.crsx.plank.term.Sink;
+import org.crsx.plank.term.Term;
+import org.crsx.plank.term.TermBuilder;
+
+/**
+ * Construction of terms for a loaded script by constructor name, checked against the script as they are constructed.
+ * The constructors must be declared, with the declared number of scopes, binders, and associations,
+ * variables must be bound by an enclosing scope (or be association keys), and sorts are inferred as by {@link TermReader}.
+ * The pieces of a construction are given in order: a scope piece is the binders, with {@link #scope(Var...)} (which can be omitted when there are none),
+ * followed by the body; an association piece is {@link #openAssoc()}, the key and value of each entry, and {@link #closeAssoc()}.
+ * For example, with a script declaring {@code Lambda scheme Ap(Lambda, Lambda)} and {@code Lambda scheme Lam([Lambda]Lambda)},
+ * the term {@code Ap(Lam([x]x), Lam([y]y))} is constructed by
+ * <pre>
+ * c.open("Ap").open("Lam").scope(x).occur(x).close().open("Lam").scope(y).occur(y).close().close();
+ * </pre>
+ * Once a term is complete the constructor can be used for the next, but after an error it cannot be used further.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class TermConstructor {
+
+	/** For scopes without binders. */
+	private static final Var[] NO_BINDERS = new Var[0];
+
+	// State.
+
+	/** The script with the constructor forms and sort constraints. */
+	private final Loader _loader;
+
+	/** Origin of the constructed terms. */
+	private final String _origin;
+
+	/** Whether the constructor builds terms itself, rather than send them to a sink. */
+	private final boolean _building;
+
+	/** The builder of the current term, when building. */
+	private TermBuilder _builder;
+
+	/** Where the events are sent. */
+	private Sink _sink;
+
+	/** The constructions and associations that are open, innermost first. */
+	private final ArrayDeque<Open> _open = new ArrayDeque<>();
+
+	/** Whether the current term is complete. */
+	private boolean _complete;
+
+	/** The variables bound by the scopes that are still open. */
+	private final Set<Var> _bound = new HashSet<>();
+
+	/** The variables bound by the scopes that are still open, innermost last. */
+	private final List<Var> _undo = new ArrayList<>();
+
+	/** The variables used as association keys, which are free. */
+	private final Set<Var> _keys = new HashSet<>();
+
+	/** Sorts of the variables, including association keys. */
+	private final Map<Var, Sort> _varSort = new HashMap<>();
+
+	/** The sort constraints of the current term, or null if it has needed no real unification of sorts. */
+	private Unifier _unifier;
+
+	/**
+	 * An open construction or association.
+	 */
+	private static final class Open {
+		/** The form of a construction, or null for an association. */
+		final ConsForm form;
+		/** For an association: the key and value sorts. */
+		final Sort keySort;
+		final Sort valueSort;
+		/** How many pieces of a construction have been started, and how many of those are scopes and associations. */
+		int pieces, scopes, assocs;
+		/** Whether a scope or map has been started and awaits its term. */
+		boolean pending;
+		/** Size of {@link TermConstructor#_undo} before the binders of the current scope. */
+		int undoMark;
+		Open(ConsForm form, Sort keySort, Sort valueSort, int undoMark) {
+			this.form = form;
+			this.keySort = keySort;
+			this.valueSort = valueSort;
+			this.undoMark = undoMark;
+		}
+	}
+
+	// Constructors.
+
+	/**
+	 * Create constructor of terms, which are obtained with {@link #term()}.
+	 * @param loader with the script that declares the constructors
+	 * @param origin to use for everything constructed
+	 */
+	public TermConstructor(Loader loader, String origin) {
+		_loader = loader;
+		_origin = origin;
+		_building = true;
+		_builder = Term.builder();
+		_sink = _builder;
+	}
+
+	/**
+	 * Create constructor that sends the events of the terms to a sink.
+	 * The sorts are sent as inferred so far, so with sort variables they may not have been expanded to what they are constrained to.
+	 * @param loader with the script that declares the constructors
+	 * @param sink to send the events to, which can be obtained again with {@link #sink()} when a term is complete
+	 * @param origin to use for everything constructed
+	 */
+	public TermConstructor(Loader loader, Sink sink, String origin) {
+		_loader = loader;
+		_origin = origin;
+		_building = false;
+		_sink = sink;
+	}
+
+	// Methods.
+
+	/**
+	 * Start construction.
+	 * @param constructor name of the constructor
+	 * @return this, for the pieces of the construction, ended by {@link #close()}
+	 * @throws PlankException if the constructor is not declared or not allowed here
+	 */
+	public TermConstructor open(String constructor) throws PlankException {
+		final ConsForm form = _loader.consForm(constructor);
+		if (form == null)
+			throw new PlankException("undefined constructor (%s)", constructor);
+		final Sort contextSort = startTerm();
+		_sink = _sink.open(_origin, unify(form.sort, contextSort), form);
+		_open.push(new Open(form, null, null, _undo.size()));
+		return this;
+	}
+
+	/**
+	 * Construction without pieces.
+	 * @param constructor name of the constructor
+	 * @return this
+	 * @throws PlankException if the constructor is not declared, has pieces, or is not allowed here
+	 */
+	public TermConstructor constant(String constructor) throws PlankException {
+		return open(constructor).close();
+	}
+
+	/**
+	 * End construction.
+	 * @return this
+	 * @throws PlankException if the construction does not have all its pieces
+	 */
+	public TermConstructor close() throws PlankException {
+		final Open top = _open.peek();
+		if (top == null || top.form == null || top.pending)
+			throw new PlankException("no construction to close");
+		if (top.pieces != top.form.subSort.length + top.form.keySort.length)
+			throw new PlankException("argument list has wrong arity for %s", top.form.name);
+		restore(top.undoMark);
+		_open.pop();
+		_sink = _sink.close();
+		endTerm();
+		return this;
+	}
+
+	/**
+	 * Start the next piece of the current construction as a scope with binders.
+	 * @param binders fresh variables, which are bound in the body of the scope
+	 * @return this, for the body
+	 * @throws PlankException if the next piece is not a scope with as many binders
+	 */
+	public TermConstructor scope(Var... binders) throws PlankException {
+		final Open top = _open.peek();
+		if (top == null || top.form == null || top.pending)
+			throw new PlankException("scopes only allowed as pieces of constructions");
+		final ConsForm form = top.form;
+		if (top.pieces == form.subSort.length + form.keySort.length || isAssocPiece(top))
+			throw new PlankException("no scope piece left in %s", form.name);
+		final Sort[] binderSort = form.binderSort[top.scopes];
+		if (binders.length != binderSort.length)
+			throw new PlankException("binders have arity different from declaration of %s", form.name);
+		restore(top.undoMark);
+		top.undoMark = _undo.size();
+		for (int i = 0; i < binders.length; ++i) {
+			if (_keys.contains(binders[i]) || !_bound.add(binders[i]))
+				throw new PlankException("variable is already bound (%s)", binders[i]);
+			_undo.add(binders[i]);
+			_varSort.put(binders[i], binderSort[i]);
+		}
+		++top.pieces;
+		++top.scopes;
+		top.pending = true;
+		_sink = _sink.scope(binders);
+		return this;
+	}
+
+	/**
+	 * Occurrence of a variable.
+	 * @param var bound by an enclosing scope, or an association key
+	 * @return this
+	 * @throws PlankException if the variable is not in scope or not allowed here
+	 */
+	public TermConstructor occur(Var var) throws PlankException {
+		final Sort sort = _varSort.get(var);
+		if (sort == null || !_bound.contains(var) && !_keys.contains(var))
+			throw new PlankException("variable is not in scope (%s)", var);
+		final Sort contextSort = startTerm();
+		_sink = _sink.occur(_origin, unify(sort, contextSort), var);
+		endTerm();
+		return this;
+	}
+
+	/**
+	 * Start the next piece of the current construction as an association.
+	 * @return this, for the entries, given as {@link #map(Var)} followed by the value, and ended with {@link #closeAssoc()}
+	 * @throws PlankException if the next piece is not an association
+	 */
+	public TermConstructor openAssoc() throws PlankException {
+		final Open top = _open.peek();
+		if (top == null || top.form == null || top.pending || !isAssocPiece(top))
+			throw new PlankException("no association piece here");
+		restore(top.undoMark);
+		final ConsForm form = top.form;
+		final int a = top.assocs++;
+		_sink = _sink.openAssoc(_origin, top.pieces++, form.keySort[a], form.valueSort[a]);
+		_open.push(new Open(null, form.keySort[a], form.valueSort[a], _undo.size()));
+		return this;
+	}
+
+	/**
+	 * Start the next entry of the current association.
+	 * @param key variable, either bound by an enclosing scope or free
+	 * @return this, for the value
+	 * @throws PlankException if not in an association
+	 */
+	public TermConstructor map(Var key) throws PlankException {
+		final Open top = _open.peek();
+		if (top == null || top.form != null || top.pending)
+			throw new PlankException("maps only allowed in associations");
+		if (_bound.contains(key) || _keys.contains(key)) {
+			_varSort.put(key, unify(_varSort.get(key), top.keySort));
+		} else {
+			// Free key variable.
+			_keys.add(key);
+			_varSort.put(key, top.keySort);
+		}
+		top.pending = true;
+		_sink = _sink.map(key);
+		return this;
+	}
+
+	/**
+	 * End the current association.
+	 * @return this
+	 * @throws PlankException if not in an association, or an entry has no value
+	 */
+	public TermConstructor closeAssoc() throws PlankException {
+		final Open top = _open.peek();
+		if (top == null || top.form != null || top.pending)
+			throw new PlankException("no association to close");
+		_open.pop();
+		_sink = _sink.closeAssoc();
+		return this;
+	}
+
+	/**
+	 * The term that was constructed, for constructors created without a sink.
+	 * The constructor is then ready for the next term.
+	 * @return the term, with sorts expanded
+	 * @throws PlankException if there is no complete term
+	 */
+	public Term term() throws PlankException {
+		if (!_building)
+			throw new PlankException("terms are sent to a sink");
+		if (!_complete)
+			throw new PlankException("term is not complete");
+		final Term term = _builder.build();
+		final Unifier unifier = _unifier;
+		reset();
+		_builder = Term.builder();
+		_sink = _builder;
+		return unifier != null ? unifier.expandTerm(term) : term;
+	}
+
+	/**
+	 * The sink to use for subsequent events, once the term has been sent.
+	 * The constructor is then ready for the next term.
+	 * @throws PlankException if there is no complete term
+	 */
+	public Sink sink() throws PlankException {
+		if (_building)
+			throw new PlankException("terms are built");
+		if (!_complete)
+			throw new PlankException("term is not complete");
+		reset();
+		return _sink;
+	}
+
+	/** Forget everything about the previous term. */
+	private void reset() {
+		_complete = false;
+		_bound.clear();
+		_undo.clear();
+		_keys.clear();
+		_varSort.clear();
+		_unifier = null;
+	}
+
+	/** Check that a term is allowed now, and return the sort it must have (or null for any). */
+	private Sort startTerm() throws PlankException {
+		final Open top = _open.peek();
+		if (top == null) {
+			if (_complete)
+				throw new PlankException("term is already complete");
+			return null;
+		}
+		if (top.form == null) {
+			// Value in association.
+			if (!top.pending)
+				throw new PlankException("association value needs a key");
+			top.pending = false;
+			return top.valueSort;
+		}
+		if (!top.pending) {
+			// Scope piece without binders.
+			if (top.pieces < top.form.subSort.length + top.form.keySort.length && !isAssocPiece(top)
+					&& top.form.binderSort[top.scopes].length == 0)
+				scope(NO_BINDERS);
+			else
+				throw new PlankException("no scope piece without binders left in %s", top.form.name);
+		}
+		top.pending = false;
+		return top.form.subSort[top.scopes - 1];
+	}
+
+	/** Note that a term has ended, which may complete the whole term. */
+	private void endTerm() {
+		if (_open.isEmpty())
+			_complete = true;
+	}
+
+	/** Whether the next piece of a construction is an association. */
+	private static boolean isAssocPiece(Open open) {
+		return open.assocs < open.form.keySort.length && open.form.assocRealIndex[open.assocs] == open.pieces;
+	}
+
+	/** Undo the bindings after the mark. */
+	private void restore(int mark) {
+		for (int i = _undo.size() - 1; i >= mark; --i)
+			_bound.remove(_undo.remove(i));
+	}
+
+	/** Unify the sort of something with the sort required by the context, using a unifier only when they are not simply the same. */
+	private Sort unify(Sort sort, Sort contextSort) throws PlankException {
+		if (contextSort == null || sort == contextSort || (TermReader.isGround(sort) && sort.equals(contextSort)))
+			return sort;
+		if (_unifier == null)
+			_unifier = _loader.termUnifier();
+		return _unifier.unify(sort, contextSort);
+	}
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.loader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.base.Var;
+import org.crsx.plank.sort.ConsForm;
+import org.crsx.plank.sort.Sort;
+import org.crsx.plank.term.Sink;
+import org.crsx.plank.term.Term;
+import org.crsx.plank.term.TermBuilder;
+
+/**
+ * Fast reader of terms in the plank text syntax, for a loaded script.
+ * The characters are read directly into events for a sink, without tokens, parse trees, or recursion,
+ * and sorts are inferred against the loader as by {@link PlankBuilder#parseTerm(org.antlr.v4.runtime.CharStream, boolean)}.
+ * Only the terms used as inputs are supported, so there are no meta-applications and associations only have plain maps;
+ * sort annotations are skipped (as by the ANTLR-based parser).
+ * All the parts of a term get the same origin, which is the source name with the line where the term starts.
+ * Several terms can be read in sequence, separated by ';' (see {@link #skipSeparator()}).
+ * The sort constraints of each term are recorded separately from the loader, so readers for the same loader can be used on different threads.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class TermReader {
+
+	/** How many characters to read at a time. */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** For scopes without binders. */
+	private static final Var[] NO_BINDERS = new Var[0];
+
+	// State.
+
+	/** The script with the constructor forms and sort constraints. */
+	private final Loader _loader;
+
+	/** Where to read the characters. */
+	private final Reader _in;
+
+	/** Name of the input for origins and errors. */
+	private final String _sourceName;
+
+	/** The characters read but not consumed are from {@link #_pos} to {@link #_limit}. */
+	private final char[] _buffer = new char[BUFFER_SIZE];
+	private int _pos;
+	private int _limit;
+
+	/** Position of the next character. */
+	private int _line = 1;
+	private int _column;
+
+	/** For collecting names. */
+	private final StringBuilder _name = new StringBuilder();
+
+	/** The variables in scope by name. */
+	private final Map<String, Var> _vars = new HashMap<>();
+
+	/** The previous meaning of names that were bound by scopes that are still open, innermost last. */
+	private final List<Binding> _undo = new ArrayList<>();
+
+	/** Sorts of the variables. */
+	private final Map<Var, Sort> _varSort = new HashMap<>();
+
+	/** Origin of all the parts of the current term. */
+	private String _origin;
+
+	/** The sort constraints of the current term, or null if it has needed no real unification of sorts (so its sorts need no expansion). */
+	private Unifier _unifier;
+
+	/**
+	 * Name with the variable it meant before it was bound.
+	 */
+	private static final class Binding {
+		final String name;
+		final Var previous;
+		Binding(String name, Var previous) {
+			this.name = name;
+			this.previous = previous;
+		}
+	}
+
+	/**
+	 * An open construction or association.
+	 */
+	private static final class Open {
+		/** The form of a construction, or null for an association. */
+		final ConsForm form;
+		/** For an association: the key and value sorts. */
+		final Sort keySort;
+		final Sort valueSort;
+		/** How many pieces (for a construction) have been started, and how many of those are scopes and associations. */
+		int pieces;
+		int scopes;
+		int assocs;
+		/** Whether the first piece or map has been started. */
+		boolean started;
+		/** Size of {@link TermReader#_undo} before the binders of the current scope. */
+		int undoMark;
+		Open(ConsForm form, Sort keySort, Sort valueSort, int undoMark) {
+			this.form = form;
+			this.keySort = keySort;
+			this.valueSort = valueSort;
+			this.undoMark = undoMark;
+		}
+	}
+
+	// Constructor.
+
+	/**
+	 * Create reader.
+	 * @param loader with the script that declares the constructors
+	 * @param in where to read the terms
+	 * @param sourceName for origins and error messages
+	 */
+	public TermReader(Loader loader, Reader in, String sourceName) {
+		_loader = loader;
+		_in = in;
+		_sourceName = sourceName;
+	}
+
+	// Methods.
+
+	/**
+	 * Whether there is nothing but white space and comments left.
+	 * @throws PlankException if the input cannot be read
+	 */
+	public boolean atEnd() throws PlankException {
+		return peekToken() < 0;
+	}
+
+	/**
+	 * Check that there is nothing but white space and comments left.
+	 * @throws PlankException if there is more
+	 */
+	public void expectEnd() throws PlankException {
+		final int c = peekToken();
+		if (c >= 0)
+			throw error("end of input expected but found %s", describe(c));
+	}
+
+	/**
+	 * Skip the ';' that separates a term from the next.
+	 * Only the input up to and including the separator is consumed, so this does not wait for the next term.
+	 * @return whether there was a separator
+	 * @throws PlankException if the input cannot be read
+	 */
+	public boolean skipSeparator() throws PlankException {
+		if (peekToken() != ';')
+			return false;
+		next();
+		return true;
+	}
+
+	/**
+	 * Read the next term.
+	 * @return the term, with sorts expanded as for {@link PlankBuilder#parseTerm(org.antlr.v4.runtime.CharStream, boolean)}
+	 * @throws PlankException if there is no valid term
+	 */
+	public Term read() throws PlankException {
+		final TermBuilder builder = Term.builder();
+		read(builder);
+		final Term term = builder.build();
+		return _unifier != null ? _unifier.expandTerm(term) : term;
+	}
+
+	/**
+	 * Read the next term, sending it to a sink.
+	 * The sorts are sent as inferred so far, so with sort variables they may not have been expanded to what they are constrained to.
+	 * @param sink to send the events for the term to
+	 * @return the sink to use for subsequent events
+	 * @throws PlankException if there is no valid term
+	 */
+	public Sink read(Sink sink) throws PlankException {
+		_vars.clear();
+		_undo.clear();
+		_varSort.clear();
+		_unifier = null;
+		peekToken();
+		_origin = _sourceName + ":" + _line;
+		final ArrayDeque<Open> open = new ArrayDeque<>();
+		sink = startTerm(sink, null, open);
+		while (!open.isEmpty()) {
+			final Open top = open.peek();
+			if (top.form != null) {
+				// In construction: next piece, or close.
+				final ConsForm form = top.form;
+				final int total = form.subSort.length + form.keySort.length;
+				final int c = peekToken();
+				if (top.started) {
+					restore(top.undoMark); // end of scope
+					if (c == ',') {
+						next();
+					} else if (c == ')') {
+						next();
+						if (top.pieces != total)
+							throw error("argument list has wrong arity for %s", form.name);
+						open.pop();
+						sink = sink.close();
+						continue;
+					} else {
+						throw error("',' or ')' expected but found %s", describe(c));
+					}
+				} else {
+					top.started = true;
+					if (c == ')') {
+						next();
+						if (total != 0)
+							throw error("argument list has wrong arity for %s", form.name);
+						open.pop();
+						sink = sink.close();
+						continue;
+					}
+				}
+				if (top.pieces == total)
+					throw error("argument list has wrong arity for %s", form.name);
+				final int realIndex = top.pieces++;
+				if (top.assocs < form.keySort.length && form.assocRealIndex[top.assocs] == realIndex) {
+					// Association piece.
+					final int a = top.assocs++;
+					expect('{');
+					sink = sink.openAssoc(_origin, realIndex, form.keySort[a], form.valueSort[a]);
+					open.push(new Open(null, form.keySort[a], form.valueSort[a], _undo.size()));
+				} else {
+					// Scope piece.
+					final int i = top.scopes++;
+					top.undoMark = _undo.size();
+					final Sort[] binderSort = form.binderSort[i];
+					final Var[] binders = peekToken() == '[' ? readBinders(binderSort) : NO_BINDERS;
+					if (binders.length != binderSort.length)
+						throw error("binders have arity different from declaration of %s", form.name);
+					sink = sink.scope(binders);
+					sink = startTerm(sink, form.subSort[i], open);
+				}
+			} else {
+				// In association: next map, or close.
+				int c = peekToken();
+				if (top.started) {
+					if (c == ',') {
+						next();
+					} else if (c == '}') {
+						next();
+						open.pop();
+						sink = sink.closeAssoc();
+						continue;
+					} else {
+						throw error("',' or '}' expected but found %s", describe(c));
+					}
+				} else {
+					top.started = true;
+					if (c == '}') {
+						next();
+						open.pop();
+						sink = sink.closeAssoc();
+						continue;
+					}
+				}
+				c = peekToken();
+				if (!isLower(c))
+					throw error("association key variable expected but found %s", describe(c));
+				final String name = readName();
+				Var key = _vars.get(name);
+				if (key == null) {
+					// Free key variable.
+					key = new Var(name);
+					_vars.put(name, key);
+					_varSort.put(key, top.keySort);
+				} else {
+					_varSort.put(key, unify(_varSort.get(key), top.keySort));
+				}
+				expect(':');
+				sink = sink.map(key);
+				sink = startTerm(sink, top.valueSort, open);
+			}
+		}
+		return sink;
+	}
+
+	/**
+	 * Read the start of a term: a variable, or the constructor of a construction, which is pushed if it has pieces.
+	 * @param sink for the term
+	 * @param contextSort the sort the term must have, or null for any
+	 * @param open the constructions and associations being read
+	 */
+	private Sink startTerm(Sink sink, Sort contextSort, ArrayDeque<Open> open) throws PlankException {
+		int c = peekToken();
+		if (c == '<') {
+			skipSortAnnotation();
+			c = peekToken();
+		}
+		if (isUpper(c)) {
+			final String name = readName();
+			final ConsForm form = _loader.consForm(name);
+			if (form == null)
+				throw error("undefined constructor (%s)", name);
+			sink = sink.open(_origin, unify(form.sort, contextSort), form);
+			if (peekToken() == '(') {
+				next();
+				open.push(new Open(form, null, null, _undo.size()));
+			} else {
+				if (form.subSort.length + form.keySort.length != 0)
+					throw error("argument list expected for %s", name);
+				sink = sink.close();
+			}
+			return sink;
+		} else if (isLower(c)) {
+			final String name = readName();
+			final Var var = _vars.get(name);
+			if (var == null)
+				throw error("variable is not defined (%s)", name);
+			return sink.occur(_origin, unify(_varSort.get(var), contextSort), var);
+		} else if (c == '#') {
+			throw error("meta-applications are not allowed in terms");
+		} else {
+			throw error("term expected but found %s", describe(c));
+		}
+	}
+
+	/** Read binders, after checking that the next character is '[', and bind them with the given sorts. */
+	private Var[] readBinders(Sort[] binderSort) throws PlankException {
+		next(); // '['
+		if (peekToken() == ']') {
+			next();
+			return NO_BINDERS;
+		}
+		final List<Var> binders = new ArrayList<>(binderSort.length);
+		while (true) {
+			final int c = peekToken();
+			if (!isLower(c))
+				throw error("binder variable expected but found %s", describe(c));
+			final String name = readName();
+			for (Var b : binders) {
+				if (b.name.equals(name))
+					throw error("duplicate binder in scope (%s)", name);
+			}
+			final Var var = new Var(name);
+			_undo.add(new Binding(name, _vars.put(name, var)));
+			if (binders.size() < binderSort.length)
+				_varSort.put(var, binderSort[binders.size()]);
+			binders.add(var);
+			final int sep = peekToken();
+			next();
+			if (sep == ']')
+				break;
+			if (sep != ',')
+				throw error("',' or ']' expected but found %s", describe(sep));
+		}
+		return binders.toArray(new Var[binders.size()]);
+	}
+
+	/** Undo the bindings after the mark. */
+	private void restore(int mark) {
+		for (int i = _undo.size() - 1; i >= mark; --i) {
+			final Binding binding = _undo.remove(i);
+			if (binding.previous == null)
+				_vars.remove(binding.name);
+			else
+				_vars.put(binding.name, binding.previous);
+		}
+	}
+
+	/** Unify the sort of something with the sort required by the context, using the loader only when they are not simply the same. */
+	private Sort unify(Sort sort, Sort contextSort) throws PlankException {
+		if (contextSort == null || sort == contextSort || (isGround(sort) && sort.equals(contextSort)))
+			return sort;
+		if (_unifier == null)
+			_unifier = _loader.termUnifier();
+		try {
+			return _unifier.unify(sort, contextSort);
+		} catch (PlankException e) {
+			throw error("%s", e.getMessage());
+		}
+	}
+
+	/** Whether the sort has no sort variables. */
+	static boolean isGround(Sort sort) {
+		if (sort.isVar())
+			return false;
+		for (Sort p : sort.param) {
+			if (!isGround(p))
+				return false;
+		}
+		return true;
+	}
+
+	/** Skip a sort annotation, after checking that the next character is '<'. */
+	private void skipSortAnnotation() throws PlankException {
+		int depth = 0;
+		do {
+			final int c = peekToken();
+			if (c < 0)
+				throw error("unterminated sort annotation");
+			next();
+			if (c == '<')
+				++depth;
+			else if (c == '>')
+				--depth;
+		} while (depth > 0);
+	}
+
+	// Characters.
+
+	/** The next character, or -1 at the end of the input. */
+	private int peek() throws PlankException {
+		if (_pos == _limit) {
+			try {
+				final int count = _in.read(_buffer, 0, _buffer.length);
+				_pos = 0;
+				_limit = Math.max(count, 0);
+			} catch (IOException e) {
+				throw new PlankException(e, "%s: %s", _sourceName, e.getMessage());
+			}
+			if (_limit == 0)
+				return -1;
+		}
+		return _buffer[_pos];
+	}
+
+	/** Consume the character returned by the previous {@link #peek()}. */
+	private void next() {
+		if (_buffer[_pos++] == '\n') {
+			++_line;
+			_column = 0;
+		} else {
+			++_column;
+		}
+	}
+
+	/** Skip white space and comments, and then return the next character, or -1 at the end of the input. */
+	private int peekToken() throws PlankException {
+		while (true) {
+			final int c = peek();
+			if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+				next();
+			} else if (c == '/') {
+				next();
+				if (peek() != '*')
+					throw error("'*' expected after '/'");
+				next();
+				boolean star = false;
+				while (true) {
+					final int d = peek();
+					if (d < 0)
+						throw error("unterminated comment");
+					next();
+					if (star && d == '/')
+						break;
+					star = d == '*';
+				}
+			} else {
+				return c;
+			}
+		}
+	}
+
+	/** Consume the expected character (after white space). */
+	private void expect(char expected) throws PlankException {
+		final int c = peekToken();
+		if (c != expected)
+			throw error("'%c' expected but found %s", expected, describe(c));
+		next();
+	}
+
+	/** Read the name that starts with the next character. */
+	private String readName() throws PlankException {
+		_name.setLength(0);
+		int c = peek();
+		do {
+			_name.append((char) c);
+			next();
+			c = peek();
+		} while ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_');
+		return _name.toString();
+	}
+
+	/** Whether the character can start a constructor. */
+	private static boolean isUpper(int c) {
+		return c >= 'A' && c <= 'Z';
+	}
+
+	/** Whether the character can start a variable. */
+	private static boolean isLower(int c) {
+		return c >= 'a' && c <= 'z';
+	}
+
+	/** Describe a character for errors. */
+	private static String describe(int c) {
+		return c < 0 ? "end of input" : "'" + (char) c + "'";
+	}
+
+	/** Create exception for an error at the current position. */
+	private PlankException error(String format, Object... args) {
+		return new PlankException("%s:line %d pos %d: %s", _sourceName, _line, _column, args.length == 0 ? format : String.format(format, args));
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.loader;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.crsx.plank.base.Origined;
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.base.Var;
+import org.crsx.plank.sort.ConsForm;
+import org.crsx.plank.sort.Sort;
+import org.crsx.plank.term.Assoc;
+import org.crsx.plank.term.Cons;
+import org.crsx.plank.term.Meta;
+import org.crsx.plank.term.Occur;
+import org.crsx.plank.term.Term;
+
+/**
+ * Sort unification state: the equivalences and constraints of sort variables, and expansion of sorts with them.
+ * A unifier can extend a parent unifier, in which case it sees the equivalences and constraints of the parent
+ * but records all new ones itself, so the parent is never modified;
+ * this is how sorts of input terms are inferred against a loaded script without changing the script,
+ * so any number of terms can be parsed at the same time.
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+final class Unifier implements Serializable {
+
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
+
+	// State.
+
+	/** The unifier extended, or null. */
+	private final Unifier _parent;
+
+	/** All substitutions: variables that are equivalent all map to their representative. Updated by {@link #unify(Sort, Sort)}. */
+	private final Map<Var, Var> _equiv = new HashMap<>();
+
+	/**
+	 * Mapping of all sort variables to their instantiation, if any.
+	 * All <em>keys</em> are always "representatives" in the sense of {@link #_equiv}.
+	 *  Updated by {@link #unify(Sort, Sort)}.
+	 */
+	private final Map<Var, Sort> _constraint = new HashMap<>();
+
+	// Constructors.
+
+	/** Create empty unifier. */
+	Unifier() {
+		this(null);
+	}
+
+	/** Create unifier that extends another, which will not be modified. */
+	Unifier(Unifier parent) {
+		_parent = parent;
+	}
+
+	// Methods.
+
+	/** The variable that a variable was made equivalent to, or null. */
+	private Var equiv(Var var) {
+		final Var rep = _equiv.get(var);
+		return rep != null || _parent == null ? rep : _parent.equiv(var);
+	}
+
+	/** The constraint of a representative variable, or null. */
+	private Sort constraint(Var var) {
+		final Sort sort = _constraint.get(var);
+		return sort != null || _parent == null ? sort : _parent.constraint(var);
+	}
+
+	/**
+	 * Unify the two sorts, updating the sort variable mappings.
+	 * @param sort1 first sort
+	 * @param sort2 second sort
+	 * @return the unified sort
+	 * @throws PlankException if unification fails with a conflict
+	 */
+	Sort unify(Sort sort1, Sort sort2) throws PlankException {
+		
+		// Advance incoming sort variables to their representative.
+		if (sort1.isVar() && equiv(sort1.var) != null)
+			sort1 = Sort.mkSortVar(sort1.origin(), unifyRepresentative(sort1.var));
+		if (sort2.isVar() && equiv(sort2.var) != null)
+			sort2 = Sort.mkSortVar(sort2.origin(), unifyRepresentative(sort2.var));
+		
+		if (sort1.isVar() && sort2.isVar()) {
+
+			// CASE 0: We have the same variable twice, escape!
+			if (sort1.var == sort2.var)
+				return sort1;
+			
+			// CASE 1: If we have two (now representative) variables. Make them equivalent, return the representative.
+			Var var1 = sort1.var;
+			Var var2 = sort2.var;
+			if (var1.compareTo(var2) > 0) {
+				Var v = var1; var1 = var2; var2 = v; // swap so var1 is smallest
+				Sort s = sort1; sort1 = sort2; sort2 = s; // swap sorts correspondingly
+			}
+			// Now replace var2 with var1.
+			_equiv.put(var2,  var1); // so future unifications get it
+			// Update constraints.
+			if (constraint(var2) != null) {
+				if (constraint(var1) != null) {
+					// Have constraints for both. The replacement constraints are obtained by unification.
+					Sort sort = unify(constraint(var1), constraint(var2));
+					_constraint.put(var1, sort);
+				} else {
+					// Only have constraints for var2. Just move constraint for var2 to var1.
+					Sort sort = constraint(var2);
+					_constraint.put(var1,  sort);
+				}
+				_constraint.remove(var2);
+			}
+			return sort1;  // result is the representative variable (that now has the unified constraint)
+		}
+		assert !sort1.isVar() || !sort2.isVar() : "Panic: variable sort pair slipped through..."; 
+		
+		// Expand the at most one already known representative variable to its sort constraints. 
+		Var originalVar1 = null;
+		Var originalVar2 = null;
+		if (sort1.isVar() && constraint(sort1.var) != null) 
+			sort1 = constraint(originalVar1 = sort1.var);
+		if (sort2.isVar() && constraint(sort2.var) != null) 
+			sort2 = constraint(originalVar2 = sort2.var);
+		
+		// CASE 2: We have two instances. Unify as terms.
+		if (!sort1.isVar() && !sort2.isVar()) {
+			if (!sort1.name.equals(sort2.name))
+				throw new PlankException("cannot unify sorts %s and %s", sort1.name, sort2.name);
+			// Got identical sorts! Compute unified sort by recursing over the sort parameters.
+			final int rank = sort1.param.length;
+			final Sort[] param = new Sort[rank];
+			for (int i = 0; i < rank; ++i)
+				param[i] = unify(sort1.param[i], sort2.param[i]);
+			Sort sort = Sort.mkSortInstance(Origined.combine("Unified between %s and %s", sort1.origin(), sort2.origin()), sort1.name, param);
+			sort = unifySubstituteRepresentative(sort);
+			// If one of the constraints were expanded from a variable, update the constraint.
+			if (originalVar1 != null) {
+				_constraint.put(originalVar1, sort);
+				return sort1; // result is expanded variable sort
+			}
+			if (originalVar2 != null) {
+				_constraint.put(originalVar2, sort);
+				return sort2; // result is expanded variable sort
+			}
+			return sort; // no variables were expanded so result is the unified constraint
+		}
+		assert originalVar1 == null && originalVar2 == null : "Panic: With one variable and an instance, the instance cannot be expanded....";
+
+		// CASE 3: We have one unconstrained sort variable and one instance.
+		// The instance was not expanded from a variable because then this would be the first case.
+		// Map the unconstrained variable to the instance, and return the variable!
+		if (sort2.isVar()) { // flip to make sort1 the variable sort
+			Sort s = sort1; sort1 = sort2; sort2 = s;
+		}
+		assert !sort2.isVar() && originalVar1 == null && originalVar2 == null : "Panic: variable escaped through to mixed case.";
+		_constraint.put(sort1.var, sort2); // constrain the variable
+		return sort1; // result is variable sort to catch more equivalences
+	}
+	
+	/** Find representative variable (by repeated application of {@link #_equiv}). */
+	private Var unifyRepresentative(Var var) {
+		while (equiv(var) != null)
+			var = equiv(var);
+		return var;
+	}
+	
+	/**
+	 * Replace all variables with the equivalence class representative in sort.
+	 * Used on created unification sorts to amortize equivalence class computation. 
+	 */
+	private Sort unifySubstituteRepresentative(Sort sort) {
+		// TODO: optimize this to reuse var and primary sorts when no change...?
+		if (sort.isVar()) {
+			return Sort.mkSortVar(sort.origin(), unifyRepresentative(sort.var));
+		} else { // !sort.isVar()
+			final int size = sort.param.length;
+			Sort[] param = new Sort[size];
+			for (int i = 0; i < size; ++i) {
+				param[i] = unifySubstituteRepresentative(sort.param[i]);
+			}
+			return Sort.mkSortInstance(sort.origin(), sort.name, param);
+		}
+	}
+	
+	/** Expand all sort constraints, leaving only unconstrained sort variables. */
+	Sort expandSort(Sort sort) {
+		if (sort == null) {
+			return null; // so it can be used on partial records
+		} else if (sort.isVar()) {
+			Var rep = unifyRepresentative(sort.var);
+			if (constraint(rep) != null) {
+				sort = constraint(rep);
+				return expandSort(sort); // tail recursive!
+			}
+			return Sort.mkSortVar(sort.origin(), rep);
+		} else {
+			final int rank = sort.param.length;
+			Sort[] param = new Sort[rank]; 
+			for (int i = 0; i < rank; ++i) {
+				param[i] = expandSort(sort.param[i]);
+			}
+			return Sort.mkSortInstance(sort.origin(), sort.name, param);
+		}
+	}
+
+	/** Expand all sorts in a constructor form. */
+	ConsForm expandConsForm(ConsForm form) {
+		final int subCount = form.subSort.length;
+		Sort[] newSubSort = new Sort[subCount];
+		Sort[][] newBinderSort = new Sort[subCount][];
+		for (int i = 0; i < subCount; ++i) {
+			newSubSort[i] = expandSort(form.subSort[i]);
+			final int rank = form.binderSort[i].length;
+			Sort[] subBinderSort = new Sort[rank];
+			for (int j = 0; j < rank; ++j)
+				subBinderSort[j] = expandSort(form.binderSort[i][j]);
+			newBinderSort[i] = subBinderSort;
+		}
+		final int assocCount = form.keySort.length;
+		Sort[] newKeySort = new Sort[assocCount];
+		Sort[] newValueSort = new Sort[assocCount];
+		for (int i = 0; i < assocCount; ++i) {
+			newKeySort[i] = expandSort(form.keySort[i]);
+			newValueSort[i] = expandSort(form.valueSort[i]);
+		}
+		return ConsForm.mk(form.origin(), expandSort(form.sort), form.name, newSubSort, newBinderSort, newKeySort, newValueSort, form.assocRealIndex, form.scheme, form.subEvaluation);
+	}
+	
+	/** Expand all sorts in a term to incorporate all constraints. */
+	Term expandTerm(Term term) {
+		// Post-order traversal with explicit stack, so deep terms do not overflow the thread stack.
+		final ArrayDeque<Expansion> pending = new ArrayDeque<>();
+		pending.push(new Expansion(term));
+		while (true) {
+			final Expansion top = pending.peek();
+			if (top.index < top.sub.length) {
+				pending.push(new Expansion(top.sub[top.index]));
+				continue;
+			}
+			pending.pop();
+			final Term expanded = expandNode(top);
+			if (pending.isEmpty())
+				return expanded;
+			final Expansion parent = pending.peek();
+			parent.newSub[parent.index++] = expanded;
+		}
+	}
+
+	/**
+	 * Term being expanded by {@link Unifier#expandTerm(Term)}.
+	 */
+	private static final class Expansion {
+		final Term term;
+		/** The subterms to expand (none for variables). */
+		final Term[] sub;
+		/** The expanded subterms so far. */
+		final Term[] newSub;
+		/** The next subterm to expand. */
+		int index;
+		Expansion(Term term) {
+			this.term = term;
+			switch (term.tag) {
+			case Term.CONS_TAG : sub = term.cons().sub; break;
+			case Term.META_TAG : sub = term.meta().sub; break;
+			default : sub = new Term[0]; break;
+			}
+			newSub = new Term[sub.length];
+		}
+	}
+
+	/** Create the expanded term once all its subterms have been expanded. */
+	private Term expandNode(Expansion expansion) {
+		final Term term = expansion.term;
+		switch (term.tag) {
+		case Term.CONS_TAG : {
+			Cons cons = term.cons();
+			final int assocCount = cons.assoc.length;
+			Assoc[] newAssoc = new Assoc[assocCount];
+			for (int i = 0; i <assocCount; ++i)
+				newAssoc[i] = expandAssoc(cons.assoc[i]);
+			return Term.mkCons(cons.origin(), expandSort(cons.sort()), expandConsForm(cons.form), cons.binder, expansion.newSub, newAssoc);
+		}
+		case Term.META_TAG : {
+			Meta meta = term.meta();
+			return Term.mkMeta(meta.origin(), expandSort(meta.sort()), meta.name, Arrays.asList(expansion.newSub));
+		}
+		case Term.OCCUR_TAG : {
+			Occur occur = term.occur();
+			return Term.mkOccur(occur.origin(), expandSort(occur.sort()), occur.var);
+		}
+		}
+		return null; // unreachable
+	}
+
+	/** Create a new association where all sorts have been expanded. */
+	private Assoc expandAssoc(Assoc assoc) {
+		Sort newKeySort = expandSort(assoc.keySort);
+		Sort newValueSort = expandSort(assoc.valueSort);
+		Map<Var, Term> newMap = new HashMap<>();
+		for (Var key : assoc.map.keySet())
+			newMap.put(key, expandTerm(assoc.map.get(key)));
+		return Assoc.mk(assoc.origin(), assoc.realIndex, newKeySort, newValueSort, newMap, assoc.omit, Arrays.asList(assoc.all));
+	}
+}
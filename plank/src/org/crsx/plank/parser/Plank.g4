@@ -8,7 +8,7 @@ hscript : declaration* ;
 
 declaration
 :  sort 'data' CONS forms ';'            #DataDeclaration
-|  sort 'scheme' CONS forms ';'          #SchemeDeclaration
+|  opts sort 'scheme' CONS forms ';'     #SchemeDeclaration
 |  sort 'variable' ';'                   #VariableDeclaration
 |  opts sort 'rule' term '→' term ';'   #RuleDeclaration
 ;
@@ -58,13 +58,16 @@ opts : '[' opt (',' opt)* ']' | '[' ']' | ;
 opt
 : PRIORITY                               #Priority
 | CONS                                   #Name
+| VAR positions                          #Evaluation
 ;
+positions : '(' INT (',' INT)* ')' | ;
 
 // Tokens.
 CONS : [A-Z] [A-Za-z0-9_]* ;
 META : '#' [A-Za-z0-9_]* ;
 VAR  : [a-z] [A-Za-z0-9_]* ;
 PRIORITY : 'default' | 'priority' ;
+INT : [0-9]+ ;
 
 // Skip.
 WS : ([ \t\r\n] | '/*' .*? '*/') -> skip;
\ No newline at end of file
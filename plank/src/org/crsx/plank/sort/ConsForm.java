@@ -19,6 +19,9 @@ import org.crsx.plank.base.Var;
  */
 public final class ConsForm extends Origined {
 
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Create constructor form (the name and argument shapes of a construction).
 	 * <p>
@@ -31,9 +34,30 @@ public final class ConsForm extends Origined {
 	 * @param valueSort sorts of the association values, in order
 	 * @param assocRealIndex the indices of the associations in the original term
 	 * @param scheme whether the construction is a defined symbol
+	 * @param subEvaluation evaluation hints for the scope arguments, in order, or null for no hints
+	 */
+	public static ConsForm mk(String origin, Sort sort, String name, Sort[] subSort, Sort[][] binderSort, Sort[] keySort, Sort[] valueSort, int[] assocRealIndex, boolean scheme, Evaluation[] subEvaluation) {
+		return new ConsForm(origin, sort, name, subSort, binderSort, keySort, valueSort, assocRealIndex, scheme, subEvaluation);
+	}
+
+	/**
+	 * Evaluation hint for a scheme argument.
+	 * The hint names are also the option names used in the script.
 	 */
-	public static ConsForm mk(String origin, Sort sort, String name, Sort[] subSort, Sort[][] binderSort, Sort[] keySort, Sort[] valueSort, int[] assocRealIndex, boolean scheme) {
-		return new ConsForm(origin, sort, name, subSort, binderSort, keySort, valueSort, assocRealIndex, scheme);
+	public enum Evaluation {
+		/** No hint: evaluate when a rule needs it. */
+		DEFAULT,
+		/** Evaluate before attempting any rule. */
+		STRICT,
+		/** Evaluate before attempting any rule, possibly in parallel with other such arguments. */
+		PARALLEL,
+		/** Only evaluate when a failed rule match requires it, never speculatively. */
+		LAZY;
+		
+		/** The name of the hint in the script. */
+		public String optionName() {
+			return name().toLowerCase();
+		}
 	}
 
 	// State
@@ -61,8 +85,11 @@ public final class ConsForm extends Origined {
 	/** Whether this is a defined symbol. */
 	public final boolean scheme;
 	
+	/** The evaluation hints of the scope subterms, in order. */
+	public final Evaluation[] subEvaluation;
+	
 	/** Actual instantiation. */
-	private ConsForm(String origin, Sort sort, String name, Sort[] subSort, Sort[][] binderSort, Sort[] keySort, Sort[] valueSort, int[] assocRealIndex, boolean scheme) {
+	private ConsForm(String origin, Sort sort, String name, Sort[] subSort, Sort[][] binderSort, Sort[] keySort, Sort[] valueSort, int[] assocRealIndex, boolean scheme, Evaluation[] subEvaluation) {
 		super(origin);
 		this.sort = sort;
 		assert sort != null;
@@ -74,6 +101,12 @@ public final class ConsForm extends Origined {
 		this.valueSort = valueSort == null || valueSort.length == 0 ? NO_SORT : valueSort;
 		this.assocRealIndex = assocRealIndex;
 		this.scheme = scheme;
+		if (subEvaluation == null) {
+			subEvaluation = new Evaluation[this.subSort.length];
+			Arrays.fill(subEvaluation, Evaluation.DEFAULT);
+		}
+		this.subEvaluation = subEvaluation;
+		assert subEvaluation.length == this.subSort.length : "Panic: constructor form with inconsistent evaluation hints?";
 		assert subSort.length == binderSort.length : "Panic: constructor form with inconsistent binders and subterms?";
 		assert keySort.length == valueSort.length : "Panic: constructor form with inconsistent key and value sorts?";
 	}
@@ -82,6 +115,19 @@ public final class ConsForm extends Origined {
 	
 	// Methods.
 	
+	/**
+	 * The real argument index (in the declaration) of a scope argument.
+	 * @param scopeIndex index of the scope, as in {@link #subSort}
+	 */
+	public int realIndex(int scopeIndex) {
+		int realIndex = scopeIndex;
+		for (int assocIndex : assocRealIndex) {
+			if (assocIndex <= realIndex)
+				++realIndex; // skip associations positioned before the scope
+		}
+		return realIndex;
+	}
+	
 	/**
 	 * Output plank declaration corresponding to this form.
 	 * @param out target for the output text
@@ -90,6 +136,7 @@ public final class ConsForm extends Origined {
 	public void appendConsForm(Appendable out) throws PlankException {
 		try {
 			Map<Var, String> namings = new HashMap<>();
+			appendEvaluation(out);
 			sort.appendSort(out, namings);
 			out.append(scheme ? " scheme " : " data ");
 			// Constructor.
@@ -122,6 +169,42 @@ public final class ConsForm extends Origined {
 		}
 	}
 	
+	/**
+	 * Whether this and that form are for the same constructor.
+	 * Constructors are unique by name, however, different instances of a form may have differently instantiated sorts,
+	 * so this is the test to use when matching, rather than {@link #equals(Object)}.
+	 * @param that form to compare with
+	 */
+	public boolean sameConstructor(ConsForm that) {
+		return this == that || name.equals(that.name);
+	}
+	
+	/** Output the non-default evaluation hints as options, with 1-based argument positions. */
+	private void appendEvaluation(Appendable out) throws IOException {
+		String sep = "[";
+		for (Evaluation evaluation : Evaluation.values()) {
+			if (evaluation == Evaluation.DEFAULT)
+				continue;
+			String positionSep = "(";
+			for (int i = 0; i < subEvaluation.length; ++i) {
+				if (subEvaluation[i] == evaluation) {
+					if (positionSep.equals("(")) {
+						out.append(sep);
+						out.append(evaluation.optionName());
+						sep = ", ";
+					}
+					out.append(positionSep);
+					out.append(Integer.toString(realIndex(i) + 1));
+					positionSep = ",";
+				}
+			}
+			if (!positionSep.equals("("))
+				out.append(")");
+		}
+		if (!sep.equals("["))
+			out.append("] ");
+	}
+	
 	// Object...
 
 	@Override
@@ -137,7 +220,8 @@ public final class ConsForm extends Origined {
 				&& Arrays.equals(keySort, that.keySort)
 				&& Arrays.equals(valueSort, that.valueSort)
 				&& Arrays.equals(assocRealIndex, that.assocRealIndex)
-				&& scheme == that.scheme;
+				&& scheme == that.scheme
+				&& Arrays.equals(subEvaluation, that.subEvaluation);
 	}
 	private static <T> boolean array2Equals(T[][] a1, T[][] a2) {
 		final int length = a1.length;
@@ -18,6 +18,9 @@ import org.crsx.plank.base.Var;
  * @author Kristoffer H. Rose <krisrose@crsx.org>
  */
 public final class Sort extends Origined {
+
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
 	
 	/**
 	 * Create sort variable.
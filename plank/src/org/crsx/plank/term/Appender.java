@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.term;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.base.Var;
+import org.crsx.plank.sort.Sort;
+
+/**
+ * Iterative driver for appending the plank text of terms.
+ * Each term appends its own text and pushes the work for its pieces, instead of recursing,
+ * so deep terms do not overflow the thread stack.
+ * @see Term#appendTerm(Appendable, String, Map, boolean)
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+final class Appender {
+
+	// State.
+
+	/** Where to send the text. */
+	final Appendable out;
+
+	/** Names of variables that are being used. */
+	final Map<Var, String> namings;
+
+	/** Whether to include sorts. */
+	final boolean includeSorts;
+
+	/** The work still to do, next on top. */
+	private final ArrayDeque<Task> _tasks = new ArrayDeque<>();
+
+	/** Kinds of {@link Task}. */
+	private static final byte TERM = 0, TEXT = 1, BINDERS = 2, KEY = 3;
+
+	/**
+	 * Work item: text to append or a term, binders, or association key to append the text of.
+	 */
+	static final class Task {
+		final byte kind;
+		/** The term, text, binders, or key. */
+		final Object item;
+		/** For {@link #TERM} and {@link #KEY}: the prefix. */
+		final String prefix;
+		/** For {@link #KEY}: the sort. */
+		final Sort sort;
+		private Task(byte kind, Object item, String prefix, Sort sort) {
+			this.kind = kind;
+			this.item = item;
+			this.prefix = prefix;
+			this.sort = sort;
+		}
+	}
+
+	// Constructor.
+
+	/** Create appender. */
+	Appender(Appendable out, Map<Var, String> namings, boolean includeSorts) {
+		this.out = out;
+		this.namings = namings;
+		this.includeSorts = includeSorts;
+	}
+
+	// Methods.
+
+	/** Task to append term with prefix. */
+	static Task term(Term term, String prefix) {
+		return new Task(TERM, term, prefix, null);
+	}
+
+	/** Task to append text. */
+	static Task text(String text) {
+		return new Task(TEXT, text, null, null);
+	}
+
+	/** Task to append binders, naming them as they are appended. */
+	static Task binders(Var[] binders) {
+		return new Task(BINDERS, binders, null, null);
+	}
+
+	/** Task to append association key. */
+	static Task key(Var key, Sort sort, String prefix) {
+		return new Task(KEY, key, prefix, sort);
+	}
+
+	/** Push tasks so they are done in list order (before what was already pushed). */
+	void pushAll(List<Task> tasks) {
+		for (int i = tasks.size() - 1; i >= 0; --i)
+			_tasks.push(tasks.get(i));
+	}
+
+	/** Do all the work. */
+	void run() throws PlankException {
+		try {
+			while (!_tasks.isEmpty()) {
+				final Task task = _tasks.pop();
+				switch (task.kind) {
+				case TERM :
+					((Term) task.item).resolve().appendTerm(this, task.prefix);
+					break;
+				case TEXT :
+					out.append((String) task.item);
+					break;
+				case BINDERS : {
+					String sep = "[";
+					for (Var b : (Var[]) task.item) {
+						out.append(sep);
+						String newName = b.name + namings.size();
+						namings.put(b, newName);
+						out.append(newName);
+						sep = ",";
+					}
+					out.append("]");
+					break;
+				}
+				case KEY :
+					Occur.appendFreeVar(out, task.sort, (Var) task.item, task.prefix, namings, includeSorts);
+					break;
+				}
+			}
+		} catch (IOException e) {
+			throw new PlankException(e);
+		}
+	}
+}
@@ -4,7 +4,7 @@
  */
 package org.crsx.plank.term;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +21,9 @@ import org.crsx.plank.sort.Sort;
  */
 public final class Assoc extends Origined {
 
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Create association.
 	 * @param origin of association
@@ -75,19 +78,33 @@ public final class Assoc extends Origined {
 	 * @throws PlankException when the association cannot be printed
 	 */
 	public void appendAssoc(Appendable out, String prefix, Map<Var, String> namings, boolean includeSorts) throws PlankException {
-		try {
-			String sep = "{";
-			for (Var key : map.keySet()) {
-				out.append(sep);
-				Occur.appendFreeVar(out, keySort, key, prefix, namings, includeSorts);
-				out.append(":");
-				map.get(key).appendTerm(out, "", namings, includeSorts);
-				sep = ", ";
-			}
-			out.append("}");
-		} catch (IOException ioe) {
-			throw new PlankException(ioe);
+		Appender appender = new Appender(out, namings, includeSorts);
+		List<Appender.Task> tasks = new ArrayList<>();
+		addAppendTasks(tasks, prefix);
+		appender.pushAll(tasks);
+		appender.run();
+	}
+
+	/** Add the work to append the text of the association (in order). */
+	void addAppendTasks(List<Appender.Task> tasks, String prefix) {
+		tasks.add(Appender.text("{"));
+		String sep = "";
+		for (Map.Entry<Var, Term> e : map.entrySet()) {
+			tasks.add(Appender.text(sep));
+			tasks.add(Appender.key(e.getKey(), keySort, prefix));
+			tasks.add(Appender.text(":"));
+			tasks.add(Appender.term(e.getValue(), ""));
+			sep = ", ";
 		}
+		tasks.add(Appender.text("}"));
+	}
+
+	/**
+	 * The approximate number of bytes used by the association, without the values of its maps,
+	 * for accounting the memory of terms (see {@link Term#footprint()}).
+	 */
+	public long footprint() {
+		return 160 + 40 * map.size() + 32 * omit.size() + 4 * all.length; // the object, hash tables, and entries
 	}
 	
 	// Object...
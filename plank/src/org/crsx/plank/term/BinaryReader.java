@@ -0,0 +1,409 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.term;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.base.Var;
+import org.crsx.plank.sort.ConsForm;
+import org.crsx.plank.sort.Sort;
+
+/**
+ * Reader of terms in the compact binary term format written by {@link BinarySink}.
+ * Each record is read directly as events to a sink, without recursion, and the variables of each record are fresh.
+ * Files can be read through memory mappings, so the bytes are decoded in place without copying them to the heap,
+ * and the file can be bigger than the heap (as long as each term fits).
+ * Corrupt input is reported as a {@link PlankException}: every count is checked against the remaining input, when that is known,
+ * and against the form it counts for, and tables grow as they are read, so a bad count cannot make the reader allocate ahead of the data.
+ * @see Term#binaryReader(InputStream, String, Function)
+ * @see Term#binaryReader(FileChannel, String, Function)
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class BinaryReader {
+
+	// State.
+
+	/** The most table entries or string bytes to allocate before they have been read. */
+	private static final int CHUNK = 1024;
+
+	/** Where to read records from. */
+	private final Input _in;
+
+	/** Origin to use for everything read. */
+	private final String _origin;
+
+	/** The constructor forms by name. */
+	private final Function<String, ConsForm> _forms;
+
+	/** The header tables of the current record. */
+	private String[] _strings;
+	private Var[] _vars;
+	private Sort[] _sorts;
+	private ConsForm[] _formTable;
+
+	/**
+	 * An open construction, with its form, or association, with the number of scopes and associations, or entries, that remain.
+	 */
+	private static final class Open {
+		final boolean assoc;
+		final ConsForm form;
+		int scopes;
+		int assocs;
+		Open(boolean assoc, ConsForm form, int scopes, int assocs) {
+			this.assoc = assoc;
+			this.form = form;
+			this.scopes = scopes;
+			this.assocs = assocs;
+		}
+	}
+
+	/**
+	 * Source of the bytes of the records.
+	 */
+	private interface Input {
+		/** The next byte, or -1 at the end. */
+		int read() throws IOException;
+		/** Whether all bytes have been read. */
+		boolean atEnd() throws IOException;
+		/** The number of bytes that remain, or {@link Long#MAX_VALUE} when that is not known. */
+		long remaining();
+	}
+
+	/**
+	 * Bytes read from a stream.
+	 */
+	private static final class StreamInput implements Input {
+		private final InputStream _stream;
+		StreamInput(InputStream stream) {
+			_stream = stream instanceof BufferedInputStream ? stream : new BufferedInputStream(stream);
+		}
+		@Override
+		public int read() throws IOException {
+			return _stream.read();
+		}
+		@Override
+		public boolean atEnd() throws IOException {
+			_stream.mark(1);
+			final int b = _stream.read();
+			_stream.reset();
+			return b < 0;
+		}
+		@Override
+		public long remaining() {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Bytes read from successive memory mapped windows of a file, since one mapping cannot be bigger than 2GiB.
+	 */
+	private static final class MappedInput implements Input {
+		/** Largest window to map. */
+		private static final long WINDOW = 1L << 30;
+		private final FileChannel _channel;
+		private final long _size;
+		/** The file position of the end of the current window. */
+		private long _end;
+		/** The current window. */
+		private MappedByteBuffer _window;
+		MappedInput(FileChannel channel) throws IOException {
+			_channel = channel;
+			_size = channel.size();
+			_end = channel.position();
+		}
+		/** Map the next window, if any. */
+		private boolean next() throws IOException {
+			if (_end >= _size)
+				return false;
+			final long length = Math.min(WINDOW, _size - _end);
+			_window = _channel.map(FileChannel.MapMode.READ_ONLY, _end, length);
+			_end += length;
+			return true;
+		}
+		@Override
+		public int read() throws IOException {
+			if ((_window == null || !_window.hasRemaining()) && !next())
+				return -1;
+			return _window.get() & 0xFF;
+		}
+		@Override
+		public boolean atEnd() throws IOException {
+			return (_window == null || !_window.hasRemaining()) && _end >= _size;
+		}
+		@Override
+		public long remaining() {
+			return (_window == null ? 0 : _window.remaining()) + _size - _end;
+		}
+	}
+
+	// Constructor.
+
+	/** Instantiate reader of stream. */
+	BinaryReader(InputStream in, String origin, Function<String, ConsForm> forms) {
+		this(new StreamInput(in), origin, forms);
+	}
+
+	/** Instantiate reader of file from its current position, by mapping it. */
+	BinaryReader(FileChannel channel, String origin, Function<String, ConsForm> forms) throws IOException {
+		this(new MappedInput(channel), origin, forms);
+	}
+
+	/** Instantiate reader of input. */
+	private BinaryReader(Input in, String origin, Function<String, ConsForm> forms) {
+		_in = in;
+		_origin = origin;
+		_forms = forms;
+	}
+
+	// Methods.
+
+	/**
+	 * Whether all records have been read.
+	 * @throws PlankException if the input cannot be read
+	 */
+	public boolean atEnd() throws PlankException {
+		try {
+			return _in.atEnd();
+		} catch (IOException e) {
+			throw new PlankException(e);
+		}
+	}
+
+	/**
+	 * Read the next record as a term.
+	 * @throws PlankException if the record is malformed, or uses constructors that are not known
+	 */
+	public Term read() throws PlankException {
+		TermBuilder builder = Term.builder();
+		read(builder);
+		return builder.build();
+	}
+
+	/**
+	 * Read the next record, sending the term to a sink.
+	 * @param sink to send the events for the term to
+	 * @return the sink to use for subsequent events
+	 * @throws PlankException if the record is malformed, or uses constructors that are not known
+	 */
+	public Sink read(Sink sink) throws PlankException {
+		try {
+			readHeader();
+			final ArrayDeque<Open> open = new ArrayDeque<>();
+			sink = readNode(sink, open);
+			while (!open.isEmpty()) {
+				final Open top = open.peek();
+				if (top.assoc) {
+					if (top.scopes > 0) {
+						--top.scopes;
+						sink = sink.map(var());
+						sink = readNode(sink, open);
+					} else {
+						open.pop();
+						sink = sink.closeAssoc();
+					}
+				} else if (top.scopes > 0) {
+					final int binderCount = count("binder");
+					final Sort[] binderSort = top.form.binderSort[top.form.subSort.length - top.scopes];
+					if (binderCount != binderSort.length)
+						throw new PlankException("%s: corrupt binary term (construction %s with %d binders where %d are declared)", _origin, top.form.name, binderCount, binderSort.length);
+					--top.scopes;
+					final Var[] binders = new Var[binderCount];
+					for (int j = 0; j < binders.length; ++j)
+						binders[j] = var();
+					sink = sink.scope(binders);
+					sink = readNode(sink, open);
+				} else if (top.assocs > 0) {
+					--top.assocs;
+					final int realIndex = readVarint();
+					final Sort keySort = sort(null);
+					final Sort valueSort = sort(null);
+					final int entryCount = count("association entry");
+					sink = sink.openAssoc(_origin, realIndex, keySort, valueSort);
+					open.push(new Open(true, null, entryCount, 0));
+				} else {
+					open.pop();
+					sink = sink.close();
+				}
+			}
+			return sink;
+		} catch (EOFException e) {
+			throw new PlankException(e, "%s: truncated binary term", _origin);
+		} catch (IOException e) {
+			throw new PlankException(e);
+		} finally {
+			_strings = null;
+			_vars = null;
+			_sorts = null;
+			_formTable = null;
+		}
+	}
+
+	/** Read the magic, version, and header tables of a record. */
+	private void readHeader() throws IOException, PlankException {
+		final byte[] magic = new byte[BinarySink.MAGIC.length];
+		readFully(magic);
+		if (!Arrays.equals(magic, BinarySink.MAGIC))
+			throw new PlankException("%s: not a binary plank term", _origin);
+		final int version = readByte();
+		if (version != BinarySink.VERSION)
+			throw new PlankException("%s: unsupported binary term version %d (expected %d)", _origin, version, BinarySink.VERSION);
+		final int stringCount = count("string");
+		_strings = new String[Math.min(stringCount, CHUNK)];
+		for (int i = 0; i < stringCount; ++i) {
+			final int length = count("string byte");
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(length, CHUNK));
+			for (int j = 0; j < length; ++j)
+				bytes.write(readByte());
+			_strings = room(_strings, i, stringCount);
+			_strings[i] = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		}
+		final int varCount = count("variable");
+		_vars = new Var[Math.min(varCount, CHUNK)];
+		for (int i = 0; i < varCount; ++i) {
+			final Var v = new Var(string());
+			_vars = room(_vars, i, varCount);
+			_vars[i] = v;
+		}
+		final int sortCount = count("sort");
+		_sorts = new Sort[Math.min(sortCount, CHUNK)];
+		for (int i = 0; i < sortCount; ++i) {
+			_sorts = room(_sorts, i, sortCount);
+			final int kind = readVarint();
+			switch (kind) {
+			case BinarySink.SORT_VAR :
+				_sorts[i] = Sort.mkSortVar(_origin, var());
+				break;
+			case BinarySink.SORT_INSTANCE : {
+				final String name = string();
+				final int paramCount = count("sort parameter");
+				Sort[] param = new Sort[Math.min(paramCount, CHUNK)];
+				for (int j = 0; j < paramCount; ++j) {
+					final int p = readVarint();
+					if (p < 0 || p >= i)
+						throw new PlankException("%s: sort parameter must come before sort in binary term", _origin);
+					param = room(param, j, paramCount);
+					param[j] = _sorts[p];
+				}
+				_sorts[i] = Sort.mkSortInstance(_origin, name, param);
+				break;
+			}
+			default :
+				throw new PlankException("%s: bad sort kind %d in binary term", _origin, kind);
+			}
+		}
+		final int formCount = count("constructor");
+		_formTable = new ConsForm[Math.min(formCount, CHUNK)];
+		for (int i = 0; i < formCount; ++i) {
+			final String name = string();
+			final ConsForm form = _forms.apply(name);
+			if (form == null)
+				throw new PlankException("%s: binary term uses undeclared constructor %s", _origin, name);
+			_formTable = room(_formTable, i, formCount);
+			_formTable[i] = form;
+		}
+	}
+
+	/** The table with room for entry i of count, grown if needed. */
+	private static <T> T[] room(T[] table, int i, int count) {
+		return i < table.length ? table : Arrays.copyOf(table, (int) Math.min((long) table.length * 2 + 1, count));
+	}
+
+	/** Read a node, sending the event for it, and push construction to complete. */
+	private Sink readNode(Sink sink, ArrayDeque<Open> open) throws IOException, PlankException {
+		final int node = readVarint();
+		final int index = node >>> 1;
+		if ((node & 1) == BinarySink.NODE_CONS) {
+			if (index >= _formTable.length)
+				throw new PlankException("%s: bad form index %d in binary term", _origin, index);
+			final ConsForm form = _formTable[index];
+			final Sort sort = sort(form);
+			final int childCount = readVarint();
+			if (childCount != form.subSort.length + form.keySort.length)
+				throw new PlankException("%s: corrupt binary term (construction %s with %d children where %d are declared)", _origin, form.name, childCount, form.subSort.length + form.keySort.length);
+			open.push(new Open(false, form, form.subSort.length, form.keySort.length));
+			return sink.open(_origin, sort, form);
+		} else {
+			if (index >= _vars.length)
+				throw new PlankException("%s: bad variable index %d in binary term", _origin, index);
+			return sink.occur(_origin, sort(null), _vars[index]);
+		}
+	}
+
+	/** Read byte. */
+	private int readByte() throws IOException {
+		final int b = _in.read();
+		if (b < 0)
+			throw new EOFException();
+		return b;
+	}
+
+	/** Read bytes to fill array. */
+	private void readFully(byte[] bytes) throws IOException {
+		for (int i = 0; i < bytes.length; ++i)
+			bytes[i] = (byte) readByte();
+	}
+
+	/** Read unsigned LEB128 varint. */
+	private int readVarint() throws IOException, PlankException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			final int b = readByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new PlankException("%s: bad varint in binary term", _origin);
+	}
+
+	/**
+	 * Read count of items that each take at least one byte, so it cannot exceed the remaining input.
+	 * @param what the items counted, for the error
+	 */
+	private int count(String what) throws IOException, PlankException {
+		final int count = readVarint();
+		if (count < 0 || count > _in.remaining())
+			throw new PlankException("%s: corrupt binary term (%s count %d exceeds the remaining input)", _origin, what, count & 0xFFFFFFFFL);
+		return count;
+	}
+
+	/** Read table index. */
+	private int index(int size) throws IOException, PlankException {
+		final int index = readVarint();
+		if (index < 0 || index >= size)
+			throw new PlankException("%s: bad table index %d in binary term", _origin, index);
+		return index;
+	}
+
+	/** Read string reference. */
+	private String string() throws IOException, PlankException {
+		return _strings[index(_strings.length)];
+	}
+
+	/** Read variable reference. */
+	private Var var() throws IOException, PlankException {
+		return _vars[index(_vars.length)];
+	}
+
+	/** Read sort reference, which may be to the declared sort of the form, if any. */
+	private Sort sort(ConsForm form) throws IOException, PlankException {
+		final int reference = readVarint();
+		if (reference == BinarySink.DECLARED_SORT && form != null)
+			return form.sort;
+		if (reference == BinarySink.DECLARED_SORT || reference < 0 || reference > _sorts.length)
+			throw new PlankException("%s: bad sort reference %d in binary term", _origin, reference);
+		return _sorts[reference - 1];
+	}
+}
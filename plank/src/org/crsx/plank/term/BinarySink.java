@@ -0,0 +1,350 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.term;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.base.Var;
+import org.crsx.plank.sort.ConsForm;
+import org.crsx.plank.sort.Sort;
+
+/**
+ * Sink that writes terms in the compact binary term format, as they are received.
+ * <p>
+ * Each term is written as a self-contained record, so several terms can be written to the same stream.
+ * A record is the {@link #MAGIC} bytes and the {@link #VERSION}, then the header tables, and then the term.
+ * The header tables are, in order, the strings, the variables (as string indices), the sorts, and the constructor forms (as string indices),
+ * each as a count followed by the entries.
+ * A sort entry is either {@link #SORT_VAR} and a variable index,
+ * or {@link #SORT_INSTANCE}, a string index for the name, and the count and indices of the parameter sorts, which come earlier in the table.
+ * The term is a pre-order node stream, where each node starts with its kind in the low bit and a table index in the rest.
+ * A construction is {@link #NODE_CONS} with the form index, then a sort reference and the child count (scopes and associations),
+ * followed by each scope as the binder count, binder variable indices, and the body node,
+ * and then each association as the real index, key and value sort references, and entry count,
+ * followed by each entry as the key variable index and value node.
+ * A variable occurrence is {@link #NODE_OCCUR} with the variable index, then a sort reference.
+ * Sort references are the sort index plus one, with {@link #DECLARED_SORT} for the declared sort of the construction's form.
+ * All counts, indices, and references are unsigned LEB128 varints, and strings are a varint byte length followed by UTF-8.
+ * <p>
+ * The term is collected while the tables are built, and written when the root is complete.
+ * Scopes must be sent before associations, as the text syntax does not record the interleaving.
+ * @see Term#binaryWriter(OutputStream)
+ * @see BinaryReader
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class BinarySink extends Sink {
+
+	/** The first bytes of every record. */
+	static final byte[] MAGIC = {'P', 'l', 'n', 'k'};
+
+	/** The format version, which readers must check. */
+	static final byte VERSION = 1;
+
+	/** Sort table entry kinds. */
+	static final int SORT_VAR = 0, SORT_INSTANCE = 1;
+
+	/** Node kinds. */
+	static final int NODE_CONS = 0, NODE_OCCUR = 1;
+
+	/** Sort reference to the declared sort of the form of a construction. */
+	static final int DECLARED_SORT = 0;
+
+	// State.
+
+	/** Where to write records. */
+	private final OutputStream _out;
+
+	/** The string table with index of each string. */
+	private final Map<String, Integer> _strings = new HashMap<>();
+
+	/** The strings in table order. */
+	private final List<String> _stringList = new ArrayList<>();
+
+	/** The variable table with index of each variable. */
+	private final Map<Var, Integer> _vars = new HashMap<>();
+
+	/** The variables in table order. */
+	private final List<Var> _varList = new ArrayList<>();
+
+	/** The sort table, with each entry encoded as the list of its kind and fields, mapped to its index. */
+	private final Map<List<Integer>, Integer> _sorts = new HashMap<>();
+
+	/** The encoded sort table entries in table order. */
+	private final List<List<Integer>> _sortList = new ArrayList<>();
+
+	/** The form table with the index of each constructor name. */
+	private final Map<String, Integer> _forms = new HashMap<>();
+
+	/** The string indices of the form names in table order. */
+	private final List<Integer> _formList = new ArrayList<>();
+
+	/** The node stream of the term so far (or of the innermost open association). */
+	private ByteArrayOutputStream _body = new ByteArrayOutputStream();
+
+	/** The constructions and associations that are open, innermost first. */
+	private final Deque<Open> _open = new ArrayDeque<>();
+
+	/**
+	 * An open construction or association.
+	 */
+	private static final class Open {
+		/** The form of an open construction, or null for an association. */
+		final ConsForm form;
+		/** For an association: the open event, and the node stream of the enclosing construction. */
+		final int realIndex;
+		final Sort keySort;
+		final Sort valueSort;
+		final ByteArrayOutputStream parentBody;
+		/** How many scopes or association entries have been received. */
+		int count;
+		/** How many associations have been received. */
+		int assocCount;
+		/** Whether a scope or map event is waiting for its term. */
+		boolean pending;
+		Open(ConsForm form, int realIndex, Sort keySort, Sort valueSort, ByteArrayOutputStream parentBody) {
+			this.form = form;
+			this.realIndex = realIndex;
+			this.keySort = keySort;
+			this.valueSort = valueSort;
+			this.parentBody = parentBody;
+		}
+	}
+
+	// Constructor.
+
+	/** Instantiate writer. */
+	BinarySink(OutputStream out) {
+		_out = out;
+	}
+
+	// Methods.
+
+	/** Write unsigned LEB128 varint. */
+	static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/** Index of string in the table, adding it if new. */
+	private int string(String s) {
+		Integer index = _strings.get(s);
+		if (index == null) {
+			index = _stringList.size();
+			_strings.put(s, index);
+			_stringList.add(s);
+		}
+		return index;
+	}
+
+	/** Index of variable in the table, adding it if new. */
+	private int var(Var v) {
+		Integer index = _vars.get(v);
+		if (index == null) {
+			index = _varList.size();
+			_vars.put(v, index);
+			_varList.add(v);
+			string(v.name);
+		}
+		return index;
+	}
+
+	/** Index of sort in the table, adding it (and its parameters) if new. */
+	private int sort(Sort s) {
+		List<Integer> entry;
+		if (s.isVar()) {
+			entry = Arrays.asList(SORT_VAR, var(s.var));
+		} else {
+			entry = new ArrayList<>(s.param.length + 3);
+			entry.add(SORT_INSTANCE);
+			entry.add(string(s.name));
+			entry.add(s.param.length);
+			for (Sort p : s.param)
+				entry.add(sort(p));
+		}
+		Integer index = _sorts.get(entry);
+		if (index == null) {
+			index = _sortList.size();
+			_sorts.put(entry, index);
+			_sortList.add(entry);
+		}
+		return index;
+	}
+
+	/** Index of form in the table, adding it if new. */
+	private int form(ConsForm form) {
+		Integer index = _forms.get(form.name);
+		if (index == null) {
+			index = _formList.size();
+			_forms.put(form.name, index);
+			_formList.add(string(form.name));
+		}
+		return index;
+	}
+
+	/** Check that a term is allowed now, and add the empty scope if a construction subterm has none. */
+	private void beginTerm() throws PlankException {
+		final Open open = _open.peek();
+		if (open == null)
+			return;
+		if (open.form == null) {
+			if (!open.pending)
+				throw new PlankException("value term in association map must follow a key");
+		} else if (!open.pending) {
+			if (open.assocCount > 0)
+				throw new PlankException("scopes must come before associations in binary terms");
+			writeVarint(_body, 0); // inject missing binders if not included
+			++open.count;
+		}
+		open.pending = false;
+	}
+
+	/** The term is complete if nothing is open: write the record and reset the tables for the next. */
+	private void endTerm() throws PlankException {
+		if (!_open.isEmpty())
+			return;
+		try {
+			final ByteArrayOutputStream header = new ByteArrayOutputStream();
+			header.write(MAGIC, 0, MAGIC.length);
+			header.write(VERSION);
+			writeVarint(header, _stringList.size());
+			for (String s : _stringList) {
+				final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				writeVarint(header, bytes.length);
+				header.write(bytes, 0, bytes.length);
+			}
+			writeVarint(header, _varList.size());
+			for (Var v : _varList)
+				writeVarint(header, _strings.get(v.name));
+			writeVarint(header, _sortList.size());
+			for (List<Integer> entry : _sortList) {
+				for (int field : entry)
+					writeVarint(header, field);
+			}
+			writeVarint(header, _formList.size());
+			for (int name : _formList)
+				writeVarint(header, name);
+			header.writeTo(_out);
+			_body.writeTo(_out);
+			_out.flush();
+		} catch (IOException e) {
+			throw new PlankException(e);
+		}
+		_strings.clear();
+		_stringList.clear();
+		_vars.clear();
+		_varList.clear();
+		_sorts.clear();
+		_sortList.clear();
+		_forms.clear();
+		_formList.clear();
+		_body = new ByteArrayOutputStream();
+	}
+
+	// Sink...
+
+	@Override
+	public Sink open(String origin, Sort sort, ConsForm form) throws PlankException {
+		beginTerm();
+		writeVarint(_body, form(form) << 1 | NODE_CONS);
+		writeVarint(_body, sort.equals(form.sort) ? DECLARED_SORT : sort(sort) + 1);
+		writeVarint(_body, form.subSort.length + form.keySort.length);
+		_open.push(new Open(form, 0, null, null, null));
+		return this;
+	}
+
+	@Override
+	public Sink close() throws PlankException {
+		final Open open = _open.peek();
+		if (open == null || open.form == null)
+			throw new PlankException("can only close construction that has actually been started");
+		if (open.count != open.form.subSort.length || open.assocCount != open.form.keySort.length)
+			throw new PlankException("construction %s closed with %d scopes and %d associations", open.form.name, open.count, open.assocCount);
+		_open.pop();
+		endTerm();
+		return this;
+	}
+
+	@Override
+	public Sink scope(Var[] binders) throws PlankException {
+		final Open open = _open.peek();
+		if (open == null || open.form == null)
+			throw new PlankException("scopes only allowed inside constructions");
+		if (open.pending || open.assocCount > 0)
+			throw new PlankException("scope events out of order");
+		writeVarint(_body, binders.length);
+		for (Var b : binders)
+			writeVarint(_body, var(b));
+		++open.count;
+		open.pending = true;
+		return this;
+	}
+
+	@Override
+	public Sink openAssoc(String origin, int realIndex, Sort keySort, Sort valueSort) throws PlankException {
+		final Open open = _open.peek();
+		if (open == null || open.form == null || open.pending)
+			throw new PlankException("associations only allowed inside constructions");
+		_open.push(new Open(null, realIndex, keySort, valueSort, _body));
+		_body = new ByteArrayOutputStream(); // entry count is only known at the end
+		return this;
+	}
+
+	@Override
+	public Sink closeAssoc() throws PlankException {
+		final Open open = _open.peek();
+		if (open == null || open.form != null || open.pending)
+			throw new PlankException("can only close association that has actually been started");
+		_open.pop();
+		final ByteArrayOutputStream entries = _body;
+		_body = open.parentBody;
+		writeVarint(_body, open.realIndex);
+		writeVarint(_body, sort(open.keySort) + 1);
+		writeVarint(_body, sort(open.valueSort) + 1);
+		writeVarint(_body, open.count);
+		try {
+			entries.writeTo(_body);
+		} catch (IOException e) {
+			throw new PlankException(e);
+		}
+		++_open.peek().assocCount;
+		return this;
+	}
+
+	@Override
+	public Sink map(Var key) throws PlankException {
+		final Open open = _open.peek();
+		if (open == null || open.form != null)
+			throw new PlankException("maps only allowed inside association contexts");
+		if (open.pending)
+			throw new PlankException("keys need a value each");
+		writeVarint(_body, var(key));
+		++open.count;
+		open.pending = true;
+		return this;
+	}
+
+	@Override
+	public Sink occur(String origin, Sort sort, Var var) throws PlankException {
+		beginTerm();
+		writeVarint(_body, var(var) << 1 | NODE_OCCUR);
+		writeVarint(_body, sort(sort) + 1);
+		endTerm();
+		return this;
+	}
+}
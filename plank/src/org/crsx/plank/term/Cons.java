@@ -5,7 +5,9 @@
 package org.crsx.plank.term;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -21,6 +23,9 @@ import org.crsx.plank.sort.Sort;
  */
 public final class Cons extends Term {
 
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
+
 	// State.
 	
 	/** The declared form of the construction. */
@@ -35,11 +40,32 @@ public final class Cons extends Term {
 	/** The associations of the construction. */
 	public final Assoc[] assoc;
 	
+	/** Mark for a construction known to be in normal form, including all subterms. */
+	public static final byte NORMAL = 1;
+	
+	/** Mark for a function known to not match any rule as long as its subterms are unchanged. */
+	public static final byte BLOCKED = 2;
+
+	/** Mark for a construction that a rewrite has inserted without copying, so it has (had) at least one other parent. */
+	public static final byte REUSED = 4;
+
+	/** Mark for a construction that a rewrite has inserted more than once, so it may be reachable from several parents. */
+	public static final byte SHARED = 8;
+
+	/** The marks that describe the sharing rather than the evaluation, and thus survive {@link #clearMarks()} and are not copied. */
+	private static final byte SHARING = REUSED | SHARED;
+
+	/** Evaluation and sharing marks, a combination of {@link #NORMAL}, {@link #BLOCKED}, {@link #REUSED}, and {@link #SHARED}. */
+	private byte _marks;
+
+	/** What the construction was rewritten to, when it is {@link #SHARED}, so other parents can find it; otherwise null. */
+	private Term _forward;
+	
 	// Constructor.
 	
 	/** Generate it. */
 	Cons(final String origin, final Sort sort, final ConsForm form, final Var[][] binder, final Term[] sub, final Assoc[] assoc) {
-		super(origin, sort);
+		super(origin, sort, CONS_TAG, form.scheme);
 		this.form = form;
 		this.binder = binder;
 		this.sub = sub;
@@ -53,116 +79,135 @@ public final class Cons extends Term {
 		assert form.keySort.length == assoc.length : "Panic: construction associations inconsistent with form?!?";
 	}
 
-	// Term...
+	// Methods.
 	
-	@Override
-	public Kind kind() {
-		return Kind.CONS;
+	/** The evaluation marks of the construction. */
+	public byte marks() {
+		return _marks;
 	}
 	
-	@Override
-	public Cons cons() {
-		return this;
+	/** Whether the construction has the mark (one of {@link #NORMAL}, {@link #BLOCKED}, {@link #REUSED}, and {@link #SHARED}). */
+	public boolean hasMark(byte mark) {
+		return (_marks & mark) != 0;
+	}
+	
+	/** Add marks to the construction. */
+	public void addMarks(byte marks) {
+		_marks |= marks;
+	}
+	
+	/** Forget all evaluation marks, for example, because a subterm was changed. */
+	public void clearMarks() {
+		_marks &= SHARING;
+	}
+
+	/** Record that the construction has been inserted by a rewrite without copying. */
+	void reuse() {
+		_marks |= (_marks & REUSED) != 0 ? SHARED : REUSED;
+	}
+
+	/**
+	 * Record that the (shared) construction was rewritten, so every parent will see the result through {@link Term#resolve()}.
+	 * The result inherits the sharing so it is forwarded in turn if it is rewritten again.
+	 * @param result of rewriting the construction
+	 */
+	public void forward(Term result) {
+		assert _forward == null && result != this : "Panic: construction forwarded twice?!?";
+		_forward = result;
+		if (result.tag == CONS_TAG)
+			((Cons) result)._marks |= _marks & SHARING;
+	}
+
+	/** The term the construction was rewritten to, or null. */
+	Term forwarded() {
+		return _forward;
 	}
 
+	// Term...
+	
 	@Override
-	boolean equalsTerm(Term that, Map<Var, Var> freeRenames) {
-		if (that.kind() != Kind.CONS)
+	boolean equalsHead(Term that, Map<Var, Var> freeRenames, ArrayDeque<Comparison> pending) {
+		if (that.tag != CONS_TAG)
 			return false;
-		final Cons c = that.cons();
-		if (!form.equals(c.form))
+		final Cons c = (Cons) that;
+		if (!form.sameConstructor(c.form))
 			return false;
-		for (int i = 0; i < c.sub.length; ++i) {
-			for (int j = 0; j < binder[i].length; ++j)
-				freeRenames.put(binder[i][j], c.binder[i][j]);
-			if (!sub[i].equalsTerm(c.sub[i], freeRenames))
-				return false;
-		}
+		for (int i = c.sub.length - 1; i >= 0; --i)
+			pending.push(new Comparison(sub[i], c.sub[i], binder[i], c.binder[i]));
 		return true;
 	}
 
 	@Override
-	Sink rewriteTerm(Sink sink, Match match, Map<Var, Var> freeRenames) throws PlankException {
-		sink = sink.open(origin(), sort(), form);
-		// Scopes.
-		final int scopeCount = sub.length;
-		for (int i = 0; i < scopeCount; ++i) {
-			final int rank = binder[i].length;
-			final Var[] newBinders = new Var[rank];
-			for (int j = 0; j < rank; ++j) {
-				final Var b = binder[i][j];
-				final Var b2 = new Var(b.name);
-				freeRenames.put(b,  b2);
-				newBinders[j] = b2;
-			}
-			sink = sink.scope(newBinders);
-			sink = sub[i].rewriteTerm(sink, match, freeRenames);
-		}
-		// Associations.
-		final int assocCount = assoc.length;
-		for (int i = 0; i < assocCount; ++i) {
-			final Assoc a = assoc[i];
-			sink = sink.openAssoc(a.origin(), a.realIndex, a.keySort, a.valueSort);
-			for (Map.Entry<Var, Term> e : a.map.entrySet()) {
-				Var key = e.getKey();
-				Term value = e.getValue();
-				sink = sink.map(freeRenames.containsKey(key) ? freeRenames.get(key) : key); 
-				sink = value.rewriteTerm(sink, match, freeRenames);
+	int hashTerm(int depth, int level, Map<Var, Integer> binderLevels) {
+		int h = form.name.hashCode();
+		if (depth > 0) {
+			for (int i = 0; i < sub.length; ++i) {
+				final int rank = binder[i].length;
+				for (int j = 0; j < rank; ++j)
+					binderLevels.put(binder[i][j], level + j);
+				h = 31 * h + sub[i].resolve().hashTerm(depth - 1, level + rank, binderLevels);
 			}
-			sink = sink.closeAssoc();
 		}
-		sink = sink.close();
-		return sink;
+		return h;
 	}
 
 	@Override
-	Sink substituteTerm(Sink sink, Map<Var, Var> freeRenames, Map<Var, Term> substitution, Match replacementMatch) throws PlankException {
-		sink = sink.open(origin(), sort(), form);
-		// Scopes.
-		final int scopeCount = sub.length;
-		for (int i = 0; i < scopeCount; ++i) {
-			final int rank = binder[i].length;
-			final Var[] newBinders = new Var[rank];
-			for (int j = 0; j < rank; ++j) {
-				final Var b = binder[i][j];
-				final Var b2 = new Var(b.name);
-				freeRenames.put(b,  b2);
-				newBinders[j] = b2;
-			}
-			sink = sink.scope(newBinders);
-			sink = sub[i].substituteTerm(sink, freeRenames, substitution, replacementMatch);
-		}
+	void rewriteTerm(Copier copier, Match match) throws PlankException {
+		copier.sink = copier.sink.open(origin(), sort(), form);
+		pushPieces(copier, null, match);
+	}
+
+	@Override
+	void substituteTerm(Copier copier, Map<Var, Term> substitution, Match replacementMatch) throws PlankException {
+		copier.sink = copier.sink.open(origin(), sort(), form);
+		if ((_marks & ~SHARING) != 0 && substitution.isEmpty())
+			copier.sink = copier.sink.mark((byte) (_marks & ~SHARING)); // plain copy evaluates exactly like the original (but is not shared)
+		pushPieces(copier, substitution, replacementMatch);
+	}
+
+	/** Push the work to copy the scopes and associations and close the construction (pushed in reverse so they are done in order). */
+	private void pushPieces(Copier copier, Map<Var, Term> substitution, Match match) {
+		copier.pushClose();
 		// Associations.
-		final int assocCount = assoc.length;
-		for (int i = 0; i < assocCount; ++i) {
+		for (int i = assoc.length - 1; i >= 0; --i) {
 			final Assoc a = assoc[i];
-			sink = sink.openAssoc(a.origin(), a.realIndex, a.keySort, a.valueSort);
-			for (Map.Entry<Var, Term> e : a.map.entrySet()) {
-				Var key = e.getKey();
-				Term value = e.getValue();
-				sink = sink.map(freeRenames.containsKey(key) ? freeRenames.get(key) : key); 
-				sink = value.substituteTerm(sink, freeRenames, substitution, replacementMatch);
+			copier.pushCloseAssoc();
+			final List<Map.Entry<Var, Term>> entries = new ArrayList<>(a.map.entrySet());
+			for (int k = entries.size() - 1; k >= 0; --k) {
+				copier.push(entries.get(k).getValue().resolve(), substitution, match);
+				copier.pushMap(entries.get(k).getKey());
 			}
-			sink = sink.closeAssoc();
+			copier.pushOpenAssoc(a);
+		}
+		// Scopes.
+		for (int i = sub.length - 1; i >= 0; --i) {
+			copier.push(sub[i].resolve(), substitution, match);
+			copier.pushScope(binder[i]);
 		}
-		sink = sink.close();
-		return sink;
 	}
 
 	@Override
-	public boolean containsFree(final Set<Var> vars) {
-		return
-				Arrays.stream(sub).anyMatch(s -> containsFree(vars))
-				|| Arrays.stream(assoc).anyMatch(a -> a.map.entrySet().stream().filter(e -> ! vars.contains(e.getKey())).anyMatch(e -> e.getValue().containsFree(vars)));
+	boolean containsFreeHead(Set<Var> vars, ArrayDeque<Term> pending) {
+		for (int i = assoc.length - 1; i >= 0; --i) {
+			for (Map.Entry<Var, Term> e : assoc[i].map.entrySet()) {
+				if (!vars.contains(e.getKey()))
+					pending.push(e.getValue());
+			}
+		}
+		for (int i = sub.length - 1; i >= 0; --i)
+			pending.push(sub[i]);
+		return false;
 	}
 
 	@Override
-	public void appendTerm(Appendable out, String prefix, Map<Var, String> namings, boolean includeSorts) throws PlankException {
+	void appendTerm(Appender appender, String prefix) throws PlankException {
+		// NOTE: This method depends on the Plank.g4 format.
 		try {
+			final Appendable out = appender.out;
 			out.append(prefix);
-			if (includeSorts) {
+			if (appender.includeSorts) {
 				out.append("<");
-				sort().appendSort(out, namings);
+				sort().appendSort(out, appender.namings);
 				out.append(">");
 			}
 			out.append(form.name);
@@ -171,43 +216,36 @@ public final class Cons extends Term {
 				if (prefix.startsWith("\n")) prefix += "  "; // does not yet add indentation
 				
 				// We have to work a bit to print the arguments in real order...
+				final List<Appender.Task> pieces = new ArrayList<>();
 				int scopeIndex = 0;
 				int assocIndex = 0;
 				String sep = "(";
 				for (int outIndex = 0; outIndex < arity; ++outIndex) {
 					assert assocIndex == form.assocRealIndex.length || outIndex <= form.assocRealIndex[assocIndex] : "Panic: we skipped an association on print?!?";
-					out.append(sep);
+					pieces.add(Appender.text(sep));
 					
 					if (assocIndex == form.assocRealIndex.length || outIndex < form.assocRealIndex[assocIndex]) {
 
 						// No more associations or all associations are later, so this is a scope argument.
-						if (binder[scopeIndex].length > 0) {
-							String sep2 = "[";
-							for (Var b : binder[scopeIndex]) {
-								out.append(sep2);
-								String newName = b.name + namings.size();
-								namings.put(b, newName);
-								out.append(newName);
-								sep2 = ",";
-							}
-							out.append("]");
-						}
-						sub[scopeIndex].appendTerm(out, prefix, namings, includeSorts);
+						if (binder[scopeIndex].length > 0)
+							pieces.add(Appender.binders(binder[scopeIndex]));
+						pieces.add(Appender.term(sub[scopeIndex], prefix));
 						++scopeIndex; // mark it printed
 
 					} else {
 
 						// This is the next association arguments.
-						assoc[assocIndex].appendAssoc(out, prefix, namings, includeSorts);
+						assoc[assocIndex].addAppendTasks(pieces, prefix);
 						++assocIndex; // mark it printed
 
 					}
 					sep = ", "; // for next iteration...
 				}
-				out.append(")");
+				pieces.add(Appender.text(")"));
+				appender.pushAll(pieces);
 			}
 		} catch (IOException e) {
 			throw new PlankException(e);
 		}
 	}
-}
\ No newline at end of file
+}
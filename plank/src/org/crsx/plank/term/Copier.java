@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.term;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.base.Var;
+
+/**
+ * Iterative driver for sending (rewritten or substituted) copies of terms to a sink.
+ * Each term sends its own events and pushes the work for its pieces, instead of recursing,
+ * so deep terms do not overflow the thread stack.
+ * The work is done in the same order as a recursive traversal would do it,
+ * which matters because {@link #freeRenames} is extended with the fresh binders as scopes are entered.
+ * @see Term#rewriteTerm(Copier, Match)
+ * @see Term#substituteTerm(Copier, Map, Match)
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+final class Copier {
+
+	/**
+	 * Copy a term to a sink.
+	 * @param sink to send the copy to
+	 * @param freeRenames renamings of the variables of the term (will be extended)
+	 * @param term to copy
+	 * @param substitution for substituting copy, or null to use term as the contraction of a rewrite
+	 * @param match of the rewrite for contraction, or the replacement match for substitution
+	 * @return the sink to use for subsequent events
+	 */
+	static Sink copy(Sink sink, Map<Var, Var> freeRenames, Term term, Map<Var, Term> substitution, Match match) throws PlankException {
+		Copier copier = new Copier(sink, freeRenames);
+		copier.push(term, substitution, match);
+		return copier.run();
+	}
+
+	// State.
+
+	/** The sink for the next event, updated by the terms as they send events. */
+	Sink sink;
+
+	/** Renamings of variables in the copied terms, including the fresh binders in scope. */
+	final Map<Var, Var> freeRenames;
+
+	/** The work still to do, next on top. */
+	private final ArrayDeque<Task> _tasks = new ArrayDeque<>();
+
+	/** Kinds of {@link Task}. */
+	private static final byte TERM = 0, SCOPE = 1, MAP = 2, OPEN_ASSOC = 3, CLOSE_ASSOC = 4, CLOSE = 5;
+
+	/**
+	 * Work item: a term to copy or an event to send.
+	 */
+	private static final class Task {
+		final byte kind;
+		/** For {@link #TERM}: the term. */
+		final Term term;
+		/** For {@link #TERM}: the substitution, or null for rewrite. */
+		final Map<Var, Term> substitution;
+		/** For {@link #TERM}: the match. */
+		final Match match;
+		/** For {@link #SCOPE}: the original binders; for {@link #MAP}: the original key as the only element. */
+		final Var[] vars;
+		/** For {@link #OPEN_ASSOC}: the original association. */
+		final Assoc assoc;
+		Task(byte kind, Term term, Map<Var, Term> substitution, Match match, Var[] vars, Assoc assoc) {
+			this.kind = kind;
+			this.term = term;
+			this.substitution = substitution;
+			this.match = match;
+			this.vars = vars;
+			this.assoc = assoc;
+		}
+	}
+
+	// Constructor.
+
+	/** Create copier. */
+	private Copier(Sink sink, Map<Var, Var> freeRenames) {
+		this.sink = sink;
+		this.freeRenames = freeRenames;
+	}
+
+	// Methods.
+
+	/** Push copy of term (see {@link #copy(Sink, Map, Term, Map, Match)} for the parameters). */
+	void push(Term term, Map<Var, Term> substitution, Match match) {
+		_tasks.push(new Task(TERM, term, substitution, match, null, null));
+	}
+
+	/** Push scope event with fresh copies of the binders. */
+	void pushScope(Var[] binders) {
+		_tasks.push(new Task(SCOPE, null, null, null, binders, null));
+	}
+
+	/** Push map event for the (renamed) key. */
+	void pushMap(Var key) {
+		_tasks.push(new Task(MAP, null, null, null, new Var[]{key}, null));
+	}
+
+	/** Push event to open a copy of the association. */
+	void pushOpenAssoc(Assoc assoc) {
+		_tasks.push(new Task(OPEN_ASSOC, null, null, null, null, assoc));
+	}
+
+	/** Push event to close association. */
+	void pushCloseAssoc() {
+		_tasks.push(new Task(CLOSE_ASSOC, null, null, null, null, null));
+	}
+
+	/** Push event to close construction. */
+	void pushClose() {
+		_tasks.push(new Task(CLOSE, null, null, null, null, null));
+	}
+
+	/** Do all the work, and return the sink to use for subsequent events. */
+	private Sink run() throws PlankException {
+		while (!_tasks.isEmpty()) {
+			final Task task = _tasks.pop();
+			switch (task.kind) {
+			case TERM :
+				if (task.substitution == null)
+					task.term.rewriteTerm(this, task.match);
+				else
+					task.term.substituteTerm(this, task.substitution, task.match);
+				break;
+			case SCOPE : {
+				final int rank = task.vars.length;
+				final Var[] newBinders = new Var[rank];
+				for (int j = 0; j < rank; ++j) {
+					final Var b = task.vars[j];
+					final Var b2 = new Var(b.name);
+					freeRenames.put(b, b2);
+					newBinders[j] = b2;
+				}
+				sink = sink.scope(newBinders);
+				break;
+			}
+			case MAP : {
+				final Var key = task.vars[0];
+				sink = sink.map(freeRenames.containsKey(key) ? freeRenames.get(key) : key);
+				break;
+			}
+			case OPEN_ASSOC :
+				sink = sink.openAssoc(task.assoc.origin(), task.assoc.realIndex, task.assoc.keySort, task.assoc.valueSort);
+				break;
+			case CLOSE_ASSOC :
+				sink = sink.closeAssoc();
+				break;
+			case CLOSE :
+				sink = sink.close();
+				break;
+			}
+		}
+		return sink;
+	}
+}
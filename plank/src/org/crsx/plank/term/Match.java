@@ -4,6 +4,7 @@
  */
 package org.crsx.plank.term;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -20,6 +21,9 @@ import org.crsx.plank.base.Var;
  */
 public final class Match extends Origined {
 
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
+
 	// External interface.
 	
 	/**
@@ -76,57 +80,133 @@ public final class Match extends Origined {
 	/** Whether the match failed because a variable was not substituted. */
 	public boolean variableFail = false;
 
+	/** Whether the match inspected a {@link Cons#SHARED} construction of the redex, which may change through another parent. */
+	public boolean shared = false;
+
 	/** The path to the place where the match failed. */
 	public final Path failurePath = Term.path();
 	
 	/** Whether a full match was attempted (continues after failure, useful for unification). */
 	public final boolean full;
 	
+	/** Maps bound variables in pattern to bound variables in redex, kept so a failed match can be resumed. */
+	private final Map<Var, Var> _binderMap = new HashMap<>();
+	
+	/** The constructions entered on the way to the {@link #failurePath}, innermost first, so a failed match can be resumed. */
+	private final List<Frame> _frames = new ArrayList<>();
+	
+	/** Whether the failure can be resumed (false once the failure involves an association or a non-linear meta-variable). */
+	private boolean _resumable = true;
+
+	/** The non-linear meta-variable whose instances differ, when that is why the match failed, otherwise null. */
+	private String _nonLinearName;
+
+	/** The later instance of the {@link #_nonLinearName} meta-variable, which differs from the first. */
+	private Term _nonLinearInstance;
+
+	/**
+	 * Record of a construction pair entered by the match, and the scope index being matched (or that failed).
+	 */
+	private static final class Frame {
+		final Cons pattern;
+		final Cons redex;
+		int index;
+		Frame(Cons pattern, Cons redex, int index) {
+			this.pattern = pattern;
+			this.redex = redex;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Subterm of a redex found by a search, with the way back to where the search started.
+	 */
+	private static final class Trail {
+		final Term term;
+		final Trail parent;
+		final Step step;
+		Trail(Term term, Trail parent, Step step) {
+			this.term = term;
+			this.parent = parent;
+			this.step = step;
+		}
+	}
+	
 	// Constructor.
 	
 	/** Real instance. */
 	private Match(String origin, Term pattern, Term redex, boolean full) {
 		super(origin);
 		this.full = full;
-		matchTerm(pattern, redex, new HashMap<Var, Var>()); // do the actual matching!
+		final Term r = redex.resolve();
+		matchTerm(pattern, r, _binderMap); // do the actual matching!
+		if (_nonLinearName != null)
+			retarget(pattern, r);
+	}
+	
+	// Methods.
+	
+	/**
+	 * Continue a failed match after the redex subterm at the {@link #failurePath} has been replaced, typically by evaluating it.
+	 * Everything matched before the failure is kept, so only the replaced subterm and what follows it is matched.
+	 * Afterwards {@link #success} and the failure fields are updated exactly as if the redex had been matched from scratch.
+	 * The redex constructions on the failure path must be the same as for the original match (updated in place).
+	 * A match that failed because the instances of a non-linear meta-variable differ is not resumed,
+	 * since the first instance may be the one that was evaluated.
+	 * @return whether the match was resumed - if not, the match must be redone from scratch
+	 */
+	public boolean resume() {
+		if (success || full || !_resumable || _frames.isEmpty())
+			return false;
+		// The innermost frame redoes the failed subterm itself, and the enclosing frames are still where we left them.
+		final ArrayDeque<Frame> entered = new ArrayDeque<>(_frames);
+		_frames.clear();
+		failurePath.clear();
+		success = true;
+		alwaysFail = false;
+		variableFail = false;
+		matchPieces(entered, _binderMap);
+		return true;
 	}
 
 	// Helpers (all invoked by construction).
 	
 	/**
-	 * Handle recursive matching.
+	 * Handle matching of subterms.
 	 * @param pattern fragment of original pattern to match
-	 * @param redex fragment of original redex to match
+	 * @param redex fragment of original redex to match (already {@link Term#resolve() resolved})
 	 * @param binderMap maps variables in pattern to variables in redex
 	 */
 	private void matchTerm(final Term pattern, final Term redex, final Map<Var, Var> binderMap) {
-		switch (pattern.kind()) {
+		final ArrayDeque<Frame> entered = new ArrayDeque<>();
+		if (matchHead(pattern, redex, binderMap))
+			entered.push(new Frame((Cons) pattern, (Cons) redex, 0));
+		matchPieces(entered, binderMap);
+	}
+
+	/**
+	 * Match the top of a pattern and redex.
+	 * @param pattern fragment of original pattern to match
+	 * @param redex fragment of original redex to match (already {@link Term#resolve() resolved})
+	 * @param binderMap maps variables in pattern to variables in redex
+	 * @return true if both are constructions with the same form, so their pieces must be matched
+	 */
+	private boolean matchHead(final Term pattern, final Term redex, final Map<Var, Var> binderMap) {
+		switch (pattern.tag) {
 		
-		case CONS : {
+		case Term.CONS_TAG : {
 			// Pattern is construction.
-			switch (redex.kind()) {
+			switch (redex.tag) {
 			
-			case CONS : {
+			case Term.CONS_TAG : {
 				// Pattern and redex both constructions.
-				final Cons p = pattern.cons();
-				final Cons r = redex.cons();
-				if (p.form.equals(r.form)) {
+				final Cons p = (Cons) pattern;
+				final Cons r = (Cons) redex;
+				if (r.hasMark(Cons.SHARED))
+					shared = true;
+				if (p.form.sameConstructor(r.form)) {
 					// Same form!
-					// First check scopes.
-					final int scopeCount = p.sub.length; // of both
-					for (int i = 0; i < scopeCount; ++i) { // every scope
-						final int scopeRank = p.binder[i].length;
-						for (int j = 0; j < scopeRank; ++j) // every binder of scope
-							binderMap.put(p.binder[i][j], r.binder[i][j]);
-						matchTerm(p.sub[i], r.sub[i], binderMap); // match scopes recursively
-						if (!full && !success) { failurePath.pushScopeStep(i); return; }
-					}
-					// Second check associations.
-					final int assocCount = p.assoc.length;
-					for (int i = 0; i < assocCount; ++i) {
-						matchAssoc(p.assoc[i], r.assoc[i], binderMap, i);
-						if (!full && !success) return; // failure already updated in matchAssoc
-					}
+					return true;
 				} else {
 					// Different forms.
 					assert !p.form.name.equals(r.form.name) : "Panic: ConsForm not unique by name?!?";
@@ -135,66 +215,66 @@ public final class Match extends Origined {
 					if (!full) {
 						if (!r.form.scheme)
 							alwaysFail = true; // cannot recover from data-data failure
-						return;
+						return false;
 					}
 				}
 				break;
 			}
 			
-			case OCCUR :
+			case Term.OCCUR_TAG :
 				// Pattern is construction, redex is variable. Construction cannot match or unify variable.
 				success = false;
 				unifyPossible = false;
-				if (!full) { variableFail = true; return; }
+				if (!full) { variableFail = true; return false; }
 				break;
 				
-			case META :
+			case Term.META_TAG :
 				// Pattern is construction, redex is meta-application. Construction cannot match meta-application but perhaps unify.
 				success = false;
-				if (!full) { alwaysFail = true; return; }
+				if (!full) { alwaysFail = true; return false; }
 				break;
 
 			}
 			break;
 		} // end of constructor pattern cases
 		
-		case OCCUR : {
+		case Term.OCCUR_TAG : {
 			// Pattern is variable.
-			switch (redex.kind()) {
+			switch (redex.tag) {
 
-			case CONS :
+			case Term.CONS_TAG :
 				// Pattern is variable, redex is construction. Construction cannot match or unify variable.
 				success = false;
 				unifyPossible = false;
-				if (!full) { alwaysFail = true; return; }
+				if (!full) { alwaysFail = true; return false; }
 				break;
 
-			case OCCUR : {
+			case Term.OCCUR_TAG : {
 				// Pattern and redex are both variables!
-				final Var p = pattern.occur().var;
-				final Var r = redex.occur().var;
+				final Var p = ((Occur) pattern).var;
+				final Var r = ((Occur) redex).var;
 				final Var rCandidater = mapVariable(p, r, binderMap);
 				if (rCandidater != r) {
 					success = false;
 					unifyPossible = false;
-					if (!full) { alwaysFail = true; return; }
+					if (!full) { alwaysFail = true; return false; }
 				}
 				break;
 			}
 
-			case META :
+			case Term.META_TAG :
 				// Pattern is variable, redex is meta-variable. May unify.
 				success = false;
-				if (!full) { alwaysFail = true; return; }
+				if (!full) { alwaysFail = true; return false; }
 				break;
 
 			}
 			break;
 		} // end of variable pattern cases
 		
-		case META : {
+		case Term.META_TAG : {
 			// Pattern is meta-application, with just bound variables as substitution parameters. Redex kind does not matter. 
-			final Meta p = pattern.meta();
+			final Meta p = (Meta) pattern;
 			final Term r = redex;
 			if (!valuation.containsKey(p.name)) {
 				if (p.sub.length < binderMap.size()) {
@@ -212,13 +292,160 @@ public final class Match extends Origined {
 				Term candidate = valuation.get(p.name).body;
 				if (!r.equals(candidate)) { // in same space
 					success = false;
-					if (!full) { return; }
+					if (!full) {
+						_resumable = false;
+						_nonLinearName = p.name;
+						_nonLinearInstance = r; // the failure path leads here, see retarget
+						return false;
+					}
 				}
 			}
 			break;
 		}
 		
 		} // end of meta-application pattern cases
+		return false;
+	}
+
+	/**
+	 * Match the pieces of entered constructions with the same form, without recursion.
+	 * The scopes of each construction are matched from the index of its frame, and then all the associations.
+	 * On failure the entered frames are recorded, so the match can be resumed.
+	 * @param entered the pattern and redex constructions being matched, innermost on top
+	 * @param binderMap maps variables in pattern to variables in redex
+	 */
+	private void matchPieces(final ArrayDeque<Frame> entered, final Map<Var, Var> binderMap) {
+		while (!entered.isEmpty()) {
+			final Frame frame = entered.peek();
+			final Cons p = frame.pattern;
+			final Cons r = frame.redex;
+			final int i = frame.index;
+			if (i < p.sub.length) {
+				// First check scopes.
+				final int scopeRank = p.binder[i].length;
+				for (int j = 0; j < scopeRank; ++j) // every binder of scope
+					binderMap.put(p.binder[i][j], r.binder[i][j]);
+				final Term rSub = r.sub[i].resolve();
+				if (matchHead(p.sub[i], rSub, binderMap)) {
+					entered.push(new Frame((Cons) p.sub[i], (Cons) rSub, 0)); // index advanced when done
+					continue;
+				}
+				if (!full && !success) { unwind(entered); return; }
+				++frame.index;
+			} else {
+				// Second check associations.
+				entered.pop();
+				final int assocCount = p.assoc.length;
+				for (int k = 0; k < assocCount; ++k) {
+					matchAssoc(p.assoc[k], r.assoc[k], binderMap, k);
+					if (!full && !success) { _resumable = false; unwind(entered); return; } // failure already updated in matchAssoc
+				}
+				if (!entered.isEmpty())
+					++entered.peek().index;
+			}
+		}
+	}
+
+	/** Record the failure path through the entered constructions, innermost first. */
+	private void unwind(final ArrayDeque<Frame> entered) {
+		while (!entered.isEmpty()) {
+			final Frame frame = entered.pop();
+			failurePath.pushScopeStep(frame.index);
+			_frames.add(frame);
+		}
+	}
+
+	/**
+	 * Redirect the failure of a non-linear meta-variable, whose instances differ, to where evaluation may make them equal:
+	 * the first function that is not stuck in the later instance, or else in the first instance.
+	 * If there is no such function in either then the instances are final and the match always fails.
+	 * @param pattern the whole pattern
+	 * @param redex the whole redex (resolved)
+	 */
+	private void retarget(final Term pattern, final Term redex) {
+		Trail found = findReducible(new Trail(_nonLinearInstance, null, null));
+		if (found != null) {
+			// Continue the path to the later instance.
+			final Path base = failurePath.clone();
+			setFailurePath(found);
+			final List<Step> steps = new ArrayList<>();
+			for (Step step : base)
+				steps.add(step);
+			for (int i = steps.size() - 1; i >= 0; --i)
+				failurePath.pushStep(steps.get(i));
+			return;
+		}
+		final Trail first = findInstance(pattern, redex, _nonLinearName);
+		found = first == null ? null : findReducible(first);
+		if (found != null)
+			setFailurePath(found);
+		else
+			alwaysFail = true;
+	}
+
+	/** Replace the failure path with the steps from the start of a trail to its end. */
+	private void setFailurePath(Trail trail) {
+		failurePath.clear();
+		for (Trail t = trail; t.step != null; t = t.parent)
+			failurePath.pushStep(t.step);
+	}
+
+	/**
+	 * Find the first (leftmost-outermost) function that is not stuck in a term, without recursion.
+	 * Subterms that are normal are skipped, but blocked functions are searched, since their subterms may still evaluate.
+	 * @param start trail to the term to search
+	 * @return trail to the function, extending the start trail, or null if there is none
+	 */
+	private static Trail findReducible(final Trail start) {
+		final ArrayDeque<Trail> pending = new ArrayDeque<>();
+		pending.push(start);
+		while (!pending.isEmpty()) {
+			final Trail trail = pending.pop();
+			if (trail.term.tag != Term.CONS_TAG)
+				continue;
+			final Cons c = (Cons) trail.term;
+			if (c.hasMark(Cons.NORMAL))
+				continue;
+			if (c.isFun() && !c.hasMark(Cons.BLOCKED))
+				return trail;
+			// Push the pieces in reverse, so the leftmost is searched first.
+			for (int i = c.assoc.length - 1; i >= 0; --i) {
+				for (Map.Entry<Var, Term> e : c.assoc[i].map.entrySet())
+					pending.push(new Trail(e.getValue().resolve(), trail, new Step(i, e.getKey())));
+			}
+			for (int i = c.sub.length - 1; i >= 0; --i)
+				pending.push(new Trail(c.sub[i].resolve(), trail, new Step(i, null)));
+		}
+		return null;
+	}
+
+	/**
+	 * Find the redex subterm matched by the first instance of a meta-variable in the scopes of the pattern, without recursion.
+	 * @param pattern the whole pattern
+	 * @param redex the whole redex (resolved)
+	 * @param name of the meta-variable
+	 * @return trail from the redex to the instance, or null if there is none outside associations
+	 */
+	private static Trail findInstance(final Term pattern, final Term redex, final String name) {
+		final ArrayDeque<Term> patterns = new ArrayDeque<>();
+		final ArrayDeque<Trail> trails = new ArrayDeque<>();
+		patterns.push(pattern);
+		trails.push(new Trail(redex, null, null));
+		while (!patterns.isEmpty()) {
+			final Term p = patterns.pop();
+			final Trail trail = trails.pop();
+			if (p.tag == Term.META_TAG && ((Meta) p).name.equals(name))
+				return trail;
+			if (p.tag != Term.CONS_TAG || trail.term.tag != Term.CONS_TAG)
+				continue;
+			final Cons pc = (Cons) p;
+			final Cons rc = (Cons) trail.term;
+			for (int i = Math.min(pc.sub.length, rc.sub.length) - 1; i >= 0; --i) {
+				patterns.push(pc.sub[i]);
+				trails.push(new Trail(rc.sub[i].resolve(), trail, new Step(i, null)));
+			}
+		}
+		return null;
 	}
 
 	/**
@@ -234,13 +461,13 @@ public final class Match extends Origined {
 			final Var rCandidate = mapVariable(pKey, null, binderMap);
 			if (rCandidate != null && rAssoc.map.containsKey(rCandidate)) {
 				// Pattern key variable is known and the corresponding variable exists in redex map.
-				matchTerm(rAssoc.map.get(pKey), rAssoc.map.get(rCandidate), binderMap);
-				if (!full && !success) { failurePath.pushAssocStep(n, pKey); return; }
+				matchTerm(pAssoc.map.get(pKey), rAssoc.map.get(rCandidate).resolve(), binderMap);
+				if (!full && !success) { failurePath.pushAssocStep(n, rCandidate); return; }
 			} else {
-				// Pattern key variable unknown or unmapped in redex.
+				// Pattern key variable unknown or unmapped in redex, which evaluation cannot fix.
 				success = false;
 				unifyPossible = false;
-				if (!full) { failurePath.pushAssocStep(n, pKey); return; }
+				if (!full) { alwaysFail = true; return; }
 			}
 		}
 		
@@ -5,7 +5,10 @@
 package org.crsx.plank.term;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -20,6 +23,9 @@ import org.crsx.plank.term.Match.Substitute;
  * @author Kristoffer H. Rose <krisrose@crsx.org>
  */
 public final class Meta extends Term {
+
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
 	
 	/** The meta-variable name. */
 	public final String name;
@@ -29,7 +35,7 @@ public final class Meta extends Term {
 
 	/** Instance. */
 	Meta(String origin, Sort sort, String name, Term[] sub) {
-		super(origin, sort);
+		super(origin, sort, META_TAG, false);
 		this.name = name;
 		this.sub = sub;
 	}
@@ -37,77 +43,84 @@ public final class Meta extends Term {
 	// Term...
 	
 	@Override
-	public Kind kind() {
-		return Kind.META;
-	}
-	
-	@Override
-	public Meta meta() {
-		return this;
-	}
-
-	@Override
-	boolean equalsTerm(Term that, Map<Var, Var> freeRenames) {
-		if (that.kind() != Kind.META)
+	boolean equalsHead(Term that, Map<Var, Var> freeRenames, ArrayDeque<Comparison> pending) {
+		if (that.tag != META_TAG)
 			return false;
-		final Meta m = that.meta();
-		if (!name.equals(m.name))
+		final Meta m = (Meta) that;
+		if (!name.equals(m.name) || sub.length != m.sub.length)
 			return false;
-		for (int i = 0; i < m.sub.length; ++i) {
-			if (!sub[i].equals(m.sub[i]))
-				return false;
-		}
+		for (int i = sub.length - 1; i >= 0; --i)
+			pending.push(new Comparison(sub[i], m.sub[i], null, null));
 		return true;
 	}
 	
 	@Override
-	Sink rewriteTerm(Sink sink, Match match, Map<Var, Var> freeRenames) throws PlankException {
+	int hashTerm(int depth, int level, Map<Var, Integer> binderLevels) {
+		int h = name.hashCode();
+		if (depth > 0) {
+			for (Term s : sub)
+				h = 31 * h + s.hashTerm(depth - 1, level, binderLevels);
+		}
+		return h;
+	}
+
+	@Override
+	void rewriteTerm(Copier copier, Match match) throws PlankException {
 		if (!match.valuation.containsKey(name))
 			throw new PlankException("encountered unknown meta-variable %s in rewrite contraction", name);
 		Substitute<Term> substitute = match.valuation.get(name);
 		if (sub.length != substitute.var.length)
 			throw new PlankException("inconsistent arity of meta-application of %s", name);
+		if (sub.length == 0) {
+			// Nothing to substitute so insert the redex fragment itself, shared by every such occurrence.
+			final Term body = substitute.body.resolve();
+			if (body.tag == CONS_TAG)
+				((Cons) body).reuse();
+			copier.sink = copier.sink.share(body);
+			return;
+		}
 		Map<Var, Term> substitution = new HashMap<>();
 		for (int i = 0; i < sub.length; ++i) {
 			substitution.put(substitute.var[i], sub[i]);
 		}
-		return substitute.body.substituteTerm(sink, freeRenames, substitution, match);
+		copier.push(substitute.body.resolve(), substitution, match);
 	}
 
 	@Override
-	Sink substituteTerm(Sink sink, Map<Var, Var> freeRenames, Map<Var, Term> substitution, Match replacementMatch) throws PlankException {
+	void substituteTerm(Copier copier, Map<Var, Term> substitution, Match replacementMatch) throws PlankException {
 		throw new PlankException("found meta-application in substituted term (%s)", name);
 	}
 
 	@Override
-	public boolean containsFree(Set<Var> vars) {
-		for (Term s : sub) {
-			if (s.containsFree(vars))
-				return true;
-		}
+	boolean containsFreeHead(Set<Var> vars, ArrayDeque<Term> pending) {
+		for (int i = sub.length - 1; i >= 0; --i)
+			pending.push(sub[i]);
 		return false;
 	}
 
 	@Override
-	public void appendTerm(Appendable out, String prefix, Map<Var, String> namings, boolean includeSorts) throws PlankException {
+	void appendTerm(Appender appender, String prefix) throws PlankException {
 		// NOTE: This method depends on the Plank.g4 format.
 		try {
+			final Appendable out = appender.out;
 			out.append(prefix);
-			if (includeSorts) {
+			if (appender.includeSorts) {
 				out.append("<");
-				sort().appendSort(out, namings);
+				sort().appendSort(out, appender.namings);
 				out.append(">");
 			}
 			out.append(name);
 			if (sub.length > 0) {
 				if (prefix.startsWith("\n")) prefix += "  ";
+				final List<Appender.Task> pieces = new ArrayList<>();
 				String sep = "(";
 				for (Term s : sub) {
-					out.append(sep);
-					s.appendTerm(out, prefix, namings, includeSorts);
+					pieces.add(Appender.text(sep));
+					pieces.add(Appender.term(s, prefix));
 					sep = ", ";
 				}
-				out.append(")");
+				pieces.add(Appender.text(")"));
+				appender.pushAll(pieces);
 			}
 		} catch (IOException e) {
 			throw new PlankException(e);
@@ -5,6 +5,7 @@
 package org.crsx.plank.term;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.Set;
 
@@ -19,71 +20,68 @@ import org.crsx.plank.sort.Sort;
  */
 public final class Occur extends Term {
 
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
+
 	/** The variable that this is an occurrence of. */
 	public final Var var;
 	
 	/** Instance. */
 	Occur(String origin, Sort sort, Var var) {
-		super(origin, sort);
+		super(origin, sort, OCCUR_TAG, false);
 		this.var = var;
 	}
 
 	// Term...
 	
 	@Override
-	public Kind kind() {
-		return Kind.OCCUR;
-	}
-	
-	@Override
-	public Occur occur() {
-		return this;
-	}
-
-	@Override
-	boolean equalsTerm(Term that, Map<Var, Var> freeRenames) {
-		if (that.kind() != Kind.OCCUR)
+	boolean equalsHead(Term that, Map<Var, Var> freeRenames, ArrayDeque<Comparison> pending) {
+		if (that.tag != OCCUR_TAG)
 			return false;
-		Var v = that.occur().var;
-		if (freeRenames.containsKey(v))
-			return var.equals(freeRenames.get(v));
+		Var v = ((Occur) that).var;
+		if (freeRenames.containsKey(var))
+			return v.equals(freeRenames.get(var)); // bound, so must be the corresponding binder in that
 		return var.equals(v); 
 	}
 
 	@Override
-	Sink rewriteTerm(Sink sink, Match match, Map<Var, Var> freeRenames) throws PlankException {
-		return pickVar(sink, freeRenames);
+	int hashTerm(int depth, int level, Map<Var, Integer> binderLevels) {
+		final Integer bound = binderLevels.get(var);
+		return bound != null ? bound : var.hashCode();
 	}
 
 	@Override
-	Sink substituteTerm(Sink sink, Map<Var, Var> freeRenames, Map<Var, Term> substitution, Match replacementMatch) throws PlankException {
-		if (substitution.containsKey(var))
-			return substitution.get(var).rewriteTerm(sink, replacementMatch, freeRenames);
-		return pickVar(sink, freeRenames);
-	}
-
-	/** Generate renamed variable to sink, fresh if not explicitly renamed (with side effect on freeRenames). */
-	private Sink pickVar(Sink sink, Map<Var, Var> freeRenames) throws PlankException {
+	void rewriteTerm(Copier copier, Match match) throws PlankException {
 		Var v;
-		if (freeRenames.containsKey(var)) {
-			v = freeRenames.get(var);
+		if (copier.freeRenames.containsKey(var)) {
+			v = copier.freeRenames.get(var);
 		} else {
 			// This is a "fresh" variable...create and record.
 			v = new Var(var.name);
-			freeRenames.put(var, v);
+			copier.freeRenames.put(var, v);
+		}
+		copier.sink = copier.sink.occur(origin(), sort(), v);
+	}
+
+	@Override
+	void substituteTerm(Copier copier, Map<Var, Term> substitution, Match replacementMatch) throws PlankException {
+		if (substitution.containsKey(var)) {
+			copier.push(substitution.get(var), null, replacementMatch);
+			return;
 		}
-		return sink.occur(origin(), sort(), v);
+		// Free in the redex fragment, so it must stay connected to its binder outside the redex.
+		copier.sink = copier.sink.occur(origin(), sort(), copier.freeRenames.containsKey(var) ? copier.freeRenames.get(var) : var);
 	}
 
 	@Override
-	public boolean containsFree(Set<Var> vars) {
+	boolean containsFreeHead(Set<Var> vars, ArrayDeque<Term> pending) {
 		return vars.contains(var);
 	}
 
 	@Override
-	public void appendTerm(Appendable out, String prefix, Map<Var, String> namings, boolean includeSorts) throws PlankException {
+	void appendTerm(Appender appender, String prefix) throws PlankException {
 		// NOTE: This method depends on the Plank.g4 format.
-		appendFreeVar(out, sort(), var, prefix, namings, includeSorts);
+		appendFreeVar(appender.out, sort(), var, prefix, appender.namings, appender.includeSorts);
 	}
 
 	/** Append just the sorted free variable, extending namings as needed in the process. */
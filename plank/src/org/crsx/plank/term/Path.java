@@ -4,6 +4,7 @@
  */
 package org.crsx.plank.term;
 
+import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.Iterator;
 
@@ -15,7 +16,10 @@ import org.crsx.plank.base.Var;
  * @see Term#path()
  * @author Kristoffer H. Rose <krisrose@crsx.org>
  */
-public final class Path implements Comparable< Path>, Cloneable {
+public final class Path implements Comparable< Path>, Cloneable, Iterable<Step>, Serializable {
+
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
 	
 	// State.
 	
@@ -52,6 +56,28 @@ public final class Path implements Comparable< Path>, Cloneable {
 		return _path.size();
 	}
 
+	/** Remove all steps, making the path empty. Chainable. */
+	public Path clear() {
+		_path.clear();
+		return this;
+	}
+
+	/**
+	 * Whether this path starts with all the steps of another path, i.e., leads to a subterm of what that one leads to.
+	 * @param prefix the path to compare with
+	 */
+	public boolean startsWith(Path prefix) {
+		if (prefix._path.size() > _path.size())
+			return false;
+		Iterator<Step> it = _path.iterator();
+		for (Step step : prefix._path) {
+			Step mine = it.next();
+			if (mine.index != step.index || mine.key != step.key)
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Follow the path all the way.
 	 * Does not modify the path.
@@ -174,6 +200,14 @@ public final class Path implements Comparable< Path>, Cloneable {
 		return it2.hasNext() ? -1 : 0;
 	}
 
+	// Iterable...
+
+	/** The steps of the path, starting from the root. */
+	@Override
+	public Iterator<Step> iterator() {
+		return _path.iterator();
+	}
+
 	// Cloneable...
 	
 	@Override
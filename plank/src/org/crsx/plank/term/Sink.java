@@ -4,6 +4,9 @@
  */
 package org.crsx.plank.term;
 
+import java.util.Collections;
+import java.util.HashMap;
+
 import org.crsx.plank.base.PlankException;
 import org.crsx.plank.base.Var;
 import org.crsx.plank.sort.ConsForm;
@@ -33,9 +36,30 @@ public abstract class Sink {
 	 */ 
 	public abstract Sink close() throws PlankException;
 	
+	/**
+	 * Pass evaluation marks for the most recently opened and unclosed construction.
+	 * Must come right after the open event. Sinks that do not build terms are free to ignore marks, which is the default.
+	 * @param marks the {@link Cons#marks()} of the construction being copied
+	 * @throws PlankException if events are sent out of order or otherwise invalid
+	 */
+	public Sink mark(byte marks) throws PlankException {
+		return this;
+	}
+
+	/**
+	 * Insert an existing term without copying it, so it may end up with several parents.
+	 * Sinks that do not build terms (or cannot share) receive a copy instead, which is the default.
+	 * @param term to insert, which must have been created in a context where its free variables mean the same
+	 * @throws PlankException if events are sent out of order or otherwise invalid
+	 */
+	public Sink share(Term term) throws PlankException {
+		return Copier.copy(this, new HashMap<Var, Var>(), term.resolve(), Collections.<Var, Term>emptyMap(), null);
+	}
+
 	/**
 	 * Add a scope to the most recently opened and unclosed construction.
 	 * Must be followed by events that form the term body of the scope.
+	 * The binders are used as given, so the sender must make sure they are fresh.
 	 * @param binders the binders of the scope
 	 * @throws PlankException if events are sent out of order or otherwise invalid
 	 */
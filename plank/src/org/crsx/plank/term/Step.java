@@ -4,9 +4,11 @@
  */
 package org.crsx.plank.term;
 
+import java.io.Serializable;
+import java.util.Objects;
+
 import org.crsx.plank.base.PlankException;
 import org.crsx.plank.base.Var;
-import org.crsx.plank.term.Term.Kind;
 
 /**
  * Simple record helper class to represent a step.
@@ -18,7 +20,10 @@ import org.crsx.plank.term.Term.Kind;
  * </ul>
  * @author Kristoffer H. Rose <krisrose@crsx.org>
  */
-public final class Step implements Comparable<Step> {
+public final class Step implements Comparable<Step>, Serializable {
+
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
 	
 	// State.
 	
@@ -39,12 +44,22 @@ public final class Step implements Comparable<Step> {
 	
 	// Methods.
 	
-	/** Helper to apply a single explicit step. */ 
+	/** Whether the step enters a scope body (rather than an association value). */
+	public boolean isScopeStep() {
+		return key == null;
+	}
+
+	/** The index of the scope or association that the step enters. */
+	public int index() {
+		return index;
+	}
+
+	/** Helper to apply a single explicit step (seeing through rewritten shared subterms, see {@link Term#resolve()}). */ 
 	public Term apply(Term term) throws PlankException {
-		if (term.kind() != Kind.CONS)
+		if (term.tag != Term.CONS_TAG)
 			throw new PlankException("cannot navigate into non-construction");
-		Cons cons = term.cons();
-		return key == null ? cons.sub[index] : cons.assoc[index].map.get(key);
+		Cons cons = (Cons) term;
+		return (key == null ? cons.sub[index] : cons.assoc[index].map.get(key)).resolve();
 	}
 
 	/**
@@ -54,14 +69,14 @@ public final class Step implements Comparable<Step> {
 	 * @return the first step, or null if there are none
 	 */
 	public static Step first(Term term) {
-		if (term.kind() == Kind.CONS) {
-			Cons cons = term.cons();
+		if (term.tag == Term.CONS_TAG) {
+			Cons cons = (Cons) term;
 			if (cons.sub.length > 0)
 				return new Step(0	, null);
 			else {
-				for (Assoc assoc : cons.assoc) {
-					for (Var var : assoc.map.keySet()) {
-						return new Step(0, var);
+				for (int i = 0; i < cons.assoc.length; ++i) {
+					for (Var var : cons.assoc[i].map.keySet()) {
+						return new Step(i, var);
 					}
 				}
 			}
@@ -76,10 +91,10 @@ public final class Step implements Comparable<Step> {
 	 * @return the new step, or null if there are no more
 	 */
 	public Step next(Term term) {
-		if (term.kind() == Kind.CONS) {
+		if (term.tag == Term.CONS_TAG) {
 			int n = index; // current index, modify as needed
 			Var k = key; // current key, modify as needed
-			Cons cons = term.cons();
+			Cons cons = (Cons) term;
 			if (k == null) {
 				// Scope step...
 				if (n + 1 < cons.sub.length) {
@@ -90,9 +105,9 @@ public final class Step implements Comparable<Step> {
 			if (n < cons.assoc.length) {
 				for (int i = n; i < cons.assoc.length; ++i) {
 					for (Var var : cons.assoc[i].map.keySet()) {
-						if (key == null)
+						if (k == null)
 							return new Step(i, var);
-						if (k == key)
+						if (var == k)
 							k = null; // get the next one!
 					}
 					k = null;
@@ -113,6 +128,16 @@ public final class Step implements Comparable<Step> {
 	
 	// Object...
 	
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof Step && index == ((Step) obj).index && Objects.equals(key, ((Step) obj).key);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * index + (key == null ? 0 : key.hashCode());
+	}
+
 	@Override
 	public String toString() {
 		return "" + index + (key == null ? "" : key.name);
@@ -4,11 +4,17 @@
  */
 package org.crsx.plank.term;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 import org.crsx.plank.base.Origined;
 import org.crsx.plank.base.PlankException;
@@ -23,6 +29,9 @@ import org.crsx.plank.sort.Sort;
  */
 public abstract class Term extends Origined {
 
+	/** Version of the serialized form. */
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Create a construction.
 	 * @param origin of construction
@@ -71,8 +80,70 @@ public abstract class Term extends Origined {
 		return new TermBuilder();
 	}
 
+	/**
+	 * Create {@link Sink}-based printer, which prints a term in plank textual form as it is received.
+	 * Note: cannot print associations from events, only as part of terms inserted with {@link Sink#share(Term)}.
+	 * @param out where to send the text
+	 * @param prefix text to insert before each term, as for {@link #appendTerm(Appendable, String, Map, boolean)}
+	 * @param includeSorts whether to include sorts in the term
+	 * @return printer, which is a sink ready for first event of term to print
+	 */
+	public static TextSink printer(Appendable out, String prefix, boolean includeSorts) {
+		return new TextSink(out, prefix, new HashMap<Var, String>(), includeSorts);
+	}
+
+	/**
+	 * Create {@link Sink}-based writer of the compact binary term format, which writes each term when it has been received.
+	 * @param out where to write the terms
+	 * @return writer, which is a sink ready for first event of term to write
+	 */
+	public static BinarySink binaryWriter(OutputStream out) {
+		return new BinarySink(out);
+	}
+
+	/**
+	 * Create reader of the compact binary term format written by {@link #binaryWriter(OutputStream)}.
+	 * @param in where to read the terms from
+	 * @param origin to use for the terms read
+	 * @param forms gives the constructor form for each constructor name, or null if not declared
+	 * @return reader, ready to read the first term
+	 */
+	public static BinaryReader binaryReader(InputStream in, String origin, Function<String, ConsForm> forms) {
+		return new BinaryReader(in, origin, forms);
+	}
+
+	/**
+	 * Create reader of the compact binary term format that maps the file into memory rather than reading it.
+	 * @param channel of the file to read the terms from, starting at the current position, which must stay open while reading
+	 * @param origin to use for the terms read
+	 * @param forms gives the constructor form for each constructor name, or null if not declared
+	 * @return reader, ready to read the first term
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public static BinaryReader binaryReader(FileChannel channel, String origin, Function<String, ConsForm> forms) throws IOException {
+		return new BinaryReader(channel, origin, forms);
+	}
+
 	// State.
 	
+	/** The {@link #tag} of constructions. */
+	public static final byte CONS_TAG = 0;
+
+	/** The {@link #tag} of variable occurrences. */
+	public static final byte OCCUR_TAG = 1;
+
+	/** The {@link #tag} of meta-applications. */
+	public static final byte META_TAG = 2;
+
+	/**
+	 * The kind of the term as one of {@link #CONS_TAG}, {@link #OCCUR_TAG}, or {@link #META_TAG}.
+	 * Fixed at construction so hot code can dispatch on it without calling {@link #kind()}.
+	 */
+	public final byte tag;
+
+	/** Whether the term is a function, computed once from the form for {@link #isFun()}. */
+	private final boolean _fun;
+
 	/** The sort of the term. */
 	private final Sort _sort;
 
@@ -82,45 +153,72 @@ public abstract class Term extends Origined {
 	 * Assign sort to the term.
 	 * @param origin of term
 	 * @param sort of term
+	 * @param tag of term, one of {@link #CONS_TAG}, {@link #OCCUR_TAG}, or {@link #META_TAG}
+	 * @param fun whether the term is a construction with a scheme constructor
 	 */
-	Term(String origin, Sort sort) {
+	Term(String origin, Sort sort, byte tag, boolean fun) {
 		super(origin);
 		_sort = sort;
+		this.tag = tag;
+		_fun = fun;
 	}
 
 	// Methods.
 
 	/** What kind of term is this? */
-	public abstract Kind kind();
+	public final Kind kind() {
+		return KINDS[tag];
+	}
 	
-	/** The three kinds of term. */
+	/** The three kinds of term (in {@link #tag} order). */
 	public static enum Kind {
 		CONS, OCCUR, META
 	}
+	private static final Kind[] KINDS = Kind.values();
 	
 	/** Is this term a function, i.e., a constructions with a "scheme" constructor? */
 	public final boolean isFun() {
-		return kind() == Kind.CONS && cons().form.scheme;
+		return _fun;
+	}
+
+	/** Whether the term is known to be in normal form: variables always are, constructions when marked {@link Cons#NORMAL}. */
+	public final boolean isNormal() {
+		return tag == OCCUR_TAG || (tag == CONS_TAG && ((Cons) this).hasMark(Cons.NORMAL));
+	}
+
+	/**
+	 * The term to use in place of this one: the construction itself unless it was shared and has since been rewritten,
+	 * in which case the (final) result of the rewrite, see {@link Cons#forward(Term)}.
+	 * All code that inspects subterms must go through this, so every parent sees the evaluation of a shared subterm.
+	 */
+	public final Term resolve() {
+		Term t = this;
+		while (t.tag == CONS_TAG && ((Cons) t).forwarded() != null)
+			t = ((Cons) t).forwarded();
+		return t;
 	}
 
+	/** How many levels of a term are included in its {@link #hashCode()}, which bounds the cost of hashing big terms. */
+	public static final int HASH_DEPTH = 4;
+
 	/** The sort of the term.*/
 	public Sort sort() {
 		return _sort;
 	}
 	
 	/** Return construction term when {@link #kind()} is {@link Kind#CONS}, otherwise null. */
-	public Cons cons() {
-		return null;
+	public final Cons cons() {
+		return tag == CONS_TAG ? (Cons) this : null;
 	}
 	
 	/** Return variable occurrence term when {@link #kind()} is {@link Kind#OCCUR}, otherwise null. */
-	public Occur occur() {
-		return null;
+	public final Occur occur() {
+		return tag == OCCUR_TAG ? (Occur) this : null;
 	}
 	
 	/** Return met-application term when {@link #kind()} is {@link Kind#META}, otherwise null. */
-	public Meta meta() {
-		return null;
+	public final Meta meta() {
+		return tag == META_TAG ? (Meta) this : null;
 	}
 	
 	/**
@@ -143,13 +241,15 @@ public abstract class Term extends Origined {
 	/**
 	 * Use this term a the contraction of a rewrite.
 	 * If match was constructed from pattern and this term is contraction, then this mimics pattern→contraction.
+	 * Meta-applications without arguments insert the matched redex fragment itself with {@link Sink#share(Term)},
+	 * so duplicating a meta-variable duplicates a reference and not the work of evaluating it.
 	 * @param sink to send the rewrite result to
 	 * @param match previously constructed from pattern and redex
 	 * @return the sink to use for subsequent events after rewrite result has been received
 	 * @throws PlankException if an inconsistency is discovered or the sink fails
 	 */
 	public final Sink rewrite(Sink sink, Match match) throws PlankException {
-		return rewriteTerm(sink, match, new HashMap<Var, Var>());
+		return Copier.copy(sink, new HashMap<Var, Var>(match.freeRenames), this, null, match); // free pattern variables are the redex ones
 	}
 
 	/**
@@ -167,9 +267,9 @@ public abstract class Term extends Origined {
 		while (!p.isStep())
 			t = p.popApplyStep(t);
 		// t is now the parent to be updated, and path is the last step to the child to be updated
-		if (t.kind() != Kind.CONS)
+		if (t.tag != CONS_TAG)
 			throw new PlankException("attempt to update non-construction");
-		Cons c = t.cons();
+		Cons c = (Cons) t;
 		if (p.startsWithScopeTerm())
 			c.sub[p.firstIndex()] = subterm;
 		else {
@@ -180,7 +280,7 @@ public abstract class Term extends Origined {
 
 	/**
 	 * Send a copy of the term to the sink.
-	 * Free variables in the copy will be mapped to fresh variables.
+	 * Bound variables in the copy are fresh, free variables are the same as in the original.
 	 * @return the sink to use for subsequent events
 	 */
 	public final Sink send(Sink sink) throws PlankException {
@@ -189,52 +289,124 @@ public abstract class Term extends Origined {
 
 	/**
 	 * Send a copy of the term to the sink, with renamings
-	 * Free variables in the copy will be mapped to fresh variables.
+	 * Bound variables in the copy are fresh, free variables are renamed by freeRenames when mapped and otherwise kept.
 	 * Note the requirement on the freeRenames parameter to ensure that the copy is well-defined.
 	 * @param sink to send events to
 	 * @param freeRenames map variables in this to equal variables in that
 	 * @return the sink to use for subsequent events
 	 */
 	public final Sink send(Sink sink, Map<Var, Var> freeRenames) throws PlankException {
-		Meta dummy = mkMeta("internal", sort(), "#", Arrays.asList(new Term[0]));
-		Match match = dummy.match(this);
-		return dummy.rewriteTerm(sink, match, freeRenames);
+		return Copier.copy(sink, freeRenames, resolve(), Collections.<Var, Term>emptyMap(), null);
 	}
 
 	/**
 	 * Check equality of two terms modulo a free variable map.
+	 * Uses an explicit stack of the subterms still to compare, so deep terms do not overflow the thread stack.
+	 * @param that the term to compare to
+	 * @param freeRenames map variables in this to equal variables in that
+	 */
+	final boolean equalsTerm(Term that, Map<Var, Var> freeRenames) {
+		final ArrayDeque<Comparison> pending = new ArrayDeque<>();
+		Term a = this;
+		Term b = that;
+		while (true) {
+			if (!a.equalsHead(b, freeRenames, pending))
+				return false;
+			if (pending.isEmpty())
+				return true;
+			final Comparison c = pending.pop();
+			if (c.binders != null) {
+				for (int j = 0; j < c.binders.length; ++j)
+					freeRenames.put(c.binders[j], c.thatBinders[j]);
+			}
+			a = c.term.resolve();
+			b = c.that.resolve();
+		}
+	}
+
+	/**
+	 * Pair of subterms that remain to be compared by {@link Term#equalsTerm(Term, Map)}.
+	 */
+	static final class Comparison {
+		/** Subterm of this. */
+		final Term term;
+		/** Subterm of that. */
+		final Term that;
+		/** The binders of the scope of term, mapped to thatBinders right before comparing, or null. */
+		final Var[] binders;
+		/** The binders of the scope of that. */
+		final Var[] thatBinders;
+		/** Create comparison. */
+		Comparison(Term term, Term that, Var[] binders, Var[] thatBinders) {
+			this.term = term;
+			this.that = that;
+			this.binders = binders;
+			this.thatBinders = thatBinders;
+		}
+	}
+
+	/**
+	 * Check equality of the top of two terms modulo a free variable map, leaving the subterms to the caller.
 	 * @param that the term to compare to
 	 * @param freeRenames map variables in this to equal variables in that
+	 * @param pending where to push the subterms that must also be equal, first on top
 	 */
-	abstract boolean equalsTerm(Term that, Map<Var, Var> freeRenames);
+	abstract boolean equalsHead(Term that, Map<Var, Var> freeRenames, ArrayDeque<Comparison> pending);
 
 	/**
 	 * Use this term a the contraction of a rewrite.
 	 * If match was constructed from pattern and this term is contraction, then this mimics pattern→contraction.
-	 * @param sink to send the rewrite result to
+	 * Sends the events for the top of the term to {@link Copier#sink} and pushes the work for the pieces on the copier.
+	 * @param copier with the sink to send the rewrite result to and the renamings of free variables in this term
+	 * 	(variables not mapped will be mapped to fresh variables)
 	 * @param match previously constructed from pattern and redex
-	 * @param freeRenames rename all free variables in this term to unique new names;
-	 * 	variables not mapped by freeRenames will be mapped to arbitrary fresh variables 
-	 * @return the sink to use for subsequent events after rewrite result has been received
 	 * @throws PlankException if an inconsistency is discovered or the sink fails
 	 */
-	abstract Sink rewriteTerm(Sink sink, Match match, Map<Var, Var> freeRenames) throws PlankException;
+	abstract void rewriteTerm(Copier copier, Match match) throws PlankException;
 
 	/**
 	 * Perform substitution in this term.
-	 * @param sink to send result of substitution to
-	 * @param freeRenames rename all free variables in this term to unique new names;
-	 * 	variables not mapped by freeRenames will be mapped to arbitrary fresh variables 
+	 * Sends the events for the top of the term to {@link Copier#sink} and pushes the work for the pieces on the copier.
+	 * @param copier with the sink to send result of substitution to and the renamings of free variables in this term
+	 * 	(variables not mapped are kept, as they are free in the redex this term is part of)
 	 * @param substitution maps variables in this term to replacement terms
-	 * @param replacementRenames variable renamings to perform in replacement terms
-	 * @return the sink to use for subsequent events after rewrite result has been received
+	 * @param replacementMatch match to use for the replacement terms
 	 * @throws PlankException if an inconsistency is discovered or the sink fails
 	 */
-	abstract Sink substituteTerm(Sink sink, Map<Var, Var> freeRenames, Map<Var, Term> substitution, Match replacementMatch)
-			throws PlankException;
+	abstract void substituteTerm(Copier copier, Map<Var, Term> substitution, Match replacementMatch) throws PlankException;
 
-	/** Return whether the term contains any of the indicated variables. */
-	public abstract boolean containsFree(Set<Var> vars);
+	/**
+	 * Compute structural hash code of the top of the term, consistent with {@link #equalsTerm(Term, Map)}.
+	 * Bound variables hash by how many binders enclose their binder, so renaming them does not change the hash.
+	 * @param depth how many more levels to include
+	 * @param level the number of binders enclosing this term
+	 * @param binderLevels the level of each enclosing binder
+	 */
+	abstract int hashTerm(int depth, int level, Map<Var, Integer> binderLevels);
+
+	/**
+	 * Return whether the term contains any of the indicated variables.
+	 * Uses an explicit stack of the subterms still to check, so deep terms do not overflow the thread stack.
+	 */
+	public final boolean containsFree(Set<Var> vars) {
+		final ArrayDeque<Term> pending = new ArrayDeque<>();
+		Term t = this;
+		while (true) {
+			if (t.containsFreeHead(vars, pending))
+				return true;
+			if (pending.isEmpty())
+				return false;
+			t = pending.pop().resolve();
+		}
+	}
+
+	/**
+	 * Check the top of the term for the indicated variables, leaving the subterms to the caller.
+	 * @param vars the variables to look for
+	 * @param pending where to push the subterms that must also be checked
+	 * @return whether the top of the term is one of the variables
+	 */
+	abstract boolean containsFreeHead(Set<Var> vars, ArrayDeque<Term> pending);
 	
 	/**
 	 * Append plank textual form of term to an output.
@@ -244,20 +416,92 @@ public abstract class Term extends Origined {
 	 * @param includeSorts whether to include sorts in the term
 	 * @throws PlankException if there is a problem, including an IOException from appendable
 	 */
-	public abstract void appendTerm(Appendable out, String prefix, Map<Var, String> namings, boolean includeSorts) throws PlankException;
+	public final void appendTerm(Appendable out, String prefix, Map<Var, String> namings, boolean includeSorts) throws PlankException {
+		// Uses an explicit stack of work so deep terms do not overflow the thread stack.
+		Appender appender = new Appender(out, namings, includeSorts);
+		appender.pushAll(Collections.singletonList(Appender.term(this, prefix)));
+		appender.run();
+	}
+
+	/**
+	 * Append the text of the top of the term, pushing the work for the pieces.
+	 * @param appender with the output and the state
+	 * @param prefix text to insert before the term (see {@link #appendTerm(Appendable, String, Map, boolean)})
+	 * @throws PlankException if there is a problem, including an IOException from appendable
+	 */
+	abstract void appendTerm(Appender appender, String prefix) throws PlankException;
 	
 	// Object...
 	
 	@Override
 	public final boolean equals(Object obj) {
-		return obj instanceof Term && equalsTerm((Term) obj, new HashMap<>());
+		return obj instanceof Term && resolve().equalsTerm(((Term) obj).resolve(), new HashMap<>());
 	}
 	
+	/** Structural hash of the top {@link #HASH_DEPTH} levels, so equal terms hash the same even with different bound variables. */
+	@Override
+	public final int hashCode() {
+		return resolve().hashTerm(HASH_DEPTH, 0, new HashMap<Var, Integer>());
+	}
+
+	/**
+	 * Structural hash of the top levels of the term, as {@link #hashCode()} but with a different number of levels.
+	 * @param depth how many levels below the top to include
+	 */
+	public final int hashCode(int depth) {
+		return resolve().hashTerm(depth, 0, new HashMap<Var, Integer>());
+	}
+
+	/**
+	 * Whether {@link #hashCode(int)} with the depth covers all of the term,
+	 * i.e., no construction is deeper than depth levels below the top and there are no associations.
+	 * @param depth how many levels below the top are allowed
+	 */
+	public final boolean isCoveredBy(int depth) {
+		// Uses explicit stacks of the subterms still to check and their allowed depths, so deep terms do not overflow the thread stack.
+		final ArrayDeque<Term> pending = new ArrayDeque<>();
+		final ArrayDeque<Integer> depths = new ArrayDeque<>();
+		pending.push(this);
+		depths.push(depth);
+		while (!pending.isEmpty()) {
+			final Term t = pending.pop().resolve();
+			final int d = depths.pop();
+			if (t.tag != CONS_TAG) {
+				if (t.tag != OCCUR_TAG)
+					return false;
+				continue;
+			}
+			final Cons c = (Cons) t;
+			if (c.assoc.length > 0 || d == 0 && c.sub.length > 0)
+				return false;
+			for (int i = c.sub.length - 1; i >= 0; --i) {
+				pending.push(c.sub[i]);
+				depths.push(d - 1);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The approximate number of bytes used by this node alone, without its subterms and associations,
+	 * for accounting the memory of terms (see {@link TermBuilder#bytes()}).
+	 * The estimate assumes a 64-bit JVM with compressed references.
+	 */
+	public final long footprint() {
+		if (tag != CONS_TAG)
+			return 32; // header, origin, sort, flags, and variable or meta-application fields
+		final Cons c = (Cons) this;
+		long bytes = 96 + 4 * c.assoc.length; // header, fields, and the binder, subterm, and association arrays
+		for (Var[] binders : c.binder)
+			bytes += 24 + 4 * binders.length; // array entries and the binder array of the scope
+		return bytes;
+	}
+
 	@Override
 	public final String toString() {
 		StringBuilder sb = new StringBuilder();
 		try {
-			appendTerm(sb, "\n  ", new HashMap<Var, String>(), false);
+			resolve().appendTerm(sb, "\n  ", new HashMap<Var, String>(), false);
 		} catch (PlankException e) {
 			sb.append("**** BAD TERM (" + e.getMessage() + ") ****");
 		}
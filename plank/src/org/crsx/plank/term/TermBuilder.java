@@ -29,6 +29,12 @@ public final class TermBuilder extends Sink {
 	
 	/** The result term, when done. */
 	private Term _term;
+
+	/** The number of terms and associations created so far. */
+	private long _nodes;
+
+	/** The approximate number of bytes of the terms and associations created so far. */
+	private long _bytes;
 	
 	// Constructor.
 	
@@ -48,6 +54,22 @@ public final class TermBuilder extends Sink {
 			throw new PlankException("Premature attempt to extract unfinished term from builder");
 		return _term;
 	}
+
+	/** The number of terms and associations that the builder has created so far (shared terms are not counted). */
+	public long nodes() {
+		return _nodes;
+	}
+
+	/** The approximate number of bytes of the terms and associations that the builder has created so far (see {@link Term#footprint()}). */
+	public long bytes() {
+		return _bytes;
+	}
+
+	/** Count created node. */
+	private void count(long bytes) {
+		++_nodes;
+		_bytes += bytes;
+	}
 	
 	// Sink...
 	
@@ -63,6 +85,18 @@ public final class TermBuilder extends Sink {
 		return this;
 	}
 
+	@Override
+	public Sink mark(byte marks) throws PlankException {
+		_sink = _sink.mark(marks);
+		return this;
+	}
+
+	@Override
+	public Sink share(Term term) throws PlankException {
+		_sink = _sink.share(term);
+		return this;
+	}
+
 	@Override
 	public Sink scope(Var[] binders) throws PlankException {
 		_sink = _sink.scope(binders);
@@ -105,8 +139,6 @@ public final class TermBuilder extends Sink {
 		// State.
 		/** Parent sink. */
 		final RootSink _parent;
-		/** Bound variable mappings from term to sink events. Used by all subclasses. */
-		final Map<Var, Var> _boundNew = new HashMap<>();
 		
 		// Constructor.
 		/** Capture parent sink. */
@@ -135,6 +167,14 @@ public final class TermBuilder extends Sink {
 			throw new PlankException("can only close construction that has actually been started");
 		}
 		@Override
+		public Sink mark(byte marks) throws PlankException {
+			throw new PlankException("marks only allowed inside constructions");
+		}
+		@Override
+		public Sink share(Term term) throws PlankException {
+			return addTerm(term); // the builder is happy to use the very same term
+		}
+		@Override
 		public Sink scope(final Var[] binders) throws PlankException {
 			throw new PlankException("scopes only allowed inside constructions");
 		}
@@ -152,7 +192,9 @@ public final class TermBuilder extends Sink {
 		}
 		@Override
 		public Sink occur(String origin, Sort sort, Var var) throws PlankException {
-			return addTerm(Term.mkOccur(origin, sort, var));
+			final Occur occur = Term.mkOccur(origin, sort, var);
+			count(occur.footprint());
+			return addTerm(occur);
 		}
 	}
 
@@ -169,6 +211,7 @@ public final class TermBuilder extends Sink {
 		private final List<Var[]> _binders = new ArrayList<>();
 		private final List<Term> _subs = new ArrayList<>();
 		private final List<Assoc> _assocs = new ArrayList<>();
+		private byte _marks;
 		
 		/** Constructor collects information from {@link Sink#open(String, Sort, ConsForm)}. */
 		public ConsSink(RootSink parent, String origin, Sort sort, ConsForm form) {
@@ -198,23 +241,25 @@ public final class TermBuilder extends Sink {
 			assert _binders.size() == _subs.size() : "Panic: internally misbalanced binders/subs?";
 			// Finished. Pass entire construction to parent, that also continues the sink.
 			final int subCount = _subs.size();
-			return _parent.addTerm(Term.mkCons(_origin, _sort, _form,
+			Cons cons = Term.mkCons(_origin, _sort, _form,
 					_binders.toArray(new Var[subCount][]), _subs.toArray(new Term[subCount]), 
-					_assocs.toArray(new Assoc[_assocs.size()])));
+					_assocs.toArray(new Assoc[_assocs.size()]));
+			cons.addMarks(_marks);
+			count(cons.footprint());
+			return _parent.addTerm(cons);
+		}
+		@Override
+		public Sink mark(byte marks) throws PlankException {
+			if (!_subs.isEmpty() || !_binders.isEmpty() || !_assocs.isEmpty())
+				throw new PlankException("marks must follow the open event directly");
+			_marks = marks;
+			return this;
 		}
 		@Override
 		public Sink scope(Var[] scopeBinders) throws PlankException {
 			if (_subs.size() != _binders.size())
 				throw new PlankException("scope and subterm events out of sync");
-			final int rank = scopeBinders.length;
-			Var[] newScopeBinders = new Var[rank];
-			for (int i = 0; i < rank; ++i) {
-				Var oldv = scopeBinders[i];
-				Var newv = new Var(oldv.name);
-				_boundNew.put(oldv, newv);
-				newScopeBinders[i] = newv;
-			}
-			_binders.add(newScopeBinders);
+			_binders.add(scopeBinders); // senders already pass fresh binders, and occurrences refer to them as given
 			return this;
 		}
 		@Override
@@ -265,7 +310,9 @@ public final class TermBuilder extends Sink {
 		// Sink...
 		@Override
 		public Sink closeAssoc() throws PlankException {
-			return _parent.addAssoc(Assoc.mk(_origin, _realIndex, _keySort, _valueSort, _map, new HashSet<>(), new ArrayList<>()));
+			final Assoc assoc = Assoc.mk(_origin, _realIndex, _keySort, _valueSort, _map, new HashSet<>(), new ArrayList<>());
+			count(assoc.footprint());
+			return _parent.addAssoc(assoc);
 		}
 		@Override
 		public Sink map(Var key) throws PlankException {
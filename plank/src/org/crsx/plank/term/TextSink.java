@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2016 Kristoffer H. Rose <krisrose@crsx.org>
+ * Available under the Apache 2.0 license.
+ */
+package org.crsx.plank.term;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+
+import org.crsx.plank.base.PlankException;
+import org.crsx.plank.base.Var;
+import org.crsx.plank.sort.ConsForm;
+import org.crsx.plank.sort.Sort;
+
+/**
+ * Sink that prints the term as it is received, in the same format as {@link Term#appendTerm(Appendable, String, Map, boolean)}.
+ * Only what is still open is kept, so terms can be printed while they are being computed.
+ * Associations cannot be printed from events, since their order in the text is interleaved with the scopes;
+ * they must instead be part of complete terms inserted with {@link #share(Term)}.
+ * @see Term#printer(Appendable, String, boolean)
+ * @author Kristoffer H. Rose <krisrose@crsx.org>
+ */
+public final class TextSink extends Sink {
+
+	// State.
+
+	/** Where to print. */
+	private final Appendable _out;
+
+	/** Prefix for the root term. */
+	private final String _prefix;
+
+	/** Names of the variables printed so far. */
+	private final Map<Var, String> _namings;
+
+	/** Whether to print sorts. */
+	private final boolean _includeSorts;
+
+	/** The constructions that are open, innermost first. */
+	private final Deque<Open> _open = new ArrayDeque<>();
+
+	/**
+	 * An open construction.
+	 */
+	private static final class Open {
+		/** Indentation level of the subterms (only the level is kept, so deep terms do not keep long prefixes). */
+		final int indent;
+		/** Whether the construction has arguments, and so parentheses. */
+		final boolean arguments;
+		/** Whether an argument was printed. */
+		boolean started;
+		Open(int indent, boolean arguments) {
+			this.indent = indent;
+			this.arguments = arguments;
+		}
+	}
+
+	// Constructor.
+
+	/** Instantiate printer. */
+	TextSink(Appendable out, String prefix, Map<Var, String> namings, boolean includeSorts) {
+		_out = out;
+		_prefix = prefix;
+		_namings = namings;
+		_includeSorts = includeSorts;
+	}
+
+	// Methods.
+
+	/** The indentation level for the next term. */
+	private int indent() {
+		return _open.isEmpty() ? 0 : _open.peek().indent;
+	}
+
+	/** The prefix for the next term (indented when the prefix starts with a newline, as in {@link Cons#appendTerm(Appendable, String, Map, boolean)}). */
+	private String prefix() {
+		final int indent = indent();
+		if (indent == 0 || !_prefix.startsWith("\n"))
+			return _prefix;
+		final StringBuilder sb = new StringBuilder(_prefix);
+		for (int i = 0; i < indent; ++i)
+			sb.append("  ");
+		return sb.toString();
+	}
+
+	// Sink...
+
+	@Override
+	public Sink open(String origin, Sort sort, ConsForm form) throws PlankException {
+		// NOTE: This method depends on the Plank.g4 format.
+		try {
+			_out.append(prefix());
+			if (_includeSorts) {
+				_out.append("<");
+				sort.appendSort(_out, _namings);
+				_out.append(">");
+			}
+			_out.append(form.name);
+			_open.push(new Open(indent() + 1, form.subSort.length + form.keySort.length > 0));
+			return this;
+		} catch (IOException e) {
+			throw new PlankException(e);
+		}
+	}
+
+	@Override
+	public Sink close() throws PlankException {
+		if (_open.isEmpty())
+			throw new PlankException("can only close construction that has actually been started");
+		try {
+			if (_open.pop().arguments)
+				_out.append(")");
+			return this;
+		} catch (IOException e) {
+			throw new PlankException(e);
+		}
+	}
+
+	@Override
+	public Sink share(Term term) throws PlankException {
+		term.resolve().appendTerm(_out, prefix(), _namings, _includeSorts);
+		return this;
+	}
+
+	@Override
+	public Sink scope(Var[] binders) throws PlankException {
+		if (_open.isEmpty())
+			throw new PlankException("scopes only allowed inside constructions");
+		try {
+			final Open open = _open.peek();
+			_out.append(open.started ? ", " : "(");
+			open.started = true;
+			if (binders.length > 0) {
+				String sep = "[";
+				for (Var b : binders) {
+					_out.append(sep);
+					String newName = b.name + _namings.size();
+					_namings.put(b, newName);
+					_out.append(newName);
+					sep = ",";
+				}
+				_out.append("]");
+			}
+			return this;
+		} catch (IOException e) {
+			throw new PlankException(e);
+		}
+	}
+
+	@Override
+	public Sink openAssoc(String origin, int realIndex, Sort keySort, Sort valueSort) throws PlankException {
+		throw new PlankException("cannot print association from events (send the term with share instead)");
+	}
+
+	@Override
+	public Sink closeAssoc() throws PlankException {
+		throw new PlankException("cannot print association from events (send the term with share instead)");
+	}
+
+	@Override
+	public Sink map(Var key) throws PlankException {
+		throw new PlankException("cannot print association from events (send the term with share instead)");
+	}
+
+	@Override
+	public Sink occur(String origin, Sort sort, Var var) throws PlankException {
+		Occur.appendFreeVar(_out, sort, var, prefix(), _namings, _includeSorts);
+		return this;
+	}
+}